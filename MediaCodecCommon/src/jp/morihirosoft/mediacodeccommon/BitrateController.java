@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import android.util.Log;
+
+/**
+ * Retunes the encoder's bitrate from what comes out of it. The bitrate
+ * it was configured with is the ceiling: it is cut while the storage
+ * falls behind, and given back, never above the configured one, once
+ * the storage keeps up again. Fed each encoded sample (its size, and
+ * how long writing it took) on the encoder thread; once per window (1
+ * second of frames):
+ * <ul>
+ * <li>writes taking over half the frame interval (the storage falls
+ * behind), or an output over out_max: down by 1/4 (multiplicative), not
+ * below min</li>
+ * <li>writes taking under 1/4 of it, after a cut: up by 1/16 of the
+ * configured bitrate (additive), not above it</li>
+ * <li>else: kept</li>
+ * </ul>
+ * The bitrate goes to a Target: the codec (MediaCodecEncoder), or a
+ * fake one to run the loop off the device.
+ */
+public class BitrateController {
+	private static final String TAG = "BitrateController";
+
+	//---------------------------------------------------------------------
+	// TARGET
+	//---------------------------------------------------------------------
+	/** Where the bitrate goes. */
+	public interface Target {
+		/** Returns false if it could not be changed. */
+		boolean setBitrate(int bps);
+	}
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private final Target mTarget;
+	private final int    mMinBps;
+	private final int    mMaxBps;    // the configured one
+	private final int    mOutMaxBps;
+	private final int    mWindow;    // frames
+	private final long   mFrameUs;   // frame interval
+
+	// Window (encoder thread only)
+	private int  mFrames  = 0;
+	private long mBytes   = 0;
+	private long mWriteUs = 0;
+
+	private volatile int mBps;
+	private volatile int mLoweredCnt = 0;
+	private volatile int mRaisedCnt  = 0;
+	private volatile int mFailedCnt  = 0;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	/**
+	 * bps: the bitrate the codec was configured with, and the most it
+	 * gets. min_bps: the least. out_max_bps: an output over this is cut
+	 * even if the storage keeps up (the codec overshoots).
+	 */
+	public BitrateController(Target target, int bps, int min_bps, int out_max_bps, int fps) {
+		if (target == null || min_bps < 1 || bps < min_bps || out_max_bps < bps || fps < 1) {
+			throw new IllegalArgumentException();
+		}
+		mTarget    = target;
+		mMinBps    = min_bps;
+		mMaxBps    = bps;
+		mOutMaxBps = out_max_bps;
+		mWindow    = fps;
+		mFrameUs   = 1000000L / fps;
+		mBps       = bps;
+	}
+
+	/**
+	 * One encoded frame (not codec config): size bytes, written in
+	 * write_us. Encoder thread.
+	 */
+	public void onSample(int size, long write_us) {
+		mFrames++;
+		mBytes   += size;
+		mWriteUs += write_us;
+		if (mFrames < mWindow) {
+			return;
+		}
+		final long out_bps      = mBytes * 8 * 1000000L / (mFrames * mFrameUs);
+		final long write_us_avg = mWriteUs / mFrames;
+		mFrames  = 0;
+		mBytes   = 0;
+		mWriteUs = 0;
+
+		final int bps = mBps;
+		int next = bps;
+		if (write_us_avg > mFrameUs / 2 || out_bps > mOutMaxBps) {
+			next = clamp(bps - bps / 4);
+		} else if (write_us_avg < mFrameUs / 4 && bps < mMaxBps) {
+			next = clamp(bps + mMaxBps / 16);
+		}
+		if (next == bps) {
+			return;
+		}
+		if (!apply(next)) {
+			return;
+		}
+		if (next < bps) {
+			mLoweredCnt++;
+		} else {
+			mRaisedCnt++;
+		}
+		Log.i(TAG, "bitrate "+bps+" -> "+next+" (out="+out_bps+", write="+write_us_avg+"us)");
+	}
+
+	public int getBitrate() {
+		return mBps;
+	}
+
+	public int getLoweredCount() {
+		return mLoweredCnt;
+	}
+
+	public int getRaisedCount() {
+		return mRaisedCnt;
+	}
+
+	public int getFailedCount() {
+		return mFailedCnt;
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	private int clamp(int bps) {
+		return (bps < mMinBps ? mMinBps : (bps > mMaxBps ? mMaxBps : bps));
+	}
+
+	private boolean apply(int bps) {
+		if (!mTarget.setBitrate(bps)) {
+			mFailedCnt++;
+			return false;
+		}
+		mBps = bps;
+		return true;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+/**
+ * VideoEncoder on MediaCodec (calls go through as they are).
+ */
+public class MediaCodecEncoder implements VideoEncoder {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	// MediaCodec.setParameters(), PARAMETER_KEY_VIDEO_BITRATE: API 19
+	private static final int    SDK_SET_PARAMETERS = 19;
+	private static final String KEY_VIDEO_BITRATE  = "video-bitrate";
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private final String     mMime;
+	private final MediaCodec mCodec;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public MediaCodecEncoder(String mime) {
+		mMime  = mime;
+		mCodec = MediaCodec.createEncoderByType(mime);
+	}
+
+	@Override
+	public void configure(int width, int height, int fps, int bps, int ifi, int colorFormat) {
+		MediaFormat format = MediaFormat.createVideoFormat(mMime, width, height);
+		format.setInteger(MediaFormat.KEY_BIT_RATE, bps);
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, ifi);
+		format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+		mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+	}
+
+	@Override
+	public Surface createInputSurface() {
+		return mCodec.createInputSurface();
+	}
+
+	@Override
+	public void queueSurfaceFrame(long presentationTimeUs) {
+		// The frames come from the surface
+	}
+
+	@Override
+	public void start() {
+		mCodec.start();
+	}
+
+	@Override
+	public void stop() {
+		mCodec.stop();
+	}
+
+	@Override
+	public void release() {
+		mCodec.release();
+	}
+
+	@Override
+	public ByteBuffer[] getInputBuffers() {
+		return mCodec.getInputBuffers();
+	}
+
+	@Override
+	public int dequeueInputBuffer(long timeoutUs) {
+		return mCodec.dequeueInputBuffer(timeoutUs);
+	}
+
+	@Override
+	public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+		mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+	}
+
+	@Override
+	public void signalEndOfInputStream() {
+		mCodec.signalEndOfInputStream();
+	}
+
+	@Override
+	public ByteBuffer[] getOutputBuffers() {
+		return mCodec.getOutputBuffers();
+	}
+
+	@Override
+	public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+		return mCodec.dequeueOutputBuffer(info, timeoutUs);
+	}
+
+	@Override
+	public void releaseOutputBuffer(int index) {
+		mCodec.releaseOutputBuffer(index, false);
+	}
+
+	@Override
+	public MediaFormat getOutputFormat() {
+		return mCodec.getOutputFormat();
+	}
+
+	/**
+	 * setParameters() through reflection (not in the API 18 SDK). Null
+	 * below API 19.
+	 */
+	@Override
+	public BitrateController.Target getBitrateTarget() {
+		if (Build.VERSION.SDK_INT < SDK_SET_PARAMETERS) {
+			return null;
+		}
+		final Method m;
+		try {
+			m = MediaCodec.class.getMethod("setParameters", Bundle.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+		return new BitrateController.Target() {
+			@Override
+			public boolean setBitrate(int bps) {
+				final Bundle params = new Bundle();
+				params.putInt(KEY_VIDEO_BITRATE, bps);
+				try {
+					m.invoke(mCodec, params);
+					return true;
+				} catch (Exception e) {
+					e.printStackTrace();
+					return false;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MP4 box writer for a single AVC track, shared by MyMuxer
+ * (MediaCodecTest16) and FragmentMuxer (MediaCodecTest18). Boxes are put
+ * into a ByteBuffer: begin() ... end() fixes the size of a box, the put*()
+ * methods write whole boxes. The sample table (stbl after stsd) is up to
+ * the muxer.
+ *
+ * trak/mdia/minf/stbl nest as:
+ *   moov { mvhd, trak { tkhd, mdia { mdhd, hdlr, minf { vmhd, dinf,
+ *   stbl { stsd, ... } } } }, ... }
+ */
+public final class Mp4Box {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	public static final int TIMESCALE = 90000; // media timescale (mdhd)
+
+	private static final int MOVIE_TIMESCALE = 1000; // mvhd, tkhd: ms
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	/**
+	 * Start a box. Returns its position for end().
+	 */
+	public static int begin(ByteBuffer b, String type) {
+		final int pos = b.position();
+		b.putInt(0);
+		putType(b, type);
+		return pos;
+	}
+
+	/**
+	 * Set the size of the box started at pos.
+	 */
+	public static void end(ByteBuffer b, int pos) {
+		b.putInt(pos, b.position() - pos);
+	}
+
+	public static void putType(ByteBuffer b, String type) {
+		for (int i=0; i<4; i++) {
+			b.put((byte)type.charAt(i));
+		}
+	}
+
+	/**
+	 * us -> TIMESCALE, rounded.
+	 */
+	public static long toTimescale(long us) {
+		return (us * TIMESCALE + 500000) / 1000000;
+	}
+
+	/**
+	 * ftyp: major brand isom, then the compatible brands.
+	 */
+	public static void putFtyp(ByteBuffer b, String... compatible) {
+		final int ftyp = begin(b, "ftyp");
+		putType(b, "isom");
+		b.putInt(0x00000200);
+		for (String brand : compatible) {
+			putType(b, brand);
+		}
+		end(b, ftyp);
+	}
+
+	/**
+	 * time: seconds since 1904, durationMs: 0 if in fragments.
+	 */
+	public static void putMvhd(ByteBuffer b, int time, int durationMs) {
+		final int mvhd = begin(b, "mvhd");
+		b.putInt(0x00000000);
+		b.putInt(time);
+		b.putInt(time);
+		b.putInt(MOVIE_TIMESCALE);
+		b.putInt(durationMs);
+		b.putInt(0x00010000); // rate 1.0
+		b.putShort((short)0x0100); // volume 1.0
+		b.put(new byte[10]);
+		putMatrix(b);
+		b.put(new byte[24]);
+		b.putInt(2); // next_track_id
+		end(b, mvhd);
+	}
+
+	public static void putTkhd(ByteBuffer b, int time, int durationMs, int width, int height) {
+		final int tkhd = begin(b, "tkhd");
+		b.putInt(0x00000007); // enabled, in movie, in preview
+		b.putInt(time);
+		b.putInt(time);
+		b.putInt(1); // track_id
+		b.putInt(0);
+		b.putInt(durationMs);
+		b.put(new byte[8]);
+		b.putShort((short)0); // layer
+		b.putShort((short)0); // alternate group
+		b.putShort((short)0); // volume
+		b.putShort((short)0);
+		putMatrix(b);
+		b.putInt(width  << 16);
+		b.putInt(height << 16);
+		end(b, tkhd);
+	}
+
+	/**
+	 * duration: TIMESCALE, 0 if in fragments.
+	 */
+	public static void putMdhd(ByteBuffer b, int time, long duration) {
+		final int mdhd = begin(b, "mdhd");
+		b.putInt(0x00000000);
+		b.putInt(time);
+		b.putInt(time);
+		b.putInt(TIMESCALE);
+		b.putInt((int)duration);
+		b.putShort((short)0x55C4); // "und"
+		b.putShort((short)0);
+		end(b, mdhd);
+	}
+
+	public static void putHdlr(ByteBuffer b) {
+		final int hdlr = begin(b, "hdlr");
+		b.putInt(0x00000000);
+		b.putInt(0);
+		putType(b, "vide");
+		b.put(new byte[12]);
+		b.put("VideoHandler".getBytes());
+		b.put((byte)0);
+		end(b, hdlr);
+	}
+
+	/**
+	 * vmhd and dinf (the samples are in this file).
+	 */
+	public static void putVmhdDinf(ByteBuffer b) {
+		final int vmhd = begin(b, "vmhd");
+		b.putInt(0x00000001);
+		b.put(new byte[8]);
+		end(b, vmhd);
+
+		final int dinf = begin(b, "dinf");
+		final int dref = begin(b, "dref");
+		b.putInt(0x00000000);
+		b.putInt(1);
+		final int url = begin(b, "url ");
+		b.putInt(0x00000001); // self-contained
+		end(b, url);
+		end(b, dref);
+		end(b, dinf);
+	}
+
+	/**
+	 * stsd with one avc1/avcC: sps, pps without start codes, 4-byte NAL
+	 * lengths.
+	 */
+	public static void putStsd(ByteBuffer b, int width, int height, byte[] sps, byte[] pps) {
+		final int stsd = begin(b, "stsd");
+		b.putInt(0x00000000);
+		b.putInt(1);
+		final int avc1 = begin(b, "avc1");
+		b.put(new byte[6]);
+		b.putShort((short)1); // data_reference_index
+		b.put(new byte[16]);
+		b.putShort((short)width);
+		b.putShort((short)height);
+		b.putInt(0x00480000); // 72dpi
+		b.putInt(0x00480000); // 72dpi
+		b.putInt(0);
+		b.putShort((short)1); // frame_count
+		b.put(new byte[32]);
+		b.putShort((short)24); // depth
+		b.putShort((short)-1);
+		final int avcC = begin(b, "avcC");
+		b.put((byte)1);
+		b.put(sps[1]);
+		b.put(sps[2]);
+		b.put(sps[3]);
+		b.put((byte)0xFF); // NAL length = 4
+		b.put((byte)0xE1); // 1 SPS
+		b.putShort((short)sps.length);
+		b.put(sps);
+		b.put((byte)1);    // 1 PPS
+		b.putShort((short)pps.length);
+		b.put(pps);
+		end(b, avcC);
+		end(b, avc1);
+		end(b, stsd);
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	private Mp4Box() {
+	}
+
+	private static void putMatrix(ByteBuffer b) {
+		b.putInt(0x00010000);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0x00010000);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0);
+		b.putInt(0x40000000);
+	}
+}
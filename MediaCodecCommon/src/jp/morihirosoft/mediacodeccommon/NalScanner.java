@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Annex-B NAL unit scanner over a ByteBuffer (heap, direct or mapped).
+ * NAL units are returned as views (offset, length, type) into the buffer,
+ * nothing is copied. Start codes are 00 00 01 with any number of leading
+ * 0x00, and trailing_zero_8bits are not part of a NAL unit. 8-byte words
+ * without 00 00 are skipped at once. (Same rules as
+ * MediaCodecTest16/jni/nalscan.c; shared by MyMuxer and FragmentMuxer)
+ */
+public class NalScanner {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	public static final int NAL_TYPE_MASK = 0x1F;
+
+	private static final long LOW7S = 0x7F7F7F7F7F7F7F7FL;
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private ByteBuffer mBuf  = null;
+	private boolean    mBigEndian = true; // mBuf.getLong()
+	private int        mEnd  = 0;
+	private int        mNext = -1; // next NAL unit, -1: none
+	private int        mRun  = 0;  // 0x00 run before mNext, or at mEnd
+
+	private int mOffset = 0;
+	private int mLength = 0;
+	private int mType   = 0;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	/**
+	 * Start to scan buf[start..end). Bytes before the first start code are
+	 * skipped. Returns false if there is no start code.
+	 */
+	public boolean reset(ByteBuffer buf, int start, int end) {
+		mBuf    = buf;
+		mBigEndian = (buf.order() == ByteOrder.BIG_ENDIAN);
+		mEnd    = end;
+		mOffset = 0;
+		mLength = 0;
+		mType   = 0;
+		mNext   = find(start);
+		return (mNext >= 0);
+	}
+
+	/**
+	 * Move to the next NAL unit. Returns false at the end.
+	 */
+	public boolean next() {
+		while (mNext >= 0) {
+			mOffset = mNext;
+			mNext = find(mOffset);
+			final int end = (mNext >= 0 ? mNext - 1 : mEnd) - mRun;
+			mLength = end - mOffset;
+			if (mLength > 0) {
+				mType = mBuf.get(mOffset) & NAL_TYPE_MASK;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int offset() {
+		return mOffset;
+	}
+
+	public int length() {
+		return mLength;
+	}
+
+	public int type() {
+		return mType;
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	/**
+	 * Returns the index just after the next 0x01 of a start code, or -1.
+	 * mRun is the 0x00 run before the 0x01, or at the end.
+	 */
+	private int find(int from) {
+		final ByteBuffer buf = mBuf;
+		final boolean big = mBigEndian;
+		final int end = mEnd;
+		int zeros = 0;
+		int i = from;
+		while (i < end) {
+			// Word at a time while no 00 00 is in reach: a start code has
+			// one, a lone 0x00 (as in CABAC data) is passed over. zeros is
+			// then the word's last 0x00, if any.
+			if (zeros <= 1) {
+				while (i + 8 <= end) {
+					final long v = buf.getLong(i);
+					final long m = ~(((v & LOW7S) + LOW7S) | v | LOW7S); // 0x80: 0x00 byte
+					final long pairs = (big ? m & (m << 8) : m & (m >>> 8));
+					final long first = (big ? m >>> 63 : (m >>> 7) & 1);
+					if (pairs != 0 || (zeros & first) != 0) {
+						break;
+					}
+					zeros = (int)(big ? (m >>> 7) & 1 : m >>> 63);
+					i += 8;
+				}
+				if (i >= end) {
+					break;
+				}
+			}
+
+			// Byte at a time, a word's worth before trying words again. No
+			// branch on 0x00 (dense 0x00 would mispredict it): only a start
+			// code branches.
+			final int stop = (end - i > 8 ? i + 8 : end);
+			while (i < stop) {
+				final byte c = buf.get(i++);
+				if (c == 1 && zeros >= 2) {
+					mRun = zeros;
+					return i;
+				}
+				zeros = (zeros + 1) & -(c == 0 ? 1 : 0);
+			}
+		}
+		mRun = zeros;
+		return -1;
+	}
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+/**
+ * VideoEncoder stand-in that looks at no pixels: it makes an H.264
+ * Annex-B stream of the configured size and bitrate (a real SPS/PPS,
+ * slices of filler), so the muxing, I/O and queueing around it can run
+ * off the device, as fast as they go. Deterministic: the same frames in,
+ * the same bytes out.
+ * <ul>
+ * <li>First INFO_OUTPUT_FORMAT_CHANGED, then SPS+PPS
+ * (BUFFER_FLAG_CODEC_CONFIG).</li>
+ * <li>One access unit per frame, an IDR every ifi seconds
+ * (BUFFER_FLAG_SYNC_FRAME). The GOP's bytes (bitrate x ifi) go
+ * I : P = I_WEIGHT : 1, each P frame +-25%.</li>
+ * <li>After the end of stream, an empty buffer with
+ * BUFFER_FLAG_END_OF_STREAM.</li>
+ * </ul>
+ * A frame is encoded when its output is dequeued; its input buffer is
+ * free again then. Only dequeueInputBuffer() waits. Surface input: no
+ * surface, queueSurfaceFrame() instead (a frame over INPUT_BUFFERS
+ * queued ones is dropped).
+ */
+public class SoftwareEncoder implements VideoEncoder {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	private static final int INPUT_BUFFERS  = 4;
+	private static final int OUTPUT_BUFFERS = 8;
+
+	private static final int  NAL_SLICE = 0x41; // nal_ref_idc=2, type=1
+	private static final int  NAL_IDR   = 0x65; // nal_ref_idc=3, type=5
+	private static final int  NAL_SPS   = 0x67;
+	private static final int  NAL_PPS   = 0x68;
+	private static final byte[] START_CODE = {0, 0, 0, 1};
+
+	private static final int  I_WEIGHT = 6;  // an I frame = 6 P frames
+	private static final int  MIN_AU   = 32; // bytes
+	private static final long ONES     = 0x0101010101010101L;
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private int          mWidth  = 0;
+	private int          mHeight = 0;
+	private int          mFps    = 0;
+	private int          mGop    = 1; // frames
+	private volatile int mBps    = 0;
+	private byte[]       mSps    = null;
+	private byte[]       mPps    = null;
+
+	private ByteBuffer[] mInputBufs  = null;
+	private ByteBuffer[] mOutputBufs = null;
+	private boolean[]    mInputFree  = null;
+	private boolean[]    mOutputFree = null;
+	private boolean      mStarted    = false;
+
+	// Queued frames (FIFO)
+	private final int[]  mQueuedIdx   = new int[INPUT_BUFFERS];
+	private final int[]  mQueuedSize  = new int[INPUT_BUFFERS];
+	private final long[] mQueuedPts   = new long[INPUT_BUFFERS];
+	private final int[]  mQueuedFlags = new int[INPUT_BUFFERS];
+	private int          mQueuedHead  = 0;
+	private int          mQueuedNum   = 0;
+
+	private boolean mFormatSent = false;
+	private boolean mConfigSent = false;
+	private boolean mEos        = false; // end of input
+	private boolean mEosSent    = false;
+	private long    mFrameNum   = 0;
+	private long    mLastPts    = 0;
+	private long    mRandom     = 0;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	@Override
+	synchronized public void configure(int width, int height, int fps, int bps, int ifi, int colorFormat) {
+		if (mSps != null) {
+			throw new IllegalStateException("configured twice");
+		}
+		if (colorFormat != MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar &&
+				colorFormat != MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar &&
+				colorFormat != MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
+			throw new IllegalArgumentException("color format: "+colorFormat);
+		}
+		if (width < 2 || height < 2 || fps < 1 || bps < 1) {
+			throw new IllegalArgumentException();
+		}
+		mWidth  = width;
+		mHeight = height;
+		mFps    = fps;
+		mGop    = Math.max(1, ifi * fps);
+		mBps    = bps;
+		mSps    = makeSps(width, height, fps);
+		mPps    = makePps();
+	}
+
+	@Override
+	public Surface createInputSurface() {
+		return null;
+	}
+
+	@Override
+	synchronized public void queueSurfaceFrame(long presentationTimeUs) {
+		if (!mStarted || mEos || mQueuedNum == INPUT_BUFFERS) {
+			return;
+		}
+		final int q = (mQueuedHead + mQueuedNum) % INPUT_BUFFERS;
+		mQueuedIdx[q]   = -1;
+		mQueuedSize[q]  = 1;
+		mQueuedPts[q]   = presentationTimeUs;
+		mQueuedFlags[q] = 0;
+		mQueuedNum++;
+	}
+
+	@Override
+	synchronized public void start() {
+		if (mSps == null || mStarted) {
+			throw new IllegalStateException();
+		}
+		final int frame = mWidth * mHeight * 3 / 2;
+		mInputBufs  = new ByteBuffer[INPUT_BUFFERS];
+		mOutputBufs = new ByteBuffer[OUTPUT_BUFFERS];
+		mInputFree  = new boolean[INPUT_BUFFERS];
+		mOutputFree = new boolean[OUTPUT_BUFFERS];
+		for (int i=0; i<INPUT_BUFFERS; i++) {
+			mInputBufs[i] = ByteBuffer.allocateDirect(frame);
+			mInputFree[i] = true;
+		}
+		for (int i=0; i<OUTPUT_BUFFERS; i++) {
+			mOutputBufs[i] = ByteBuffer.allocateDirect(frame);
+			mOutputFree[i] = true;
+		}
+		mQueuedHead = 0;
+		mQueuedNum  = 0;
+		mFormatSent = false;
+		mConfigSent = false;
+		mEos        = false;
+		mEosSent    = false;
+		mFrameNum   = 0;
+		mRandom     = 0;
+		mStarted    = true;
+	}
+
+	@Override
+	synchronized public void stop() {
+		mStarted = false;
+		notifyAll();
+	}
+
+	@Override
+	synchronized public void release() {
+		mStarted    = false;
+		mInputBufs  = null;
+		mOutputBufs = null;
+		notifyAll();
+	}
+
+	@Override
+	synchronized public ByteBuffer[] getInputBuffers() {
+		return mInputBufs;
+	}
+
+	@Override
+	synchronized public int dequeueInputBuffer(long timeoutUs) {
+		final long end = System.nanoTime() + timeoutUs * 1000;
+		while (mStarted && !mEos) {
+			for (int i=0; i<INPUT_BUFFERS; i++) {
+				if (mInputFree[i]) {
+					mInputFree[i] = false;
+					return i;
+				}
+			}
+			final long left = (timeoutUs < 0 ? 1000000000L : end - System.nanoTime());
+			if (left <= 0) {
+				break;
+			}
+			try {
+				wait(left / 1000000, (int)(left % 1000000));
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return MediaCodec.INFO_TRY_AGAIN_LATER;
+	}
+
+	@Override
+	synchronized public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+		if (!mStarted || mEos || index < 0 || index >= INPUT_BUFFERS || mInputFree[index]) {
+			throw new IllegalStateException("queueInputBuffer: "+index);
+		}
+		final int q = (mQueuedHead + mQueuedNum) % INPUT_BUFFERS;
+		mQueuedIdx[q]   = index;
+		mQueuedSize[q]  = size;
+		mQueuedPts[q]   = presentationTimeUs;
+		mQueuedFlags[q] = flags;
+		mQueuedNum++;
+		if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			mEos = true;
+		}
+	}
+
+	@Override
+	synchronized public void signalEndOfInputStream() {
+		mEos = true;
+		notifyAll();
+	}
+
+	@Override
+	synchronized public ByteBuffer[] getOutputBuffers() {
+		return mOutputBufs;
+	}
+
+	@Override
+	synchronized public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+		if (!mStarted) {
+			throw new IllegalStateException();
+		}
+		if (!mFormatSent) {
+			mFormatSent = true;
+			return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+		}
+		int o = -1;
+		for (int i=0; i<OUTPUT_BUFFERS; i++) {
+			if (mOutputFree[i]) {
+				o = i;
+				break;
+			}
+		}
+		if (o < 0) {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		final ByteBuffer out = mOutputBufs[o];
+		out.clear();
+		int flags;
+		long pts;
+		if (!mConfigSent) {
+			mConfigSent = true;
+			out.put(START_CODE).put(mSps).put(START_CODE).put(mPps);
+			flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+			pts   = 0;
+		} else if (mQueuedNum > 0) {
+			final int q = mQueuedHead;
+			mQueuedHead = (mQueuedHead + 1) % INPUT_BUFFERS;
+			mQueuedNum--;
+			if (mQueuedIdx[q] >= 0) {
+				mInputFree[mQueuedIdx[q]] = true;
+				notifyAll();
+			}
+			flags = mQueuedFlags[q] & MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+			pts   = mQueuedPts[q];
+			if (mQueuedSize[q] > 0) {
+				if (encodeFrame(out)) {
+					flags |= MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+				}
+			}
+			if (flags == 0 && out.position() == 0) {
+				return MediaCodec.INFO_TRY_AGAIN_LATER;
+			}
+			if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+				mEosSent = true;
+			}
+			mLastPts = pts;
+		} else if (mEos && !mEosSent) {
+			mEosSent = true;
+			flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+			pts   = mLastPts;
+		} else {
+			return MediaCodec.INFO_TRY_AGAIN_LATER;
+		}
+		mOutputFree[o] = false;
+		info.offset = 0;
+		info.size   = out.position();
+		info.presentationTimeUs = pts;
+		info.flags  = flags;
+		out.flip();
+		return o;
+	}
+
+	@Override
+	synchronized public void releaseOutputBuffer(int index) {
+		if (index < 0 || index >= OUTPUT_BUFFERS || mOutputFree[index]) {
+			throw new IllegalStateException("releaseOutputBuffer: "+index);
+		}
+		mOutputFree[index] = true;
+	}
+
+	@Override
+	synchronized public MediaFormat getOutputFormat() {
+		final MediaFormat format = MediaFormat.createVideoFormat("video/avc", mWidth, mHeight);
+		format.setByteBuffer("csd-0", ByteBuffer.allocate(4 + mSps.length).put(START_CODE).put(mSps));
+		format.setByteBuffer("csd-1", ByteBuffer.allocate(4 + mPps.length).put(START_CODE).put(mPps));
+		format.getByteBuffer("csd-0").flip();
+		format.getByteBuffer("csd-1").flip();
+		return format;
+	}
+
+	@Override
+	public BitrateController.Target getBitrateTarget() {
+		return new BitrateController.Target() {
+			@Override
+			public boolean setBitrate(int bps) {
+				mBps = bps;
+				return true;
+			}
+		};
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	// One access unit -> out. Returns true if an IDR.
+	private boolean encodeFrame(ByteBuffer out) {
+		final boolean sync = (mFrameNum % mGop == 0);
+		mFrameNum++;
+
+		final long unit = (long)mBps * mGop / mFps / 8 / (mGop - 1 + I_WEIGHT);
+		long size;
+		if (sync) {
+			size = unit * I_WEIGHT;
+		} else {
+			size = unit * 3 / 4 + (next() >>> 33) % (unit / 2 + 1);
+		}
+		size = Math.max(MIN_AU, Math.min(size, out.capacity()));
+
+		// start code, NAL header, filler without 0x00 (no emulation)
+		out.put(START_CODE).put((byte)(sync ? NAL_IDR : NAL_SLICE));
+		final int end = (int)size;
+		while (out.position() + 8 <= end) {
+			out.putLong(next() | ONES);
+		}
+		while (out.position() < end) {
+			out.put((byte)(next() | 1));
+		}
+		return sync;
+	}
+
+	private long next() {
+		mRandom = mRandom * 6364136223846793005L + 1442695040888963407L;
+		return mRandom;
+	}
+
+	private static byte[] makeSps(int width, int height, int fps) {
+		final int mbW = (width  + 15) / 16;
+		final int mbH = (height + 15) / 16;
+		final int mbps = mbW * mbH * fps;
+		final Bits b = new Bits();
+		b.u(8, 66);   // profile_idc: Baseline
+		b.u(8, 0xC0); // constraint_set0,1
+		b.u(8, (mbps <= 40500 ? 30 : (mbps <= 108000 ? 31 : (mbps <= 245760 ? 40 : 51)))); // level_idc
+		b.ue(0);      // seq_parameter_set_id
+		b.ue(0);      // log2_max_frame_num_minus4
+		b.ue(2);      // pic_order_cnt_type
+		b.ue(1);      // max_num_ref_frames
+		b.u(1, 0);    // gaps_in_frame_num_value_allowed_flag
+		b.ue(mbW - 1);
+		b.ue(mbH - 1);
+		b.u(1, 1);    // frame_mbs_only_flag
+		b.u(1, 1);    // direct_8x8_inference_flag
+		if (mbW * 16 != width || mbH * 16 != height) {
+			b.u(1, 1); // frame_cropping_flag (4:2:0: 2 pixel units)
+			b.ue(0);
+			b.ue((mbW * 16 - width) / 2);
+			b.ue(0);
+			b.ue((mbH * 16 - height) / 2);
+		} else {
+			b.u(1, 0);
+		}
+		b.u(1, 0);    // vui_parameters_present_flag
+		return b.toNal(NAL_SPS);
+	}
+
+	private static byte[] makePps() {
+		final Bits b = new Bits();
+		b.ue(0);      // pic_parameter_set_id
+		b.ue(0);      // seq_parameter_set_id
+		b.u(1, 0);    // entropy_coding_mode_flag: CAVLC
+		b.u(1, 0);    // bottom_field_pic_order_in_frame_present_flag
+		b.ue(0);      // num_slice_groups_minus1
+		b.ue(0);      // num_ref_idx_l0_default_active_minus1
+		b.ue(0);      // num_ref_idx_l1_default_active_minus1
+		b.u(1, 0);    // weighted_pred_flag
+		b.u(2, 0);    // weighted_bipred_idc
+		b.ue(0);      // pic_init_qp_minus26 (se)
+		b.ue(0);      // pic_init_qs_minus26 (se)
+		b.ue(0);      // chroma_qp_index_offset (se)
+		b.u(1, 1);    // deblocking_filter_control_present_flag
+		b.u(1, 0);    // constrained_intra_pred_flag
+		b.u(1, 0);    // redundant_pic_cnt_present_flag
+		return b.toNal(NAL_PPS);
+	}
+
+	// RBSP bit writer
+	private static class Bits {
+		private final byte[] mBuf = new byte[64];
+		private int mBits = 0;
+
+		void u(int n, int v) {
+			for (int i=n-1; i>=0; i--) {
+				if (((v >>> i) & 1) != 0) {
+					mBuf[mBits >> 3] |= (byte)(0x80 >> (mBits & 7));
+				}
+				mBits++;
+			}
+		}
+
+		void ue(int v) {
+			final int len = 32 - Integer.numberOfLeadingZeros(v + 1);
+			u(len - 1, 0);
+			u(len, v + 1);
+		}
+
+		// + rbsp_trailing_bits, emulation prevention
+		byte[] toNal(int header) {
+			u(1, 1);
+			final int n = (mBits + 7) >> 3;
+			final byte[] t = new byte[1 + n + n / 2];
+			int len = 0;
+			int zeros = 0;
+			t[len++] = (byte)header;
+			for (int i=0; i<n; i++) {
+				if (zeros >= 2 && (mBuf[i] & 0xFF) <= 3) {
+					t[len++] = 3;
+					zeros = 0;
+				}
+				t[len++] = mBuf[i];
+				zeros = (mBuf[i] == 0 ? zeros + 1 : 0);
+			}
+			final byte[] nal = new byte[len];
+			System.arraycopy(t, 0, nal, 0, len);
+			return nal;
+		}
+	}
+}
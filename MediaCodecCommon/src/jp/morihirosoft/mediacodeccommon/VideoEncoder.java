@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+/**
+ * The part of MediaCodec (as an encoder) MyRecorder uses, with the same
+ * return values (MediaCodec.INFO_*) and flags (MediaCodec.BUFFER_FLAG_*).
+ * MediaCodecEncoder is the real one, SoftwareEncoder a stand-in that runs
+ * off the device. Shared by MediaCodecTest16 (buffer input) and
+ * MediaCodecTest18 (surface input).
+ */
+public interface VideoEncoder {
+	/**
+	 * colorFormat: MediaCodecInfo.CodecCapabilities.COLOR_*. Throws if the
+	 * encoder can not take it.
+	 */
+	void configure(int width, int height, int fps, int bps, int ifi, int colorFormat);
+
+	/**
+	 * After configure() with COLOR_FormatSurface. Null: no surface, the
+	 * frames are told with queueSurfaceFrame().
+	 */
+	Surface createInputSurface();
+	/** A frame was drawn (surface input without a surface). */
+	void queueSurfaceFrame(long presentationTimeUs);
+
+	void start();
+	void stop();
+	void release();
+
+	ByteBuffer[] getInputBuffers();
+	int dequeueInputBuffer(long timeoutUs);
+	void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+	void signalEndOfInputStream();
+
+	ByteBuffer[] getOutputBuffers();
+	int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+	void releaseOutputBuffer(int index);
+	MediaFormat getOutputFormat();
+
+	/** Where to retune the bitrate at runtime. Null: fixed. */
+	BitrateController.Target getBitrateTarget();
+}
@@ -24,13 +24,28 @@ LOCAL_MODULE    := MediaCodecTest16
 
 # Source files
 LOCAL_SRC_FILES := \
+    EffectChain.cpp \
     Effector.cpp \
+    Preview.cpp \
     Utils.cpp \
+    Workers.cpp \
     cnvavc.c \
+    nalscan.c \
+    yuvconv.c \
     jp_morihirosoft_mediacodectest16_MainActivity.cpp
 
 #
 LOCAL_CFLAGS    := -Wall -Werror -Wno-deprecated
-LOCAL_LDLIBS    := -llog -lm
+LOCAL_LDLIBS    := -llog -lm -landroid
+
+# NEON kernels: only that file is built for NEON, and used if the CPU
+# has it (cpufeatures)
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_CFLAGS    += -DHAVE_NEON=1
+LOCAL_SRC_FILES += yuvconv_neon.c.neon
+LOCAL_STATIC_LIBRARIES := cpufeatures
+endif
 
 include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
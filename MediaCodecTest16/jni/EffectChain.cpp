@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <stdlib.h>
+#include <string.h>
+
+#include "EffectChain.h"
+
+#define MAX_HBLUR (16)
+
+// 0..255 without branches (v: within +-2^23)
+static inline uint32_t clamp8(int32_t v)
+{
+	v &= ~(v >> 31);
+	return (uint32_t)(v | ((255 - v) >> 31)) & 0xFF;
+}
+
+//---------------------------------------------------------------------
+// Effects
+//---------------------------------------------------------------------
+// Color grade: [R G B] = M * [R G B 256] / 256 (alpha kept)
+class ColorMatrixEffect : public Effect {
+public:
+	ColorMatrixEffect(const int32_t* m) { memcpy(mM, m, sizeof(mM)); }
+	Kind kind(void) const { return PER_PIXEL; }
+	void pixels(uint32_t* p, int32_t x, int32_t y, int32_t n) const {
+		// (locals: p may alias mM as far as the compiler knows)
+		const int32_t m0 = mM[0], m1 = mM[1], m2  = mM[2],  m3  = (mM[3]  << 8) + 128;
+		const int32_t m4 = mM[4], m5 = mM[5], m6  = mM[6],  m7  = (mM[7]  << 8) + 128;
+		const int32_t m8 = mM[8], m9 = mM[9], m10 = mM[10], m11 = (mM[11] << 8) + 128;
+		for (int32_t i=0; i<n; i++) {
+			const uint32_t c = p[i];
+			const int32_t  R = (c >> 16) & 0xFF, G = (c >> 8) & 0xFF, B = c & 0xFF;
+			p[i] = (c & 0xFF000000)
+				| (clamp8((m0*R + m1*G + m2 *B + m3 ) >> 8) << 16)
+				| (clamp8((m4*R + m5*G + m6 *B + m7 ) >> 8) <<  8)
+				|  clamp8((m8*R + m9*G + m10*B + m11) >> 8);
+		}
+	}
+private:
+	int32_t mM[12];
+};
+
+// Image blended over the rectangle [x,x+w) x [y,y+h) by its alpha
+class WatermarkEffect : public Effect {
+public:
+	WatermarkEffect(int32_t x, int32_t y, int32_t w, int32_t h, const int32_t* argb)
+	: mX(x), mY(y), mW(w), mH(h), mImage(new uint32_t[w * h]) {
+		memcpy(mImage, argb, sizeof(uint32_t) * w * h);
+	}
+	~WatermarkEffect() { delete[] mImage; }
+	Kind kind(void) const { return PER_PIXEL; }
+	void pixels(uint32_t* p, int32_t x, int32_t y, int32_t n) const {
+		if (y < mY || y >= mY + mH) {
+			return;
+		}
+		const int32_t x0 = (x > mX ? x : mX);
+		const int32_t x1 = (x + n < mX + mW ? x + n : mX + mW);
+		const uint32_t* row = mImage + mW * (y - mY);
+		for (int32_t i=x0; i<x1; i++) {
+			const uint32_t s = row[i - mX];
+			const uint32_t a = s >> 24;
+			if (a == 0) {
+				continue;
+			}
+			// (s*a + d*(255-a)) / 255 on R|B and G at once
+			const uint32_t d  = p[i - x];
+			const uint32_t rb = (s & 0xFF00FF) * a + (d & 0xFF00FF) * (255 - a) + 0x800080;
+			const uint32_t g  = (s & 0x00FF00) * a + (d & 0x00FF00) * (255 - a) + 0x008000;
+			p[i - x] = (d & 0xFF000000)
+				| ((((rb + ((rb >> 8) & 0xFF00FF)) >> 8) & 0xFF00FF))
+				| ((((g  + ((g  >> 8) & 0x00FF00)) >> 8) & 0x00FF00));
+		}
+	}
+private:
+	int32_t   mX;
+	int32_t   mY;
+	int32_t   mW;
+	int32_t   mH;
+	uint32_t* mImage;
+};
+
+// Box blur of 2r+1 pixels along the rows (alpha kept). In place: the
+// source pixels still needed are kept in a ring. The sums are divided
+// by multiplying (exact for these sums).
+class HBlurEffect : public Effect {
+public:
+	HBlurEffect(int32_t r) : mR(r) {
+		for (int32_t n=1; n<=2*MAX_HBLUR+1; n++) {
+			mInv[n] = ((1 << 24) + n - 1) / n;
+		}
+		mInv[0] = 0;
+	}
+	Kind kind(void) const { return PER_TILE; }
+	void tile(uint32_t* rgb, int32_t w, int32_t y0, int32_t y1) const {
+		const int32_t r = (mR < w ? mR : w - 1);
+		uint32_t ring[MAX_HBLUR + 1];
+		for (int32_t y=y0; y<y1; y++) {
+			uint32_t* q = rgb + w * y;
+			// R and B side by side (2x16bit), G
+			uint32_t srb = 0, sg = 0;
+			int32_t  cnt = 0;
+			for (int32_t x=0; x<=r; x++) {
+				srb += q[x] & 0xFF00FF;
+				sg  += (q[x] >> 8) & 0xFF;
+				cnt++;
+			}
+			for (int32_t x=0; x<w; x++) {
+				const uint32_t inv = mInv[cnt];
+				ring[x % (r + 1)] = q[x];
+				q[x] = (q[x] & 0xFF000000)
+					| (((srb >> 16) * inv >> 24) << 16)
+					| (((sg         * inv) >> 24) << 8)
+					|  ((srb & 0xFFFF) * inv >> 24);
+				if (x - r >= 0) {
+					const uint32_t c = ring[(x - r) % (r + 1)];
+					srb -= c & 0xFF00FF;
+					sg  -= (c >> 8) & 0xFF;
+					cnt--;
+				}
+				if (x + r + 1 < w) {
+					const uint32_t c = q[x + r + 1];
+					srb += c & 0xFF00FF;
+					sg  += (c >> 8) & 0xFF;
+					cnt++;
+				}
+			}
+		}
+	}
+private:
+	int32_t  mR;
+	uint32_t mInv[2 * MAX_HBLUR + 2]; // 2^24 / n (rounded up)
+};
+
+Effect* Effect::create(int32_t type, const int32_t* params, int32_t n)
+{
+	switch (type) {
+	case COLOR_MATRIX:
+		if (n < 12) {
+			return NULL;
+		}
+		return new ColorMatrixEffect(params);
+	case WATERMARK:
+		if (n < 4 || params[2] <= 0 || params[3] <= 0 || n - 4 < params[2] * params[3]) {
+			return NULL;
+		}
+		return new WatermarkEffect(params[0], params[1], params[2], params[3], params + 4);
+	case HBLUR:
+		if (n < 1 || params[0] < 1 || params[0] > MAX_HBLUR) {
+			return NULL;
+		}
+		return new HBlurEffect(params[0]);
+	default:
+		return NULL;
+	}
+}
+
+//---------------------------------------------------------------------
+// Effect chain
+//---------------------------------------------------------------------
+EffectChain::EffectChain(void)
+: mNum(0)
+, mStageNum(0)
+{
+}
+
+EffectChain::~EffectChain(void)
+{
+	clear();
+}
+
+int32_t EffectChain::add(Effect* effect)
+{
+	if (effect == NULL || mNum >= MAX_EFFECTS) {
+		delete effect;
+		return -1;
+	}
+	const bool pp = (effect->kind() == Effect::PER_PIXEL);
+	if (pp && mStageNum > 0 && mStages[mStageNum - 1].perPixel) {
+		mStages[mStageNum - 1].num++;
+	} else {
+		Stage& s = mStages[mStageNum++];
+		s.first    = mNum;
+		s.num      = 1;
+		s.perPixel = pp;
+	}
+	mEffects[mNum] = effect;
+	return mNum++;
+}
+
+void EffectChain::clear(void)
+{
+	for (int32_t i=0; i<mNum; i++) {
+		delete mEffects[i];
+	}
+	mNum      = 0;
+	mStageNum = 0;
+}
+
+void EffectChain::run(int32_t stage, uint32_t* rgb, int32_t w, int32_t y0, int32_t y1) const
+{
+	const Stage&  s  = mStages[stage];
+	Effect* const* e = mEffects + s.first;
+	if (!s.perPixel) {
+		e[0]->tile(rgb, w, y0, y1);
+		return;
+	}
+	for (int32_t y=y0; y<y1; y++) {
+		uint32_t* q = rgb + w * y;
+		for (int32_t x=0; x<w; x+=CHUNK) {
+			const int32_t n = (w - x < CHUNK ? w - x : CHUNK);
+			for (int32_t i=0; i<s.num; i++) {
+				e[i]->pixels(q + x, x, y, n);
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef __EFFECTCHAIN__
+#define __EFFECTCHAIN__
+
+#include <stdint.h>
+
+//---------------------------------------------------------------------
+// Effect
+//---------------------------------------------------------------------
+// One step of the chain, on the ARGB frame in place. Called from all
+// the worker threads at once (for their own rows): no state may change
+// while drawing.
+class Effect {
+public:
+	enum Kind {
+		PER_PIXEL, // each pixel from itself only: pixels()
+		PER_TILE   // needs its neighbours: tile()
+	};
+
+	// Types for create() (= MainActivity.EFFECT_*)
+	enum Type {
+		COLOR_MATRIX = 1, // params: 3x4 matrix (1/256), R,G,B rows
+		WATERMARK    = 2, // params: x, y, w, h, ARGB x w*h (alpha blended)
+		HBLUR        = 3  // params: radius (1..16), box blur along the rows
+	};
+
+	virtual ~Effect() {}
+	virtual Kind kind(void) const = 0;
+	// PER_PIXEL: n pixels of row y from column x.
+	virtual void pixels(uint32_t* p, int32_t x, int32_t y, int32_t n) const {}
+	// PER_TILE: rows [y0,y1) of the w-wide frame. Only those rows may be
+	// read (the others belong to other threads).
+	virtual void tile(uint32_t* rgb, int32_t w, int32_t y0, int32_t y1) const {}
+
+	// NULL if the type or the params are wrong.
+	static Effect* create(int32_t type, const int32_t* params, int32_t n);
+};
+
+//---------------------------------------------------------------------
+// Effect chain
+//---------------------------------------------------------------------
+// The effects in the order added, grouped into stages: consecutive
+// PER_PIXEL effects make one stage that is run chunk by chunk (all its
+// effects on a chunk while it is in the cache, one pass over the frame
+// for the stage), each PER_TILE effect is a stage of its own.
+class EffectChain {
+public:
+	EffectChain(void);
+	~EffectChain(void);
+
+	// Takes the effect (deleted by clear()). Returns its index, or -1.
+	int32_t add(Effect* effect);
+	void clear(void);
+	bool empty(void) const { return mNum == 0; }
+
+	int32_t stages(void) const { return mStageNum; }
+	bool perPixel(int32_t stage) const { return mStages[stage].perPixel; }
+	// Stage on rows [y0,y1) of the w-wide frame
+	void run(int32_t stage, uint32_t* rgb, int32_t w, int32_t y0, int32_t y1) const;
+
+private:
+	enum {
+		MAX_EFFECTS = 16,
+		CHUNK       = 128  // pixels
+	};
+	struct Stage {
+		int32_t first;
+		int32_t num;
+		bool    perPixel;
+	};
+
+	Effect* mEffects[MAX_EFFECTS];
+	int32_t mNum;
+	Stage   mStages[MAX_EFFECTS];
+	int32_t mStageNum;
+};
+
+#endif // __EFFECTCHAIN__
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 #include "Effector.h"
+#include "yuvconv.h"
 
 #define  LOG_TAG "Effector"
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
@@ -23,12 +24,102 @@
 #define  LOGI(...)
 #endif
 
+#define MIN_HIDDEN (16) // columns
+
+// ARGB -> Y/U/V (same formula as yuvconv.c)
+static inline uint8_t rgb_y(uint32_t c)
+{
+	const int32_t R = (c >> 16) & 0xFF, G = (c >> 8) & 0xFF, B = c & 0xFF;
+	return (uint8_t)((( 66*R + 129*G +  25*B + 128) >> 8) +  16);
+}
+static inline uint8_t rgb_u(uint32_t c)
+{
+	const int32_t R = (c >> 16) & 0xFF, G = (c >> 8) & 0xFF, B = c & 0xFF;
+	return (uint8_t)(((-38*R -  74*G + 112*B + 128) >> 8) + 128);
+}
+static inline uint8_t rgb_v(uint32_t c)
+{
+	const int32_t R = (c >> 16) & 0xFF, G = (c >> 8) & 0xFF, B = c & 0xFF;
+	return (uint8_t)(((112*R -  94*G -  18*B + 128) >> 8) + 128);
+}
+
+// U/V of the 2x2 block at column x (even) of rows r0, r1: from the
+// average RGB of its opaque pixels, rounded as in yuvconv.c ((sum+2)>>2
+// for a whole block). The top-left pixel is opaque.
+static inline void block_uv(const uint32_t* r0, const uint32_t* r1, int32_t x, uint8_t* u, uint8_t* v)
+{
+	const uint32_t q[4] = { r0[x], r0[x + 1], r1[x], r1[x + 1] };
+	int32_t R = 0, G = 0, B = 0, n = 0;
+	for (int32_t k=0; k<4; k++) {
+		if ((q[k] & 0xFF000000) != 0) {
+			R += (q[k] >> 16) & 0xFF;
+			G += (q[k] >>  8) & 0xFF;
+			B += (q[k]      ) & 0xFF;
+			n++;
+		}
+	}
+	R = (R + n / 2) / n;
+	G = (G + n / 2) / n;
+	B = (B + n / 2) / n;
+	const uint32_t c = (R << 16) | (G << 8) | B;
+	*u = rgb_u(c);
+	*v = rgb_v(c);
+}
+
+// ARGB -> RGBX_8888 (bytes R,G,B,0xFF; little endian: 0xFFBBGGRR)
+static inline uint32_t to_rgbx(uint32_t c)
+{
+	return (__builtin_bswap32(c) >> 8) | 0xFF000000;
+}
+
+// Source Y [x0,x1) of a row -> dst (hflip: read right to left)
+static inline void copy_y(const uint8_t* s, uint8_t* d, int32_t x0, int32_t x1, int32_t w, bool hflip)
+{
+	if (!hflip) {
+		memcpy(d + x0, s + x0, x1 - x0);
+		return;
+	}
+	const uint8_t* p = s + w - 1 - x0;
+	for (int32_t x=x0; x<x1; x++) {
+		d[x] = *p--;
+	}
+}
+
+// Source V/U pairs [c0,c1) of a row (NV21) -> dst U/V
+static inline void copy_c(const uint8_t* s, uint8_t* du, uint8_t* dv, int32_t step,
+		int32_t c0, int32_t c1, int32_t w2, bool hflip)
+{
+	const uint8_t* p  = s + 2 * (hflip ? w2 - 1 - c0 : c0);
+	const int32_t  ps = (hflip ? -2 : 2);
+	for (int32_t c=c0; c<c1; c++) {
+		du[c * step] = p[1];
+		dv[c * step] = p[0];
+		p += ps;
+	}
+}
+
 Effector::Effector(void)
 : mUtils(NULL)
 , mVideoWidth(0)
 , mVideoHeight(0)
 , mVideoArea(0)
-, mMaskP(NULL)
+, mRows(NULL)
+, mSpans(NULL)
+, mCRows(NULL)
+, mCSpans(NULL)
+, mPoolRGB(NULL)
+, mPoolY(NULL)
+, mPoolUV(NULL)
+, mVRows(NULL)
+, mVis(NULL)
+, mPW(0)
+, mPH(0)
+, mPXSrc(NULL)
+, mPXOut(NULL)
+, mPYMap(NULL)
+, mPRows(NULL)
+, mPSpans(NULL)
+, mPPool(NULL)
 {
 }
 
@@ -37,35 +128,487 @@ Effector::~Effector(void)
 	quit();
 }
 
-int32_t Effector::init(Utils* utils, int32_t width, int32_t height, uint32_t* maskP)
+int32_t Effector::init(Utils* utils, int32_t width, int32_t height, const uint32_t* maskP)
 {
+	quit();
 	mUtils       = utils;
 	mVideoWidth  = width;
 	mVideoHeight = height;
 	mVideoArea   = width * height;
-	mMaskP       = maskP;
+
+	const int32_t w2 = width  / 2;
+	const int32_t h2 = height / 2;
+
+	// Count (pixels, then U/V = top-left pixels of the even rows)
+	int32_t nSpans = 0, nPool = 0, nCSpans = 0, nCPool = 0;
+	for (int32_t y=0; y<height; y++) {
+		nSpans += findSpans(maskP + width * y, 1, width, NULL, &nPool);
+	}
+	for (int32_t cy=0; cy<h2; cy++) {
+		const uint32_t* row = maskP + width * cy * 2;
+		nCSpans += findCSpans(row, row + width, w2, NULL, &nCPool, NULL);
+	}
+	mRows    = new int32_t[height + 1];
+	mSpans   = new MaskSpan[nSpans > 0 ? nSpans : 1];
+	mCRows   = new int32_t[h2 + 1];
+	mCSpans  = new MaskSpan[nCSpans > 0 ? nCSpans : 1];
+	mPoolRGB = new uint32_t[nPool > 0 ? nPool : 1];
+	mPoolY   = new uint8_t[nPool > 0 ? nPool : 1];
+	mPoolUV  = new uint8_t[nCPool > 0 ? nCPool * 2 : 2];
+
+	// Spans, pools
+	nSpans = 0;
+	nPool  = 0;
+	for (int32_t y=0; y<height; y++) {
+		const uint32_t* row = maskP + width * y;
+		mRows[y] = nSpans;
+		const int32_t n = findSpans(row, 1, width, mSpans + nSpans, &nPool);
+		for (int32_t i=nSpans; i<nSpans+n; i++) {
+			MaskSpan& s = mSpans[i];
+			s.y = rgb_y(s.argb);
+			for (int32_t x=s.x0; s.off>=0 && x<s.x1; x++) {
+				mPoolRGB[s.off + x - s.x0] = row[x];
+				mPoolY  [s.off + x - s.x0] = rgb_y(row[x]);
+			}
+		}
+		nSpans += n;
+	}
+	mRows[height] = nSpans;
+
+	nCSpans = 0;
+	nCPool  = 0;
+	for (int32_t cy=0; cy<h2; cy++) {
+		const uint32_t* row = maskP + width * cy * 2;
+		mCRows[cy] = nCSpans;
+		nCSpans += findCSpans(row, row + width, w2, mCSpans + nCSpans, &nCPool, mPoolUV);
+	}
+	mCRows[h2] = nCSpans;
+
+	// Columns to convert
+	int32_t nVis = 0;
+	for (int32_t p=0; p<h2; p++) {
+		nVis += findVisible(p, NULL);
+	}
+	mVRows = new int32_t[h2 + 1];
+	mVis   = new ColRange[nVis > 0 ? nVis : 1];
+	nVis = 0;
+	for (int32_t p=0; p<h2; p++) {
+		mVRows[p] = nVis;
+		nVis += findVisible(p, mVis + nVis);
+	}
+	mVRows[h2] = nVis;
+
+	LOGI("%s(L=%d): spans=%d/%d, pool=%d/%d, ranges=%d", __func__, __LINE__, nSpans, nCSpans, nPool, nCPool, nVis);
 	return 0;
 }
 
 int32_t Effector::quit(void)
 {
+	delete[] mRows;
+	delete[] mSpans;
+	delete[] mCRows;
+	delete[] mCSpans;
+	delete[] mPoolRGB;
+	delete[] mPoolY;
+	delete[] mPoolUV;
+	delete[] mVRows;
+	delete[] mVis;
+	mChain.clear();
+	mRows    = NULL;
+	mSpans   = NULL;
+	mCRows   = NULL;
+	mCSpans  = NULL;
+	mPoolRGB = NULL;
+	mPoolY   = NULL;
+	mPoolUV  = NULL;
+	mVRows   = NULL;
+	mVis     = NULL;
+	quitPreview();
 	return 0;
 }
 
-int32_t Effector::draw(uint8_t* src_yuv, uint32_t* dst_rgb)
+// Rows [y0,y1) only (even; y1<0: to the bottom)
+int32_t Effector::draw(const uint8_t* src_yuv, uint32_t* dst_rgb, int32_t y0, int32_t y1, bool hflip)
 {
-	mUtils->yuv_YUVtoRGB(src_yuv, dst_rgb);
+	if (mRows == NULL) {
+		return -1;
+	}
+	if (y1 < 0) {
+		y1 = mVideoHeight;
+	}
+	// Row pair by row pair, while it is in the cache: only what the mask
+	// does not hide, the mask, and the chain's first stage if per-pixel.
+	const int32_t vw   = mVideoWidth;
+	const bool    fuse = (mChain.stages() > 0 && mChain.perPixel(0));
+	for (int32_t y=y0; y<y1; y+=2) {
+		for (int32_t i=mVRows[y/2]; i<mVRows[y/2+1]; i++) {
+			mUtils->yuv_YUVtoRGBCols(src_yuv, dst_rgb, y, y + 2, mVis[i].x0, mVis[i].x1, hflip);
+		}
+
+		// Masking (effect sample)
+		for (int32_t j=y; j<y+2; j++) {
+			uint32_t* q = dst_rgb + vw * j;
+			for (int32_t i=mRows[j]; i<mRows[j+1]; i++) {
+				const MaskSpan& s = mSpans[i];
+				if (s.off < 0) {
+					for (int32_t x=s.x0; x<s.x1; x++) {
+						q[x] = s.argb;
+					}
+				} else {
+					memcpy(q + s.x0, mPoolRGB + s.off, sizeof(uint32_t) * (s.x1 - s.x0));
+				}
+			}
+		}
 
-	// Masking (effect sample)
-	uint32_t* p = mMaskP;
-	uint32_t* q = dst_rgb;
-	for (int i=mVideoArea; i>0; i--) {
-		if ((*p & 0xFF000000) != 0) {
-			*q = *p;
+		if (fuse) {
+			mChain.run(0, dst_rgb, vw, y, y + 2);
 		}
-		p++;
-		q++;
+	}
+
+	// The other stages over the band
+	for (int32_t s=(fuse ? 1 : 0); s<mChain.stages(); s++) {
+		mChain.run(s, dst_rgb, vw, y0, y1);
 	}
 
 	return 0;
 }
+
+// Rows [y0,y1) only (even; y1<0: to the bottom)
+int32_t Effector::drawYUV(const uint8_t* src_yuv, int32_t dst_fmt, uint8_t* dst_yuv, int32_t y0, int32_t y1, bool hflip)
+{
+	if (mRows == NULL || !mChain.empty()) {
+		return -1;
+	}
+	if (y1 < 0) {
+		y1 = mVideoHeight;
+	}
+	const int32_t vw  = mVideoWidth;
+	const int32_t vw2 = vw / 2;
+	const int32_t va  = mVideoArea;
+
+	// Y: the source between the spans, the mask in them
+	for (int32_t y=y0; y<y1; y++) {
+		const uint8_t* s = src_yuv + vw * y;
+		uint8_t*       d = dst_yuv + vw * y;
+		int32_t x = 0;
+		for (int32_t i=mRows[y]; i<mRows[y+1]; i++) {
+			const MaskSpan& m = mSpans[i];
+			copy_y(s, d, x, m.x0, vw, hflip);
+			if (m.off < 0) {
+				memset(d + m.x0, m.y, m.x1 - m.x0);
+			} else {
+				memcpy(d + m.x0, mPoolY + m.off, m.x1 - m.x0);
+			}
+			x = m.x1;
+		}
+		copy_y(s, d, x, vw, vw, hflip);
+	}
+
+	// U/V (src: NV21 = VU)
+	int32_t uOff, vOff, cStep, cStride;
+	switch (dst_fmt) {
+	case 1: // NV12
+		uOff = va;     vOff = va + 1;          cStep = 2; cStride = vw;  break;
+	case 2: // NV21
+		uOff = va + 1; vOff = va;              cStep = 2; cStride = vw;  break;
+	case 3: // I420
+		uOff = va;     vOff = va + va / 4;     cStep = 1; cStride = vw2; break;
+	default:
+		return -1;
+	}
+	for (int32_t cy=y0/2; cy<y1/2; cy++) {
+		const uint8_t* s  = src_yuv + va + vw * cy;
+		uint8_t*       du = dst_yuv + uOff + cStride * cy;
+		uint8_t*       dv = dst_yuv + vOff + cStride * cy;
+		int32_t c = 0;
+		for (int32_t i=mCRows[cy]; i<mCRows[cy+1]; i++) {
+			const MaskSpan& m = mCSpans[i];
+			copy_c(s, du, dv, cStep, c, m.x0, vw2, hflip);
+			for (int32_t k=m.x0; k<m.x1; k++) {
+				if (m.off < 0) {
+					du[k * cStep] = m.u;
+					dv[k * cStep] = m.v;
+				} else {
+					du[k * cStep] = mPoolUV[(m.off + k - m.x0) * 2    ];
+					dv[k * cStep] = mPoolUV[(m.off + k - m.x0) * 2 + 1];
+				}
+			}
+			c = m.x1;
+		}
+		copy_c(s, du, dv, cStep, c, vw2, vw2, hflip);
+	}
+
+	return 0;
+}
+
+int32_t Effector::initPreview(int32_t pw, int32_t ph, bool hflip)
+{
+	quitPreview();
+	if (mRows == NULL || pw <= 0 || ph <= 0 || pw > mVideoWidth || ph > mVideoHeight) {
+		return -1;
+	}
+	mPW = pw;
+	mPH = ph;
+
+	// Blocks at the preview pixels' centers
+	const int32_t vw = mVideoWidth;
+	const int32_t vh = mVideoHeight;
+	mPXSrc = new int32_t[pw];
+	mPXOut = new int32_t[pw];
+	mPYMap = new int32_t[ph];
+	for (int32_t x=0; x<pw; x++) {
+		mPXOut[x] = (int32_t)(((int64_t)(2 * x + 1) * vw) / (4 * pw)) * 2;
+		mPXSrc[x] = (hflip ? vw - 2 - mPXOut[x] : mPXOut[x]);
+	}
+	for (int32_t y=0; y<ph; y++) {
+		mPYMap[y] = (int32_t)(((int64_t)(2 * y + 1) * vh) / (4 * ph)) * 2;
+	}
+
+	// Mask at the preview size: spans as for the frame
+	uint32_t* row = new uint32_t[pw];
+	int32_t nSpans = 0, nPool = 0;
+	for (int32_t y=0; y<ph; y++) {
+		previewMaskRow(y, row);
+		nSpans += findSpans(row, 1, pw, NULL, &nPool);
+	}
+	mPRows  = new int32_t[ph + 1];
+	mPSpans = new MaskSpan[nSpans > 0 ? nSpans : 1];
+	mPPool  = new uint32_t[nPool > 0 ? nPool : 1];
+	nSpans = 0;
+	nPool  = 0;
+	for (int32_t y=0; y<ph; y++) {
+		previewMaskRow(y, row);
+		mPRows[y] = nSpans;
+		const int32_t n = findSpans(row, 1, pw, mPSpans + nSpans, &nPool);
+		for (int32_t i=nSpans; i<nSpans+n; i++) {
+			MaskSpan& s = mPSpans[i];
+			s.argb = to_rgbx(s.argb);
+			for (int32_t x=s.x0; s.off>=0 && x<s.x1; x++) {
+				mPPool[s.off + x - s.x0] = to_rgbx(row[x]);
+			}
+		}
+		nSpans += n;
+	}
+	mPRows[ph] = nSpans;
+	delete[] row;
+
+	LOGI("%s(L=%d): %dx%d, spans=%d, pool=%d", __func__, __LINE__, pw, ph, nSpans, nPool);
+	return 0;
+}
+
+// Preview rows of frame rows [y0,y1) (even)
+int32_t Effector::drawPreview(const uint8_t* src_yuv, uint32_t* dst, int32_t stride, int32_t y0, int32_t y1)
+{
+	if (mPRows == NULL || !mChain.empty()) {
+		return -1;
+	}
+	for (int32_t y=0; y<mPH; y++) {
+		if (mPYMap[y] < y0 || mPYMap[y] >= y1) {
+			continue;
+		}
+		// Only what the mask does not hide
+		uint32_t* d = dst + stride * y;
+		int32_t x = 0;
+		for (int32_t i=mPRows[y]; i<mPRows[y+1]; i++) {
+			const MaskSpan& m = mPSpans[i];
+			if (x < m.x0) {
+				yuvconv_nv21_to_rgbx_row(src_yuv, mVideoWidth, mVideoHeight, mPYMap[y], mPXSrc, d, x, m.x0);
+			}
+			if (m.off < 0) {
+				for (int32_t k=m.x0; k<m.x1; k++) {
+					d[k] = m.argb;
+				}
+			} else {
+				memcpy(d + m.x0, mPPool + m.off, sizeof(uint32_t) * (m.x1 - m.x0));
+			}
+			x = m.x1;
+		}
+		if (x < mPW) {
+			yuvconv_nv21_to_rgbx_row(src_yuv, mVideoWidth, mVideoHeight, mPYMap[y], mPXSrc, d, x, mPW);
+		}
+	}
+	return 0;
+}
+
+// Preview rows of frame rows [y0,y1) (even)
+int32_t Effector::copyPreview(const uint32_t* rgb, uint32_t* dst, int32_t stride, int32_t y0, int32_t y1)
+{
+	if (mPYMap == NULL) {
+		return -1;
+	}
+	for (int32_t y=0; y<mPH; y++) {
+		if (mPYMap[y] < y0 || mPYMap[y] >= y1) {
+			continue;
+		}
+		const uint32_t* s = rgb + mVideoWidth * mPYMap[y];
+		uint32_t*       d = dst + stride * y;
+		for (int32_t x=0; x<mPW; x++) {
+			d[x] = to_rgbx(s[mPXOut[x]]);
+		}
+	}
+	return 0;
+}
+
+//---------------------------------------------------------------------
+// PRIVATE METHODS
+//---------------------------------------------------------------------
+// Opaque runs of row[0], row[step], ... row[(n-1)*step]. Fills spans
+// (x0, x1, off, argb) if not NULL, and adds the pool size of the
+// non-solid runs to *pool. Returns the number of runs.
+int32_t Effector::findSpans(const uint32_t* row, int32_t step, int32_t n, MaskSpan* spans, int32_t* pool)
+{
+	int32_t cnt = 0;
+	int32_t x = 0;
+	while (x < n) {
+		if ((row[x * step] & 0xFF000000) == 0) {
+			x++;
+			continue;
+		}
+		const int32_t x0 = x;
+		const uint32_t c = row[x0 * step];
+		bool solid = true;
+		while (x < n && (row[x * step] & 0xFF000000) != 0) {
+			solid = solid && (row[x * step] == c);
+			x++;
+		}
+		if (spans != NULL) {
+			MaskSpan& s = spans[cnt];
+			s.x0   = x0;
+			s.x1   = x;
+			s.off  = (solid ? -1 : *pool);
+			s.argb = c;
+			s.y    = 0;
+			s.u    = 0;
+			s.v    = 0;
+		}
+		if (!solid) {
+			*pool += x - x0;
+		}
+		cnt++;
+	}
+	return cnt;
+}
+
+// U/V runs of the row pair (r0, r1): the 2x2 blocks whose top-left pixel
+// is opaque, U/V by block_uv(). A run is solid if all its blocks have the
+// same U/V; else they go to poolUV at *pool. Fills spans (and poolUV) if
+// not NULL. Returns the number of runs.
+int32_t Effector::findCSpans(const uint32_t* r0, const uint32_t* r1, int32_t n, MaskSpan* spans, int32_t* pool, uint8_t* poolUV)
+{
+	int32_t cnt = 0;
+	int32_t c = 0;
+	while (c < n) {
+		if ((r0[c * 2] & 0xFF000000) == 0) {
+			c++;
+			continue;
+		}
+		const int32_t c0 = c;
+		uint8_t u0, v0;
+		block_uv(r0, r1, c0 * 2, &u0, &v0);
+		bool solid = true;
+		while (c < n && (r0[c * 2] & 0xFF000000) != 0) {
+			uint8_t u, v;
+			block_uv(r0, r1, c * 2, &u, &v);
+			solid = solid && (u == u0 && v == v0);
+			c++;
+		}
+		if (spans != NULL) {
+			MaskSpan& s = spans[cnt];
+			s.x0   = c0;
+			s.x1   = c;
+			s.off  = (solid ? -1 : *pool);
+			s.argb = r0[c0 * 2];
+			s.y    = 0;
+			s.u    = u0;
+			s.v    = v0;
+			for (int32_t k=c0; !solid && k<c; k++) {
+				block_uv(r0, r1, k * 2, &poolUV[(s.off + k - c0) * 2], &poolUV[(s.off + k - c0) * 2 + 1]);
+			}
+		}
+		if (!solid) {
+			*pool += c - c0;
+		}
+		cnt++;
+	}
+	return cnt;
+}
+
+// Columns of row pair p to convert: all but the 2x2 blocks that are
+// opaque in both rows (runs shorter than MIN_HIDDEN are converted too:
+// not worth a call). Fills vis if not NULL. Returns the number of
+// ranges.
+int32_t Effector::findVisible(int32_t p, ColRange* vis) const
+{
+	const MaskSpan* a  = mSpans + mRows[p * 2];
+	const MaskSpan* ae = mSpans + mRows[p * 2 + 1];
+	const MaskSpan* b  = ae;
+	const MaskSpan* be = mSpans + mRows[p * 2 + 2];
+	int32_t cnt = 0;
+	int32_t x = 0;
+	// Intersections of the 2 rows' runs (sorted), on even columns
+	while (a < ae && b < be) {
+		const int32_t h0 = ((a->x0 > b->x0 ? a->x0 : b->x0) + 1) & ~1;
+		const int32_t h1 = (a->x1 < b->x1 ? a->x1 : b->x1) & ~1;
+		if (h1 - h0 >= MIN_HIDDEN) {
+			if (x < h0) {
+				if (vis != NULL) {
+					vis[cnt].x0 = x;
+					vis[cnt].x1 = h0;
+				}
+				cnt++;
+			}
+			x = h1;
+		}
+		if (a->x1 < b->x1) {
+			a++;
+		} else {
+			b++;
+		}
+	}
+	if (x < mVideoWidth) {
+		if (vis != NULL) {
+			vis[cnt].x0 = x;
+			vis[cnt].x1 = mVideoWidth;
+		}
+		cnt++;
+	}
+	return cnt;
+}
+
+// Mask (ARGB) at the preview pixels of row py: the top-left pixels of
+// their blocks
+void Effector::previewMaskRow(int32_t py, uint32_t* row) const
+{
+	const int32_t oy = mPYMap[py];
+	int32_t i = mRows[oy];
+	for (int32_t x=0; x<mPW; x++) {
+		const int32_t ox = mPXOut[x];
+		while (i < mRows[oy + 1] && mSpans[i].x1 <= ox) {
+			i++;
+		}
+		if (i < mRows[oy + 1] && mSpans[i].x0 <= ox) {
+			const MaskSpan& s = mSpans[i];
+			row[x] = (s.off < 0 ? s.argb : mPoolRGB[s.off + ox - s.x0]);
+		} else {
+			row[x] = 0;
+		}
+	}
+}
+
+void Effector::quitPreview(void)
+{
+	delete[] mPXSrc;
+	delete[] mPXOut;
+	delete[] mPYMap;
+	delete[] mPRows;
+	delete[] mPSpans;
+	delete[] mPPool;
+	mPXSrc  = NULL;
+	mPXOut  = NULL;
+	mPYMap  = NULL;
+	mPRows  = NULL;
+	mPSpans = NULL;
+	mPPool  = NULL;
+	mPW     = 0;
+	mPH     = 0;
+}
@@ -25,6 +25,25 @@
 #include <android/log.h>
 
 #include "Utils.h"
+#include "EffectChain.h"
+
+// Opaque run [x0,x1) of a mask row: one color (solid), or the colors
+// in the pools from off.
+struct MaskSpan {
+	int32_t  x0;
+	int32_t  x1;
+	int32_t  off;  // pool offset, -1: solid
+	uint32_t argb; // solid color (ARGB, and in YUV:)
+	uint8_t  y;
+	uint8_t  u;
+	uint8_t  v;
+};
+
+// Columns [x0,x1) of a row pair
+struct ColRange {
+	int32_t  x0;
+	int32_t  x1;
+};
 
 class Effector {
 protected:
@@ -32,14 +51,73 @@ protected:
 	int32_t   mVideoWidth;
 	int32_t   mVideoHeight;
 	int32_t   mVideoArea;
-	uint32_t* mMaskP;
+
+	// Mask as opaque runs (alpha != 0) per row: mSpans[mRows[y]..mRows[y+1])
+	// for the pixels, mCSpans[mCRows[cy]..mCRows[cy+1]) for the U/V of the
+	// 2x2 blocks whose top-left pixel is opaque (U/V of the block's average
+	// color). Non-solid runs keep their colors in the pools.
+	int32_t*  mRows;
+	MaskSpan* mSpans;
+	int32_t*  mCRows;
+	MaskSpan* mCSpans;
+	uint32_t* mPoolRGB;
+	uint8_t*  mPoolY;
+	uint8_t*  mPoolUV; // U,V pairs
+
+	// Columns to convert per row pair: mVis[mVRows[p]..mVRows[p+1]). The
+	// 2x2 blocks opaque in both rows are left out (never converted).
+	int32_t*  mVRows;
+	ColRange* mVis;
+
+	// Effects after the mask
+	EffectChain mChain;
+
+	// Preview scaled down to mPW x mPH: the 2x2 block of each preview
+	// pixel (source column, frame column, row), and the mask at that
+	// size (colors in RGBX).
+	int32_t   mPW;
+	int32_t   mPH;
+	int32_t*  mPXSrc;
+	int32_t*  mPXOut;
+	int32_t*  mPYMap;
+	int32_t*  mPRows;
+	MaskSpan* mPSpans;
+	uint32_t* mPPool;
 
 public:
 	Effector(void);
 	~Effector(void);
-	int32_t init(Utils* utils, int32_t width, int32_t height, uint32_t* maskP);
+	// maskP: ARGB (alpha != 0: replaced with it), any shape. Not kept.
+	int32_t init(Utils* utils, int32_t width, int32_t height, const uint32_t* maskP);
 	int32_t quit(void);
-	int32_t draw(uint8_t* src_yuv, uint32_t* dst_rgb);
+	// Effects on top of the mask (cleared by init()/quit()). Not to be
+	// changed while drawing.
+	EffectChain* chain(void) { return &mChain; }
+	// hflip: mirror the source while reading it (front camera).
+	int32_t draw(const uint8_t* src_yuv, uint32_t* dst_rgb, int32_t y0=0, int32_t y1=-1, bool hflip=false);
+	// NV21 -> encoder format (1:NV12, 2:NV21, 3:I420) without RGB.
+	// Returns non-0 if the effect can not be done in YUV (the chain is
+	// not empty).
+	int32_t drawYUV(const uint8_t* src_yuv, int32_t dst_fmt, uint8_t* dst_yuv, int32_t y0=0, int32_t y1=-1, bool hflip=false);
+
+	// Preview of pw x ph (< the frame), RGBX_8888 with the stride (pixels).
+	// Each preview pixel is one 2x2 block of the frame (Y averaged).
+	int32_t initPreview(int32_t pw, int32_t ph, bool hflip=false);
+	int32_t previewWidth(void) const { return mPW; }
+	int32_t previewHeight(void) const { return mPH; }
+	// The preview rows whose block is in frame rows [y0,y1), straight from
+	// NV21. Returns non-0 if the effect can not be done so (the chain is
+	// not empty): draw() and copyPreview() then.
+	int32_t drawPreview(const uint8_t* src_yuv, uint32_t* dst, int32_t stride, int32_t y0, int32_t y1);
+	// Same rows, from the frame drawn by draw()
+	int32_t copyPreview(const uint32_t* rgb, uint32_t* dst, int32_t stride, int32_t y0, int32_t y1);
+
+private:
+	static int32_t findSpans(const uint32_t* row, int32_t step, int32_t n, MaskSpan* spans, int32_t* pool);
+	static int32_t findCSpans(const uint32_t* r0, const uint32_t* r1, int32_t n, MaskSpan* spans, int32_t* pool, uint8_t* poolUV);
+	int32_t findVisible(int32_t p, ColRange* vis) const;
+	void previewMaskRow(int32_t py, uint32_t* row) const;
+	void quitPreview(void);
 };
 
 #endif // __EFFECTOR__
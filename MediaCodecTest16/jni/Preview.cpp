@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <android/log.h>
+
+#include "Preview.h"
+
+#define  LOG_TAG "Preview"
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+#if 0
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#else
+#define  LOGI(...)
+#endif
+
+#define GRAY (0xFF888888) // = Color.GRAY (same in RGBX)
+
+//---------------------------------------------------------------------
+// PreviewWindow
+//---------------------------------------------------------------------
+void PreviewWindow::copyRows(const uint32_t* argb, int32_t w, const Buffer& buf, int32_t y0, int32_t y1)
+{
+	const int32_t cw = (w < buf.width ? w : buf.width);
+	if (y1 > buf.height) {
+		y1 = buf.height;
+	}
+	for (int32_t y=y0; y<y1; y++) {
+		const uint32_t* s = argb + w * y;
+		uint32_t*       d = buf.bits + buf.stride * y;
+		// 0xAARRGGBB -> bytes R,G,B,0xFF (little endian: 0xFFBBGGRR)
+		for (int32_t x=0; x<cw; x++) {
+			d[x] = (__builtin_bswap32(s[x]) >> 8) | 0xFF000000;
+		}
+	}
+}
+
+void PreviewWindow::fillMargins(int32_t w, int32_t h, const Buffer& buf)
+{
+	for (int32_t y=0; y<buf.height; y++) {
+		uint32_t* d = buf.bits + buf.stride * y;
+		for (int32_t x=(y < h ? w : 0); x<buf.width; x++) {
+			d[x] = GRAY;
+		}
+	}
+}
+
+//---------------------------------------------------------------------
+// NativePreviewWindow
+//---------------------------------------------------------------------
+NativePreviewWindow::NativePreviewWindow(ANativeWindow* window, int32_t width, int32_t height)
+: mWindow(window)
+{
+	if (ANativeWindow_setBuffersGeometry(mWindow, width, height, WINDOW_FORMAT_RGBX_8888) != 0) {
+		LOGE("%s(L=%d): setBuffersGeometry(%d,%d) error", __func__, __LINE__, width, height);
+	}
+}
+
+NativePreviewWindow::~NativePreviewWindow()
+{
+	ANativeWindow_release(mWindow);
+}
+
+int32_t NativePreviewWindow::lock(Buffer* buf)
+{
+	ANativeWindow_Buffer b;
+	if (ANativeWindow_lock(mWindow, &b, NULL) != 0) {
+		return -1;
+	}
+	if (b.format != WINDOW_FORMAT_RGBX_8888 && b.format != WINDOW_FORMAT_RGBA_8888) {
+		LOGE("%s(L=%d): format=%d", __func__, __LINE__, b.format);
+		ANativeWindow_unlockAndPost(mWindow);
+		return -1;
+	}
+	buf->bits   = (uint32_t*)b.bits;
+	buf->width  = b.width;
+	buf->height = b.height;
+	buf->stride = b.stride;
+	return 0;
+}
+
+int32_t NativePreviewWindow::post(void)
+{
+	return ANativeWindow_unlockAndPost(mWindow);
+}
+
+//---------------------------------------------------------------------
+// MemoryPreviewWindow
+//---------------------------------------------------------------------
+MemoryPreviewWindow::MemoryPreviewWindow(int32_t width, int32_t height, int32_t stride)
+: mLocked(false)
+, mPosted(0)
+{
+	mBuf.bits   = new uint32_t[stride * height];
+	mBuf.width  = width;
+	mBuf.height = height;
+	mBuf.stride = stride;
+}
+
+MemoryPreviewWindow::~MemoryPreviewWindow()
+{
+	delete[] mBuf.bits;
+}
+
+int32_t MemoryPreviewWindow::lock(Buffer* buf)
+{
+	if (mLocked) {
+		return -1;
+	}
+	mLocked = true;
+	*buf = mBuf;
+	return 0;
+}
+
+int32_t MemoryPreviewWindow::post(void)
+{
+	if (!mLocked) {
+		return -1;
+	}
+	mLocked = false;
+	mPosted++;
+	return 0;
+}
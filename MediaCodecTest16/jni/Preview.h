@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef __PREVIEW__
+#define __PREVIEW__
+
+#include <stdint.h>
+#include <android/native_window.h>
+
+//---------------------------------------------------------------------
+// Preview window
+//---------------------------------------------------------------------
+// Where the preview frames go: lock() a buffer, write it (RGBX_8888:
+// bytes R,G,B,X), post() it. The frame is at the top-left of the
+// buffer, the rest is gray (like the EffectView Canvas path).
+class PreviewWindow {
+public:
+	struct Buffer {
+		uint32_t* bits;
+		int32_t   width;
+		int32_t   height;
+		int32_t   stride; // pixels
+	};
+
+	virtual ~PreviewWindow() {}
+	virtual int32_t lock(Buffer* buf) = 0;
+	virtual int32_t post(void) = 0;
+
+	// Rows [y0,y1) of the w-wide ARGB frame -> buf
+	static void copyRows(const uint32_t* argb, int32_t w, const Buffer& buf, int32_t y0, int32_t y1);
+	// The part of buf outside the w x h frame -> gray
+	static void fillMargins(int32_t w, int32_t h, const Buffer& buf);
+};
+
+// ANativeWindow of a Surface (the compositor scales it to the view)
+class NativePreviewWindow : public PreviewWindow {
+public:
+	// Takes the window's reference. Buffers of width x height.
+	NativePreviewWindow(ANativeWindow* window, int32_t width, int32_t height);
+	~NativePreviewWindow();
+	int32_t lock(Buffer* buf);
+	int32_t post(void);
+
+private:
+	ANativeWindow* mWindow;
+};
+
+// Stand-in in memory (checks off the device): post() just counts.
+class MemoryPreviewWindow : public PreviewWindow {
+public:
+	MemoryPreviewWindow(int32_t width, int32_t height, int32_t stride);
+	~MemoryPreviewWindow();
+	int32_t lock(Buffer* buf);
+	int32_t post(void);
+	const Buffer& buffer(void) const { return mBuf; }
+	int32_t posted(void) const { return mPosted; }
+
+private:
+	Buffer  mBuf;
+	bool    mLocked;
+	int32_t mPosted;
+};
+
+// The window native_draw() draws to when given no RGB array (takes it;
+// NULL: none). In jp_morihirosoft_mediacodectest16_MainActivity.cpp.
+void set_preview_window(PreviewWindow* window);
+
+#endif // __PREVIEW__
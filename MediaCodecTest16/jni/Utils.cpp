@@ -20,6 +20,7 @@
 #include <android/log.h>
 
 #include "Utils.h"
+#include "yuvconv.h"
 
 #define  LOG_TAG "Utils"
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
@@ -70,6 +71,7 @@ int32_t Utils::yuv_init(void)
 	if (tmp_yuv == NULL) {
 		return -1;
 	}
+	yuvconv_init(); // kernels for this CPU
 	return 0;
 }
 
@@ -88,180 +90,36 @@ int32_t Utils::yuv_end(void)
 }
 
 // YUV(NV21)→ARGB(8888)
-uint32_t* Utils::yuv_YUVtoRGB(uint8_t* yuv, uint32_t* rgb32)
+uint32_t* Utils::yuv_YUVtoRGB(const uint8_t* yuv, uint32_t* rgb32, int32_t y0, int32_t y1, bool hflip)
 {
 	if (rgb32 == NULL) {
 		rgb32 = tmp_rgb;
 	}
-	const uint32_t vw  = video_width;
-	const uint32_t vh  = video_height;
-	const uint32_t vw2 = vw >> 1;
-	const uint32_t vh2 = vh >> 1;
-	const uint32_t va  = video_area;
-	uint8_t*  yP1     = &yuv[0];
-	uint8_t*  yP2     = &yuv[vw];
-	uint8_t*  vuP     = &yuv[va];
-	uint32_t* rgb32P1 = &rgb32[0];
-	uint32_t* rgb32P2 = &rgb32[vw];
-
-	for (uint32_t i=0; i<vh2; i++) {
-		for (uint32_t j=0; j<vw2; j++) {
-			int32_t y1 = ((*(yP1++))&0xFF) - 16;
-			if (y1 < 0) y1 = 0;
-			int32_t y2 = ((*(yP1++))&0xFF) - 16;
-			if (y2 < 0) y2 = 0;
-			int32_t y3 = ((*(yP2++))&0xFF) - 16;
-			if (y3 < 0) y3 = 0;
-			int32_t y4 = ((*(yP2++))&0xFF) - 16;
-			if (y4 < 0) y4 = 0;
-
-			int32_t v = ((*(vuP++))&0xFF) - 128;
-			int32_t u = ((*(vuP++))&0xFF) - 128;
-
-			*(rgb32P1++) = yuv_YUVtoRGB_1(y1, u, v);
-			*(rgb32P1++) = yuv_YUVtoRGB_1(y2, u, v);
-			*(rgb32P2++) = yuv_YUVtoRGB_1(y3, u, v);
-			*(rgb32P2++) = yuv_YUVtoRGB_1(y4, u, v);
-		}
-		yP1 = yP2;
-		yP2 += vw;
-		rgb32P1 = rgb32P2;
-		rgb32P2 += vw;
+	if (y1 < 0) {
+		y1 = video_height;
 	}
-
+	yuvconv_nv21_to_argb(yuv, rgb32, video_width, video_height, y0, y1, hflip ? 1 : 0);
 	return rgb32;
 }
 
-// ARGB(8888)→YUV(*)
-uint8_t* Utils::yuv_RGBtoYUV(uint32_t* rgb32, int32_t yuv_fmt, uint8_t* yuv)
+// YUV(NV21)→ARGB(8888), columns [x0,x1)
+void Utils::yuv_YUVtoRGBCols(const uint8_t* yuv, uint32_t* rgb32, int32_t y0, int32_t y1, int32_t x0, int32_t x1, bool hflip)
 {
-	if (yuv == NULL) {
-		yuv = tmp_yuv;
-	}
-	switch(yuv_fmt) {
-	case 1: // Encoder.ColorFormat_NV12 (java)
-		return yuv_RGBtoNV12(rgb32, yuv);
-	case 2: // Encoder.ColorFormat_NV21 (java)
-		return yuv_RGBtoNV21(rgb32, yuv);
-	case 3: // Encoder.ColorFormat_I420 (java)
-		return yuv_RGBtoI420(rgb32, yuv);
-	}
-	return NULL;
+	yuvconv_nv21_to_argb_cols(yuv, rgb32, video_width, video_height, y0, y1, x0, x1, hflip ? 1 : 0);
 }
 
-//---------------------------------------------------------------------
-// YUV: PRIVATE METHODS
-//---------------------------------------------------------------------
-// YUV(NV21)→ARGB(8888)
-uint32_t Utils::yuv_YUVtoRGB_1(int32_t y, int32_t u, int32_t v)
-{
-	y *= 1192;
-
-	int32_t r = (y + 1634 * v);
-	int32_t g = (y - 833 * v - 400 * u);
-	int32_t b = (y + 2066 * u);
-
-	r = (r<0 ? 0 : (r>262143 ? 262143 : r));
-	g = (g<0 ? 0 : (g>262143 ? 262143 : g));
-	b = (b<0 ? 0 : (b>262143 ? 262143 : b));
-
-	return (uint32_t)(
-			(0x00FF0000 & (r<< 6)) |
-			(0x0000FF00 & (g>> 2)) |
-			(0x000000FF & (b>>10)));
-}
-
-// ARGB(8888)→YUV(NV12)
-uint8_t* Utils::yuv_RGBtoNV12(uint32_t* rgb32, uint8_t* yuv)
+// ARGB(8888)→YUV(*)
+uint8_t* Utils::yuv_RGBtoYUV(uint32_t* rgb32, int32_t yuv_fmt, uint8_t* yuv, int32_t y0, int32_t y1)
 {
-	const uint32_t vw = video_width;
-	const uint32_t vh = video_height;
-	const uint32_t va = video_area;
-
-	int32_t yIndex = 0;
-	int32_t uvIndex = va;
-
-	for (uint32_t i=0,k=0; i<vh; i++) {
-		for (uint32_t j=0; j<vw; j++,k++) {
-			const int32_t R = (rgb32[k] & 0x00FF0000) >> 16;
-			const int32_t G = (rgb32[k] & 0x0000FF00) >> 8;
-			const int32_t B = (rgb32[k] & 0x000000FF);
-
-			const int32_t Y = (( 66*R + 129*G +  25*B + 128) >> 8) +  16;
-			yuv[yIndex++] = (uint8_t) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-
-			if (i % 2 == 0 && j % 2 == 0) {
-				const int32_t U = ((-38*R -  74*G + 112*B + 128) >> 8) + 128;
-				const int32_t V = ((112*R -  94*G -  18*B + 128) >> 8) + 128;
-				yuv[uvIndex++] = (uint8_t)((U<0) ? 0 : ((U > 255) ? 255 : U));
-				yuv[uvIndex++] = (uint8_t)((V<0) ? 0 : ((V > 255) ? 255 : V));
-			}
-		}
+	if (yuv == NULL) {
+		yuv = tmp_yuv;
 	}
-
-	return yuv;
-}
-
-// ARGB(8888)→YUV(NV21)
-uint8_t* Utils::yuv_RGBtoNV21(uint32_t* rgb32, uint8_t* yuv)
-{
-	const uint32_t vw = video_width;
-	const uint32_t vh = video_height;
-	const uint32_t va = video_area;
-
-	int32_t yIndex = 0;
-	int32_t uvIndex = va;
-
-	for (uint32_t i=0,k=0; i<vh; i++) {
-		for (uint32_t j=0; j<vw; j++,k++) {
-			const int32_t R = (rgb32[k] & 0x00FF0000) >> 16;
-			const int32_t G = (rgb32[k] & 0x0000FF00) >> 8;
-			const int32_t B = (rgb32[k] & 0x000000FF);
-
-			const int32_t Y = (( 66*R + 129*G +  25*B + 128) >> 8) +  16;
-			yuv[yIndex++] = (uint8_t) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-
-			if (i % 2 == 0 && j % 2 == 0) {
-				const int32_t V = ((112*R -  94*G -  18*B + 128) >> 8) + 128;
-				const int32_t U = ((-38*R -  74*G + 112*B + 128) >> 8) + 128;
-				yuv[uvIndex++] = (uint8_t)((V<0) ? 0 : ((V > 255) ? 255 : V));
-				yuv[uvIndex++] = (uint8_t)((U<0) ? 0 : ((U > 255) ? 255 : U));
-			}
-		}
+	if (y1 < 0) {
+		y1 = video_height;
 	}
-
-	return yuv;
-}
-
-// ARGB(8888)→YUV(I420)
-uint8_t* Utils::yuv_RGBtoI420(uint32_t* rgb32, uint8_t* yuv)
-{
-	const uint32_t vw = video_width;
-	const uint32_t vh = video_height;
-	const uint32_t va = video_area;
-
-	int32_t yIndex = 0;
-	int32_t uIndex = va;
-	int32_t vIndex = va + va / 4;
-
-	for (uint32_t i=0,k=0; i<vh; i++) {
-		for (uint32_t j=0; j<vw; j++,k++) {
-			const int32_t R = (rgb32[k] & 0x00FF0000) >> 16;
-			const int32_t G = (rgb32[k] & 0x0000FF00) >> 8;
-			const int32_t B = (rgb32[k] & 0x000000FF);
-
-			const int32_t Y = (( 66*R + 129*G +  25*B + 128) >> 8) +  16;
-			yuv[yIndex++] = (uint8_t) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
-
-			if (i % 2 == 0 && j % 2 == 0) {
-				const int32_t U = ((-38*R -  74*G + 112*B + 128) >> 8) + 128;
-				yuv[uIndex++] = (uint8_t)((U<0) ? 0 : ((U > 255) ? 255 : U));
-
-				const int32_t V = ((112*R -  94*G -  18*B + 128) >> 8) + 128;
-				yuv[vIndex++] = (uint8_t)((V<0) ? 0 : ((V > 255) ? 255 : V));
-			}
-		}
+	// 1: Encoder.ColorFormat_NV12, 2: _NV21, 3: _I420 (java)
+	if (yuvconv_argb_to_yuv(rgb32, yuv, yuv_fmt, video_width, video_height, y0, y1) != 0) {
+		return NULL;
 	}
-
 	return yuv;
 }
@@ -41,14 +41,13 @@ public:
 
 	int32_t yuv_init(void);
 	int32_t yuv_end(void);
-	uint32_t* yuv_YUVtoRGB(uint8_t* yuv, uint32_t* rgb32=NULL);
-	uint8_t* yuv_RGBtoYUV(uint32_t* rgb32, int32_t yuv_fmt=0, uint8_t* yuv=NULL);
-
-private:
-	uint32_t yuv_YUVtoRGB_1(int32_t y, int32_t u, int32_t v);
-	uint8_t* yuv_RGBtoNV12(uint32_t* rgb32, uint8_t* yuv);
-	uint8_t* yuv_RGBtoNV21(uint32_t* rgb32, uint8_t* yuv);
-	uint8_t* yuv_RGBtoI420(uint32_t* rgb32, uint8_t* yuv);
+	// Rows [y0,y1) only (even; y1<0: to the bottom), for striped processing.
+	// hflip: read the source rows right to left (front camera).
+	// The kernels are in yuvconv.c (SIMD if the CPU has it).
+	uint32_t* yuv_YUVtoRGB(const uint8_t* yuv, uint32_t* rgb32=NULL, int32_t y0=0, int32_t y1=-1, bool hflip=false);
+	// Columns [x0,x1) (even) only
+	void yuv_YUVtoRGBCols(const uint8_t* yuv, uint32_t* rgb32, int32_t y0, int32_t y1, int32_t x0, int32_t x1, bool hflip=false);
+	uint8_t* yuv_RGBtoYUV(uint32_t* rgb32, int32_t yuv_fmt=0, uint8_t* yuv=NULL, int32_t y0=0, int32_t y1=-1);
 };
 
 #endif // __UTILS__
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <unistd.h>
+#include <android/log.h>
+
+#include "Workers.h"
+
+#define  LOG_TAG "Workers"
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+#if 0
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#else
+#define  LOGI(...)
+#endif
+
+#define MAX_THREADS (16)
+
+//---------------------------------------------------------------------
+// PUBLIC METHODS
+//---------------------------------------------------------------------
+// Constructor (threads <= 0: number of CPUs)
+Workers::Workers(int32_t threads)
+: mThreads(threads)
+, mSlots(NULL)
+, mGeneration(0)
+, mPending(0)
+, mQuit(false)
+, mTask(NULL)
+, mArg(NULL)
+, mHeight(0)
+{
+	if (mThreads <= 0) {
+		mThreads = (int32_t)sysconf(_SC_NPROCESSORS_ONLN);
+	}
+	if (mThreads < 1) {
+		mThreads = 1;
+	} else if (mThreads > MAX_THREADS) {
+		mThreads = MAX_THREADS;
+	}
+
+	pthread_mutex_init(&mMutex, NULL);
+	pthread_cond_init(&mStartCond, NULL);
+	pthread_cond_init(&mDoneCond, NULL);
+
+	// Band 0 is for the caller.
+	int32_t started;
+	mSlots = new Slot[mThreads];
+	for (started=1; started<mThreads; started++) {
+		mSlots[started].self = this;
+		mSlots[started].band = started;
+		if (pthread_create(&mSlots[started].thread, NULL, entry, &mSlots[started]) != 0) {
+			LOGE("%s(L=%d): pthread_create error", __func__, __LINE__);
+			break;
+		}
+	}
+	mThreads = started;
+	LOGI("%s(L=%d): threads=%d", __func__, __LINE__, mThreads);
+}
+
+// Destructor
+Workers::~Workers()
+{
+	pthread_mutex_lock(&mMutex);
+	mQuit = true;
+	pthread_cond_broadcast(&mStartCond);
+	pthread_mutex_unlock(&mMutex);
+	for (int32_t i=1; i<mThreads; i++) {
+		pthread_join(mSlots[i].thread, NULL);
+	}
+	delete[] mSlots;
+
+	pthread_cond_destroy(&mDoneCond);
+	pthread_cond_destroy(&mStartCond);
+	pthread_mutex_destroy(&mMutex);
+}
+
+//
+void Workers::run(Task task, void* arg, int32_t height)
+{
+	int32_t y0, y1;
+
+	if (mThreads <= 1) {
+		task(arg, 0, 0, height);
+		return;
+	}
+
+	pthread_mutex_lock(&mMutex);
+	mTask    = task;
+	mArg     = arg;
+	mHeight  = height;
+	mPending = mThreads - 1;
+	mGeneration++;
+	pthread_cond_broadcast(&mStartCond);
+	pthread_mutex_unlock(&mMutex);
+
+	band(0, &y0, &y1);
+	task(arg, 0, y0, y1);
+
+	pthread_mutex_lock(&mMutex);
+	while (mPending > 0) {
+		pthread_cond_wait(&mDoneCond, &mMutex);
+	}
+	pthread_mutex_unlock(&mMutex);
+}
+
+//---------------------------------------------------------------------
+// PRIVATE METHODS
+//---------------------------------------------------------------------
+//
+void* Workers::entry(void* arg)
+{
+	Slot* slot = (Slot*)arg;
+	slot->self->loop(slot->band);
+	return NULL;
+}
+
+//
+void Workers::loop(int32_t b)
+{
+	uint32_t generation = 0; // = initial mGeneration (run() may come first)
+	int32_t  y0, y1;
+
+	pthread_mutex_lock(&mMutex);
+	while (true) {
+		while (!mQuit && generation == mGeneration) {
+			pthread_cond_wait(&mStartCond, &mMutex);
+		}
+		if (mQuit) {
+			break;
+		}
+		generation = mGeneration;
+		Task  task = mTask;
+		void* arg  = mArg;
+		pthread_mutex_unlock(&mMutex);
+
+		band(b, &y0, &y1);
+		task(arg, b, y0, y1);
+
+		pthread_mutex_lock(&mMutex);
+		if (--mPending == 0) {
+			pthread_cond_signal(&mDoneCond);
+		}
+	}
+	pthread_mutex_unlock(&mMutex);
+}
+
+//
+void Workers::band(int32_t b, int32_t* y0, int32_t* y1) const
+{
+	const int32_t pairs = mHeight / 2;
+	*y0 = (int32_t)((int64_t)pairs * b / mThreads) * 2;
+	*y1 = (b == mThreads - 1 ? mHeight : (int32_t)((int64_t)pairs * (b + 1) / mThreads) * 2);
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef __WORKERS__
+#define __WORKERS__
+
+#include <stdint.h>
+#include <pthread.h>
+
+//---------------------------------------------------------------------
+// Worker pool for frame processing
+//---------------------------------------------------------------------
+// run() splits rows [0,height) into one band per thread (band edges on
+// even rows, for 4:2:0 chroma), runs the task on all the bands at once
+// (the calling thread takes band 0), and returns when all are done.
+class Workers {
+public:
+	typedef void (*Task)(void* arg, int32_t band, int32_t y0, int32_t y1);
+
+	Workers(int32_t threads);
+	~Workers();
+	int32_t threads(void) const { return mThreads; }
+	void run(Task task, void* arg, int32_t height);
+
+private:
+	struct Slot {
+		Workers*  self;
+		int32_t   band;
+		pthread_t thread;
+	};
+
+	static void* entry(void* arg);
+	void loop(int32_t band);
+	void band(int32_t band, int32_t* y0, int32_t* y1) const;
+
+	int32_t         mThreads; // including the caller
+	Slot*           mSlots;
+	pthread_mutex_t mMutex;
+	pthread_cond_t  mStartCond;
+	pthread_cond_t  mDoneCond;
+	uint32_t        mGeneration;
+	int32_t         mPending;
+	bool            mQuit;
+	Task            mTask;
+	void*           mArg;
+	int32_t         mHeight;
+};
+
+#endif // __WORKERS__
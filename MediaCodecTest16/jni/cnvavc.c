@@ -13,6 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+#define _LARGEFILE64_SOURCE 1
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
@@ -21,8 +22,12 @@
 #include <unistd.h>
 #include <sys/types.h>
 #include <sys/stat.h>
+#include <sys/sendfile.h>
+#include <errno.h>
 
 #include <android/log.h>
+
+#include "nalscan.h"
 #define  LOG_TAG "CNVAVC"
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 #if 0
@@ -31,18 +36,99 @@
 #define  LOGI(...)
 #endif
 
-#define BUF_SIZE (1024)
+#define BUF_SIZE (64*1024)
 #define INIT_FRAME_SIZE (1024)
 #define INIT_SPS_SIZE (256)
 #define INIT_PPS_SIZE (256)
 
+// mdat: sendfile() + in-place length patch (0: read/write loop only)
+#ifndef ZERO_COPY
+#define ZERO_COPY     (1)
+#endif
+#define SENDFILE_SIZE (64*1024*1024)
+
+// Sidecar frame index (MyRecorder.java), big-endian
+//   head: "AVCI", uint32 version
+//   record: uint64 addr, uint32 size, uint8 nal_type, uint8 flags,
+//           uint16 reserved, int64 pts_us
+//   (addr, size) = NAL unit after its 4-byte start code in the source.
+#define IDX_MAGIC     "AVCI"
+#define IDX_VERSION   (1)
+#define IDX_HEAD_SIZE (8)
+#define IDX_REC_SIZE  (24)
+
+// mdhd/stts timescale (pts in us -> 90kHz)
+#define TIMESCALE     (90000)
+#define US_TO_TS(us)  (((us) * TIMESCALE + 500000) / 1000000)
+
 #pragma pack(1)
 
+// htonl() for 64-bit values
+static uint64_t htonll(uint64_t x)
+{
+	if (htonl(1) == 1) {
+		return x;
+	}
+	return ((uint64_t)htonl((uint32_t)x) << 32) | htonl((uint32_t)(x >> 32));
+}
+
+// Big-endian read
+static uint32_t get_be32(const uint8_t* p)
+{
+	uint32_t v;
+	memcpy(&v, p, sizeof(v));
+	return ntohl(v);
+}
+
+static uint64_t get_be64(const uint8_t* p)
+{
+	return ((uint64_t)get_be32(p) << 32) | get_be32(p + 4);
+}
+
+// read() at 64-bit address
+static int32_t read_at(int fd, uint64_t addr, uint8_t* buf, uint32_t len)
+{
+	if (lseek64(fd, (off64_t)addr, SEEK_SET) < 0) {
+		return -1;
+	}
+	return (read(fd, buf, len) == (ssize_t)len ? 0 : -1);
+}
+
+#if ZERO_COPY
+// write() at 64-bit address
+static int32_t write_at(int fd, uint64_t addr, const void* buf, uint32_t len)
+{
+	if (lseek64(fd, (off64_t)addr, SEEK_SET) < 0) {
+		return -1;
+	}
+	return (write(fd, buf, len) == (ssize_t)len ? 0 : -1);
+}
+
+// sendfile() all of src (from top) to dst (at dst_addr)
+// (NULL offset: use the 64-bit file positions set by lseek64().)
+static int32_t send_all(int dst_fd, uint64_t dst_addr, int src_fd, uint64_t len)
+{
+	if (lseek64(src_fd, 0, SEEK_SET) < 0 || lseek64(dst_fd, (off64_t)dst_addr, SEEK_SET) < 0) {
+		return -1;
+	}
+	while (len > 0) {
+		ssize_t n = sendfile(dst_fd, src_fd, NULL, (size_t)(len < SENDFILE_SIZE ? len : SENDFILE_SIZE));
+		if (n < 0 && errno == EINTR) {
+			continue;
+		}
+		if (n <= 0) {
+			return -1;
+		}
+		len -= n;
+	}
+	return 0;
+}
+#endif
+
 //
-int32_t cnvavc(const char* src_path, const char* dst_path,
+int32_t cnvavc(const char* src_path, const char* dst_path, const char* idx_path,
 		int32_t video_w, int32_t video_h, int32_t fps)
 {
-	const uint8_t START_PAT[] = {0x00,0x00,0x00,0x01};
 	const uint8_t NAL_TYPE_MASK = 0x1F;
 	const uint8_t NAL_TYPE_SPS  = 0x07; // 0x67,0x27
 	const uint8_t NAL_TYPE_PPS  = 0x08; // 0x68,0x28
@@ -51,14 +137,18 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 	//
 	struct _frame_info {
 		int32_t  frame_idx;
-		uint32_t addr;
+		uint64_t addr; // NAL unit in src (after start code)
 		uint32_t size;
+		uint64_t dst;  // length + NAL unit in mdat
+		int64_t  pts;  // us, -1 = unknown
+		uint32_t duration; // TIMESCALE (samples only)
 		uint8_t  nal_type;
 	};
 
 	int32_t             rcode = 0;
 	FILE*               src_fp = NULL;
 	FILE*               dst_fp = NULL;
+	FILE*               idx_fp = NULL;
 	uint8_t*            buf = NULL;
 	uint8_t*            bufP;
 	uint32_t            frame_info_cnt = 0;
@@ -107,89 +197,207 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 		}
 
 		//-------------------------------------------------------------
-		// Phase 1 - Scan
+		// Phase 1a - Index (optional)
 		//-------------------------------------------------------------
-		int32_t start_idx = 0;
-		int32_t sps_flg = 0;
-		int32_t pps_flg = 0;
-
-		// Check frame address.
-		uint32_t src_addr = 0;
-		while(!feof(src_fp)) {
-			num = fread(buf, 1, BUF_SIZE, src_fp);
-			for (i=0,bufP=buf; i<num; i++,bufP++) {
-				// Store SPS/PSP
-				if (sps_flg != 0) {
-					if (sps_len == sps_alc) {
-						sps_alc *= 2;
-						sps_dat = (uint8_t*)realloc(sps_dat, sizeof(uint8_t) * sps_alc);
-					}
-					sps_dat[sps_len++] = *bufP;
-				} else if (pps_flg != 0) {
-					if (pps_len == pps_alc) {
-						pps_alc *= 2;
-						pps_dat = (uint8_t*)realloc(pps_dat, sizeof(uint8_t) * pps_alc);
-					}
-					pps_dat[pps_len++] = *bufP;
-				}
-
-				//
-				if (start_idx == sizeof(START_PAT)) {
-					uint8_t nal_type = (*bufP & NAL_TYPE_MASK);
+		// NAL units in the index need no scan. Only the part of the
+		// source that the index does not cover (missing/truncated) is
+		// scanned.
+		// (64-bit: fopen() of bionic opens with O_LARGEFILE, so >4GiB
+		//  sources are fine with sequential access and lseek64().)
+		const int src_fd   = fileno(src_fp);
+		uint64_t  src_size = 0;
+		uint64_t  src_addr = 0;
+		{
+			struct stat64 st;
+			if (fstat64(src_fd, &st) == 0) {
+				src_size = st.st_size;
+			}
+		}
+		if (idx_path != NULL) {
+			idx_fp = fopen(idx_path, "rb");
+		}
+		if (idx_fp != NULL) {
+			uint8_t rec[IDX_REC_SIZE];
+			if (fread(rec, 1, IDX_HEAD_SIZE, idx_fp) == IDX_HEAD_SIZE &&
+					memcmp(rec, IDX_MAGIC, 4) == 0 &&
+					get_be32(rec + 4) == IDX_VERSION) {
+				while (fread(rec, 1, IDX_REC_SIZE, idx_fp) == IDX_REC_SIZE) {
+					const uint64_t addr = get_be64(rec);
+					const uint32_t size = get_be32(rec + 8);
 
-					start_idx = 0;
+					// No room for a start code or beyond the source -> scan from here.
+					if (addr < src_addr + 3 || size == 0 || addr + size > src_size) {
+						break;
+					}
 					if (frame_info_cnt == frame_info_alc) {
 						frame_info_alc *= 2;
 						frame_infos = (struct _frame_info*)realloc(frame_infos, sizeof(struct _frame_info) * frame_info_alc);
 					}
+					frame_infos[frame_info_cnt].addr     = addr;
+					frame_infos[frame_info_cnt].size     = size;
+					frame_infos[frame_info_cnt].nal_type = (rec[12] & NAL_TYPE_MASK);
+					frame_infos[frame_info_cnt].pts      = (int64_t)get_be64(rec + 16);
+					frame_info_cnt++;
+					src_addr = addr + size;
+				}
+			}
+			fclose(idx_fp);
+			idx_fp = NULL;
 
-					// Terminate SPS/PPS
-					if (sps_flg != 0) {
-						sps_len -= sizeof(START_PAT) + 1;
-						sps_flg = 0;
-					} else if (pps_flg != 0) {
-						pps_len -= sizeof(START_PAT) + 1;
-						pps_flg = 0;
-					}
+			// Continue with the scan after the indexed NAL units.
+			if (lseek64(src_fd, (off64_t)src_addr, SEEK_SET) < 0) {
+				LOGE("%s(L=%d): lseek64 error", __func__, __LINE__);
+				rcode = -4;
+				break;
+			}
+			LOGI("%s(L=%d): index: nals=%u, addr=0x%08llX", __func__, __LINE__, frame_info_cnt, (unsigned long long)src_addr);
+		}
 
-					// Start SPS/PPS or SYNC
-					if (nal_type == NAL_TYPE_SPS) {
-						frame_infos[frame_info_cnt].frame_idx = -1;
-						if (sps_len > 0) {
-							// Failure
-							LOGE("%s(L=%d): Multiple SPS, src_addr=0x%08X, i=0x%08X", __func__, __LINE__, src_addr, i);
-							rcode = -1;
-							break;
-						}
-						sps_dat[sps_len++] = *bufP;
-						sps_flg = 1;
-					} else if (nal_type == NAL_TYPE_PPS) {
-						frame_infos[frame_info_cnt].frame_idx = -2;
-						if (pps_len > 0) {
-							// Failure
-							LOGE("%s(L=%d): Multiple PPS, src_addr=0x%08X, i=0x%08X", __func__, __LINE__, src_addr, i);
-							rcode = -2;
-							break;
-						}
-						pps_dat[pps_len++] = *bufP;
-						pps_flg = 1;
-					} else {
-						frame_infos[frame_info_cnt].frame_idx = full_frame_cnt++;
-						if (nal_type == NAL_TYPE_SYNC) {
-							sync_frame_cnt++;
-						}
+		//-------------------------------------------------------------
+		// Phase 1b - Scan
+		//-------------------------------------------------------------
+		nalscan_t scan;
+		int32_t   nal_open = 0; // last NAL unit is not terminated yet
+		int32_t   type_pending = 0; // last NAL unit starts at the next block
+
+		nalscan_init(&scan);
+		while ((num = fread(buf, 1, BUF_SIZE, src_fp)) > 0) {
+			int32_t  pos = 0;
+			uint32_t run = 0;
+
+			if (type_pending != 0) {
+				frame_infos[frame_info_cnt-1].nal_type = (buf[0] & NAL_TYPE_MASK);
+				type_pending = 0;
+			}
+			while ((pos = nalscan_next(&scan, buf, pos, num, &run)) >= 0) {
+				const uint64_t nal_addr = src_addr + pos;
+
+				// Terminate the last one at the top of the 0x00 run.
+				if (nal_open != 0) {
+					struct _frame_info* fi = &frame_infos[frame_info_cnt-1];
+					fi->size = (uint32_t)(nal_addr - 1 - run - fi->addr);
+					if (fi->size == 0) {
+						frame_info_cnt--;
 					}
-					frame_infos[frame_info_cnt].addr = src_addr + i - sizeof(START_PAT);
-					frame_infos[frame_info_cnt].nal_type = nal_type;
-					frame_info_cnt++;
-				} else if (*bufP == START_PAT[start_idx]) {
-					start_idx++;
-				} else if (start_idx > 0 && *bufP != START_PAT[start_idx-1]) {
-					start_idx = 0;
 				}
+
+				// Start
+				if (frame_info_cnt == frame_info_alc) {
+					frame_info_alc *= 2;
+					frame_infos = (struct _frame_info*)realloc(frame_infos, sizeof(struct _frame_info) * frame_info_alc);
+				}
+				frame_infos[frame_info_cnt].addr = nal_addr;
+				frame_infos[frame_info_cnt].size = 0;
+				frame_infos[frame_info_cnt].pts  = -1;
+				if (pos < num) {
+					frame_infos[frame_info_cnt].nal_type = (buf[pos] & NAL_TYPE_MASK);
+				} else {
+					type_pending = 1;
+				}
+				frame_info_cnt++;
+				nal_open = 1;
 			}
 			src_addr += num;
 		}
+		if (nal_open != 0) {
+			struct _frame_info* fi = &frame_infos[frame_info_cnt-1];
+			fi->size = (uint32_t)(src_addr - scan.zeros - fi->addr);
+			if (fi->size == 0) {
+				frame_info_cnt--;
+			}
+		}
+
+		//-------------------------------------------------------------
+		// Phase 1c - Classify
+		//-------------------------------------------------------------
+		// SPS/PPS -> avcC, others -> samples. And check if the source is
+		// laid out as mdat already (4-byte start codes only).
+		uint64_t mdat_size = 0;
+		int32_t  same_layout = (frame_info_cnt > 0);
+
+		for (i=0; i<frame_info_cnt; i++) {
+			struct _frame_info* fi = &frame_infos[i];
+			if (fi->addr != mdat_size + sizeof(uint32_t)) {
+				same_layout = 0;
+			}
+			fi->dst = mdat_size;
+			mdat_size += sizeof(uint32_t) + fi->size;
+
+			if (fi->nal_type == NAL_TYPE_SPS || fi->nal_type == NAL_TYPE_PPS) {
+				uint16_t* len = (fi->nal_type == NAL_TYPE_SPS ? &sps_len : &pps_len);
+				uint32_t* alc = (fi->nal_type == NAL_TYPE_SPS ? &sps_alc : &pps_alc);
+				uint8_t** dat = (fi->nal_type == NAL_TYPE_SPS ? &sps_dat : &pps_dat);
+				if (*len > 0 || fi->size > 0xFFFF) {
+					// Failure
+					LOGE("%s(L=%d): Multiple/Large SPS/PPS, addr=0x%08llX", __func__, __LINE__, (unsigned long long)fi->addr);
+					rcode = (fi->nal_type == NAL_TYPE_SPS ? -1 : -2);
+					break;
+				}
+				if (fi->size > *alc) {
+					*alc = fi->size;
+					*dat = (uint8_t*)realloc(*dat, sizeof(uint8_t) * (*alc));
+				}
+				if (read_at(src_fd, fi->addr, *dat, fi->size) != 0) {
+					LOGE("%s(L=%d): read error", __func__, __LINE__);
+					rcode = -4;
+					break;
+				}
+				*len = fi->size;
+				fi->frame_idx = (fi->nal_type == NAL_TYPE_SPS ? -1 : -2);
+			} else {
+				fi->frame_idx = full_frame_cnt++;
+				if (fi->nal_type == NAL_TYPE_SYNC) {
+					sync_frame_cnt++;
+				}
+			}
+		}
+		if (mdat_size != src_addr) {
+			same_layout = 0;
+		}
+
+		// Sample durations from pts (VFR). Samples without pts (not in
+		// the index) are 1/fps after the last one. The last sample (or a
+		// non-increasing pts) gets the duration of the one before it.
+		uint32_t stts_cnt = 0;
+		uint64_t media_duration = 0;
+		{
+			struct _frame_info* last = NULL;
+			uint32_t dur = TIMESCALE / fps;
+			for (i=0; i<frame_info_cnt; i++) {
+				struct _frame_info* fi = &frame_infos[i];
+				if (fi->frame_idx < 0) {
+					continue;
+				}
+				if (fi->pts < 0) {
+					fi->pts = (last == NULL ? 0 : last->pts + 1000000 / fps);
+				}
+				if (last != NULL) {
+					const int64_t d = US_TO_TS(fi->pts) - US_TO_TS(last->pts);
+					if (d > 0) {
+						dur = (uint32_t)d;
+					}
+					last->duration = dur;
+				}
+				last = fi;
+			}
+			if (last != NULL) {
+				last->duration = dur;
+			}
+
+			// Run-length
+			dur = 0;
+			for (i=0; i<frame_info_cnt; i++) {
+				if (frame_infos[i].frame_idx < 0) {
+					continue;
+				}
+				if (stts_cnt == 0 || frame_infos[i].duration != dur) {
+					dur = frame_infos[i].duration;
+					stts_cnt++;
+				}
+				media_duration += frame_infos[i].duration;
+			}
+		}
+
 		// Failure ?
 		if (rcode != 0) {
 			LOGE("%s(L=%d): Failure", __func__, __LINE__);
@@ -201,22 +409,19 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 			break;
 		}
 
-		// Convert address to size.
-		for (i=0; i<frame_info_cnt-1; i++) {
-			frame_infos[i].size = frame_infos[i+1].addr - frame_infos[i].addr - sizeof(START_PAT);
-		}
-		frame_infos[frame_info_cnt-1].size = src_addr - frame_infos[frame_info_cnt-1].addr - sizeof(START_PAT);
-
-		//
+		// (read_at() moved the fd: stdio from the top again)
 		rewind(src_fp);
 
 		//-------------------------------------------------------------
 		// Phase 2 - Convert
 		//-------------------------------------------------------------
 		time_t  now = time(NULL);
-		int32_t duration = 1000 * full_frame_cnt / fps;
+		int32_t duration = (int32_t)(media_duration * 1000 / TIMESCALE);
 
-		uint32_t dst_addr = 0;
+		uint64_t dst_addr = 0;
+
+		// Large size mdat? (> 4GiB)
+		const uint32_t mdat_head = (8 + mdat_size > 0xFFFFFFFFULL ? 16 : 8);
 
 		// Dst: FTYP
 		{
@@ -349,16 +554,14 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 				uint32_t size;
 				uint8_t  kind[4];
 				uint32_t version1_flags3;
-				int32_t  entry_count; // 1 (CFR)
-				int32_t  frames;
-				int32_t  duration; // 1
+				int32_t  entry_count;
+				// struct { int32_t frames; int32_t duration; } entries[entry_count];
 			} box_stts = {
-					htonl(sizeof(struct _stts)),
+					htonl(sizeof(struct _stts) + sizeof(uint32_t)*2*stts_cnt),
 					{'s','t','t','s'},
 					htonl(0x00000000),
-					htonl(1),
-					htonl(full_frame_cnt),
-					htonl(1),
+					htonl(stts_cnt),
+					// -> frame_infos[].duration (run-length)
 			};
 
 			struct _stss {
@@ -425,7 +628,7 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 
 			uint32_t  var_size =
 					sizeof(struct _stsd) + stsd_avc1_avcC_size +
-					sizeof(struct _stts) +
+					sizeof(struct _stts) + sizeof(uint32_t)*2*stts_cnt +
 					sizeof(struct _stss) + sizeof(uint32_t)*sync_frame_cnt +
 					sizeof(struct _stsc) +
 					sizeof(struct _stsz) + sizeof(uint32_t)*full_frame_cnt +
@@ -501,6 +704,15 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 					},
 			};
 
+			// 64-bit chunk offsets? (fixed part of moov < 1KiB)
+			const int32_t co64 = (dst_addr + 1024 + var_size + sizeof(struct _udta) +
+					mdat_head + mdat_size > 0xFFFFFFFFULL);
+			if (co64) {
+				var_size += (sizeof(uint64_t) - sizeof(uint32_t)) * full_frame_cnt;
+				box_stco.size = htonl(sizeof(struct _stco) + sizeof(uint64_t)*full_frame_cnt);
+				memcpy(box_stco.kind, "co64", 4);
+			}
+
 			struct _moov {
 				uint32_t size;
 				uint8_t  kind[4];
@@ -565,8 +777,8 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 							uint32_t version1_flags3;
 							uint32_t created_mac_UTC_date;
 							uint32_t modified_mac_UTC_date;
-							int32_t  timescale_fps;
-							int32_t  duration_frames;
+							int32_t  timescale;
+							int32_t  duration;
 							uint16_t language_code; // ISO-639-2
 							uint16_t predefined;
 						} box_mdhd;
@@ -681,8 +893,8 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 											htonl(0x00000000),
 											htonl(now),
 											htonl(now),
-											htonl(fps),
-											htonl(full_frame_cnt),
+											htonl(TIMESCALE),
+											htonl((uint32_t)media_duration),
 											// 0x55C4 = "und(Undetermined)"
 											// -> ISO-639-2
 											//   u = 75h -(-60h)-> 15h -> 10101b
@@ -748,7 +960,27 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 			dst_addr += fwrite(sps_dat, 1, sps_len, dst_fp);
 			dst_addr += fwrite(&box_stsd_avc1_avcC_part2, sizeof(box_stsd_avc1_avcC_part2), 1, dst_fp) * sizeof(box_stsd_avc1_avcC_part2);
 			dst_addr += fwrite(pps_dat, 1, pps_len, dst_fp);
-			dst_addr += fwrite(&box_stts, sizeof(box_stts), 1, dst_fp) * sizeof(box_stts);
+			{
+				dst_addr += fwrite(&box_stts, sizeof(box_stts), 1, dst_fp) * sizeof(box_stts);
+				uint32_t tmp[2] = {0, 0}; // frames, duration
+				uint32_t frames = 0;
+				uint32_t dur = 0;
+				for (i=0; i<=frame_info_cnt; i++) {
+					if (i < frame_info_cnt && frame_infos[i].frame_idx < 0) {
+						continue;
+					}
+					if (frames > 0 && (i == frame_info_cnt || frame_infos[i].duration != dur)) {
+						tmp[0] = htonl(frames);
+						tmp[1] = htonl(dur);
+						dst_addr += fwrite(tmp, sizeof(tmp), 1, dst_fp) * sizeof(tmp);
+						frames = 0;
+					}
+					if (i < frame_info_cnt) {
+						dur = frame_infos[i].duration;
+						frames++;
+					}
+				}
+			}
 			{
 				dst_addr += fwrite(&box_stss, sizeof(box_stss), 1, dst_fp) * sizeof(box_stss);
 				uint32_t tmp;
@@ -774,15 +1006,22 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 			}
 			{
 				dst_addr += fwrite(&box_stco, sizeof(box_stco), 1, dst_fp) * sizeof(box_stco);
-				uint32_t org = dst_addr + sizeof(uint32_t)*full_frame_cnt + sizeof(box_udta) + 8/*sizeof(box_mdat)*/;
-				uint32_t tmp = 0;
+				const uint32_t entry = (co64 ? sizeof(uint64_t) : sizeof(uint32_t));
+				uint64_t org = dst_addr + entry*full_frame_cnt + sizeof(box_udta) + mdat_head;
+				uint64_t pos = 0;
 				for (i=0; i<frame_info_cnt; i++) {
-					if (tmp == 0) {
-						tmp = htonl(org + frame_infos[i].addr);
+					if (pos == 0) {
+						pos = org + frame_infos[i].dst;
 					}
 					if (frame_infos[i].frame_idx >= 0) {
-						dst_addr += fwrite(&tmp, sizeof(tmp), 1, dst_fp) * sizeof(tmp);
-						tmp = 0;
+						if (co64) {
+							uint64_t tmp = htonll(pos);
+							dst_addr += fwrite(&tmp, sizeof(tmp), 1, dst_fp) * sizeof(tmp);
+						} else {
+							uint32_t tmp = htonl((uint32_t)pos);
+							dst_addr += fwrite(&tmp, sizeof(tmp), 1, dst_fp) * sizeof(tmp);
+						}
+						pos = 0;
 					}
 				}
 			}
@@ -792,50 +1031,80 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 		// Dst: MDAT
 		{
 			struct _mdat {
-				uint32_t size;
+				uint32_t size; // 1 = large size
 				uint8_t  kind[4];
+				uint64_t large_size;
 				//uint8_t  sample_data[full_frame_cnt];
 			} box_mdat = {
-					htonl(sizeof(struct _mdat) + src_addr),
+					htonl(mdat_head == 8 ? (uint32_t)(mdat_head + mdat_size) : 1),
 					{'m','d','a','t'},
+					htonll(mdat_head + mdat_size),
 			};
-			dst_addr += fwrite(&box_mdat, sizeof(box_mdat), 1, dst_fp) * sizeof(box_mdat);
+			dst_addr += fwrite(&box_mdat, mdat_head, 1, dst_fp) * mdat_head;
+
+			// Src -> Dst (zero copy)
+			// A start code and a length have the same size, so the source
+			// goes to mdat as is, and only the start codes are overwritten.
+			// (Raw fds from here: stdio's buffer goes out first.)
+#if ZERO_COPY
+			if (same_layout != 0 && fflush(dst_fp) == 0) {
+				const int dst_fd = fileno(dst_fp);
+				int32_t   res    = send_all(dst_fd, dst_addr, src_fd, mdat_size);
+				for (i=0; i<frame_info_cnt && res == 0; i++) {
+					uint32_t len = htonl(frame_infos[i].size);
+					res = write_at(dst_fd, dst_addr + frame_infos[i].dst, &len, sizeof(len));
+				}
+				if (res == 0) {
+					dst_addr += mdat_size;
+					break;
+				}
+				// sendfile() is not supported etc. -> copy loop
+				// The fds have been moved behind stdio's back: fseeko()
+				// both streams so that stdio takes the positions from
+				// here. (dst_addr: top of mdat, right after moov.)
+				LOGE("%s(L=%d): sendfile error(errno=%d), fallback", __func__, __LINE__, errno);
+				if (fseeko(src_fp, 0, SEEK_SET) != 0 || fseeko(dst_fp, (off_t)dst_addr, SEEK_SET) != 0) {
+					LOGE("%s(L=%d): fseeko error", __func__, __LINE__);
+					rcode = -5;
+					break;
+				}
+			}
+#endif
 
 			// Src -> Dst
-			uint32_t tmp = 0;
-			uint32_t cnt = 0;
-			for (i=0,j=0; i<frame_info_cnt && !feof(src_fp); ) {
-				num = fread(buf, 1, BUF_SIZE, src_fp);
-				bufP = buf;
-				while(num > 0) {
-					if (j == 0) {
-						j = frame_infos[i].size;
-						tmp = htonl(j);
-						dst_addr += fwrite(&tmp, sizeof(tmp), 1, dst_fp) * sizeof(tmp);
-						cnt = sizeof(tmp);
-					}
-					if (cnt > 0) {
-						if (num >= cnt) {
-							bufP += cnt;
-							num  -= cnt;
-							cnt   = 0;
-						} else {
-							bufP += num;
-							cnt  -= num;
-							num   = 0;
+			// Skip start codes (and trailing zeros), and put lengths instead.
+			uint64_t src_pos = 0; // address of bufP
+			num  = 0;
+			bufP = buf;
+			for (i=0; i<frame_info_cnt; i++) {
+				uint64_t skip = frame_infos[i].addr - src_pos;
+				uint32_t rest = frame_infos[i].size;
+				uint32_t tmp  = htonl(rest);
+				dst_addr += fwrite(&tmp, sizeof(tmp), 1, dst_fp) * sizeof(tmp);
+				while (skip > 0 || rest > 0) {
+					if (num == 0) {
+						num  = fread(buf, 1, BUF_SIZE, src_fp);
+						bufP = buf;
+						if (num == 0) {
+							break;
 						}
-					} else if (num >= j) {
-						dst_addr += fwrite(bufP, 1, j, dst_fp);
-						bufP += j;
-						num  -= j;
-						j     = 0;
-						i++;
+					}
+					if (skip > 0) {
+						j = (skip < num ? (uint32_t)skip : num);
+						skip -= j;
 					} else {
-						dst_addr += fwrite(bufP, 1, num, dst_fp);
-						bufP += num;
-						j    -= num;
-						num   = 0;
+						j = (rest < num ? rest : num);
+						dst_addr += fwrite(bufP, 1, j, dst_fp);
+						rest -= j;
 					}
+					bufP    += j;
+					num     -= j;
+					src_pos += j;
+				}
+				if (rest > 0) {
+					LOGE("%s(L=%d): Unexpected EOF", __func__, __LINE__);
+					rcode = -6;
+					break;
 				}
 			}
 		}
@@ -848,6 +1117,9 @@ int32_t cnvavc(const char* src_path, const char* dst_path,
 	if (dst_fp != NULL) {
 		fclose(dst_fp);
 	}
+	if (idx_fp != NULL) {
+		fclose(idx_fp);
+	}
 	if (buf != NULL) {
 		free(buf);
 	}
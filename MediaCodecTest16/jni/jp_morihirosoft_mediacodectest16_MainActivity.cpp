@@ -14,10 +14,15 @@
  * limitations under the License.
  */
 #include "stdio.h"
+#include "time.h"
+#include <pthread.h>
+#include <android/native_window_jni.h>
 
 #include "jp_morihirosoft_mediacodectest16_MainActivity.h"
 #include "Utils.h"
 #include "Effector.h"
+#include "Workers.h"
+#include "Preview.h"
 
 #define  LOG_TAG "JNI"
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
@@ -31,7 +36,7 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
-extern int32_t cnvavc(const char* src_path, const char* dst_path,
+extern int32_t cnvavc(const char* src_path, const char* dst_path, const char* idx_path,
 		int32_t video_w, int32_t video_h, int32_t fps);
 #ifdef __cplusplus
 }
@@ -45,12 +50,107 @@ static bool      sFacingFront = false;
 static int32_t   sVideoW      = 0;
 static int32_t   sVideoH      = 0;
 static int32_t   sFps         = 0;
-static uint32_t  sDataSize    = 0;
-static uint8_t*  sDataP       = NULL;
-static uint32_t* sMaskP       = NULL;
 
 static Utils*    sUtils    = NULL;
 static Effector* sEffector = NULL;
+static Workers*  sWorkers  = NULL;
+
+// Preview: the frame (when not given by Java) and the window it goes to.
+// The window is set from the UI thread, used from the camera thread.
+static uint32_t*       sRgbP        = NULL;
+static PreviewWindow*  sWindow      = NULL;
+static pthread_mutex_t sWindowMutex = PTHREAD_MUTEX_INITIALIZER;
+
+// Stage timings (us, per band: each band is written by one thread only)
+enum {
+	STAGE_EFFECT = 0, // YUV->RGB + effect (preview)
+	STAGE_YUV,        // YUV + effect (recording)
+	STAGE_PREVIEW,    // RGB -> window buffer
+	STAGE_NUM
+};
+#define MAX_BANDS (16)
+static int64_t sFrameCnt = 0;
+static int64_t sWallUs   = 0;
+static int64_t sStageUs[MAX_BANDS][STAGE_NUM];
+
+// native_draw() job
+struct DrawJob {
+	uint8_t*  srcYuvP;
+	uint32_t* dstRgbP;
+	int32_t   dstYuvFmt;
+	uint8_t*  dstYuvP;
+	const PreviewWindow::Buffer* winBuf;
+	bool      scaled;   // winBuf gets the Effector's preview size
+	int32_t   rcode[MAX_BANDS];
+};
+
+static int64_t now_us(void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+// All the stages for rows [y0,y1) (band of Workers)
+static void draw_band(void* arg, int32_t band, int32_t y0, int32_t y1)
+{
+	DrawJob* job = (DrawJob*)arg;
+	int64_t* us  = sStageUs[band];
+	int64_t  t0  = now_us();
+	int64_t  t1;
+
+	// The front camera's H-flip is done by the kernels while reading.
+	// A scaled down preview is drawn straight from YUV if the effect can:
+	// then no full size RGB.
+	bool rgb = false;
+	if (job->winBuf != NULL && job->scaled &&
+			sEffector->drawPreview(job->srcYuvP, job->winBuf->bits, job->winBuf->stride, y0, y1) == 0) {
+		job->rcode[band] = 0;
+		t1 = now_us();
+		us[STAGE_PREVIEW] += t1 - t0;
+		t0 = t1;
+	} else {
+		job->rcode[band] = sEffector->draw(job->srcYuvP, job->dstRgbP, y0, y1, sFacingFront);
+		rgb = true;
+		t1 = now_us();
+		us[STAGE_EFFECT] += t1 - t0;
+		t0 = t1;
+
+		// to the preview window while the band is still in the cache
+		if (job->rcode[band] == 0 && job->winBuf != NULL) {
+			if (job->scaled) {
+				sEffector->copyPreview(job->dstRgbP, job->winBuf->bits, job->winBuf->stride, y0, y1);
+			} else {
+				PreviewWindow::copyRows(job->dstRgbP, sVideoW, *job->winBuf, y0, y1);
+			}
+			t1 = now_us();
+			us[STAGE_PREVIEW] += t1 - t0;
+			t0 = t1;
+		}
+	}
+
+	// for Video recording: directly from YUV if the effect can, or
+	// back from RGB.
+	if (job->rcode[band] == 0 && job->dstYuvP != NULL) {
+		if (sEffector->drawYUV(job->srcYuvP, job->dstYuvFmt, job->dstYuvP, y0, y1, sFacingFront) != 0) {
+			if (!rgb) {
+				sEffector->draw(job->srcYuvP, job->dstRgbP, y0, y1, sFacingFront);
+			}
+			sUtils->yuv_RGBtoYUV(job->dstRgbP, job->dstYuvFmt, job->dstYuvP, y0, y1);
+		}
+		us[STAGE_YUV] += now_us() - t0;
+	}
+}
+
+// Takes the window (NULL: none), for native_draw(jDstRgb=NULL). Any
+// PreviewWindow (MemoryPreviewWindow off the device).
+void set_preview_window(PreviewWindow* window)
+{
+	pthread_mutex_lock(&sWindowMutex);
+	delete sWindow;
+	sWindow = window;
+	pthread_mutex_unlock(&sWindowMutex);
+}
 
 //---------------------------------------------------------------------
 //
@@ -69,7 +169,7 @@ void JNI_OnUnload(JavaVM* vm, void* reserved)
 //---------------------------------------------------------------------
 /** . */
 JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1init
-(JNIEnv* env, jclass clazz, jboolean jFacingFront, jint jVideoW, jint jVideoH, jint jFps, jintArray jMask)
+(JNIEnv* env, jclass clazz, jboolean jFacingFront, jint jVideoW, jint jVideoH, jint jFps, jintArray jMask, jint jThreads)
 {
 	if (jVideoW <= 0 || jVideoH <= 0 || jFps <= 0 || jMask == NULL) {
 		return -1;
@@ -80,24 +180,23 @@ JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native
 	sVideoH = jVideoH;
 	sFps = jFps;
 
-	if (sDataP != NULL) {
-		delete[] sDataP;
-	}
-	sDataSize = sVideoW * sVideoH * 3 / 2;
-	sDataP = new uint8_t[sDataSize];
-
-	uint32_t* maskP = (uint32_t*)(env->GetIntArrayElements(jMask, NULL));
-	if (sMaskP != NULL) {
-		delete[] sMaskP;
-	}
-	sMaskP = new uint32_t[sVideoW * sVideoH];
-	memcpy(sMaskP, maskP, sizeof(uint32_t) * sVideoW * sVideoH);
-	env->ReleaseIntArrayElements(jMask, (jint*)maskP, JNI_ABORT);
-
 	sUtils    = new Utils(jVideoW, jVideoH);
 	sEffector = new Effector();
+	sWorkers  = new Workers(jThreads < MAX_BANDS ? jThreads : MAX_BANDS);
+	sRgbP     = new uint32_t[jVideoW * jVideoH];
 
-	return sEffector->init(sUtils, sVideoW, sVideoH, sMaskP);
+	sFrameCnt = 0;
+	sWallUs   = 0;
+	memset(sStageUs, 0, sizeof(sStageUs));
+
+	// The mask is turned into spans: no copy of it is kept.
+	if (env->GetArrayLength(jMask) < sVideoW * sVideoH) {
+		return -1;
+	}
+	const uint32_t* maskP = (const uint32_t*)(env->GetIntArrayElements(jMask, NULL));
+	jint rcode = sEffector->init(sUtils, sVideoW, sVideoH, maskP);
+	env->ReleaseIntArrayElements(jMask, (jint*)maskP, JNI_ABORT);
+	return rcode;
 }
 
 /** . */
@@ -106,10 +205,16 @@ JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native
 {
 	jint rcode = sEffector->quit();
 
+	if (sWorkers != NULL) {
+		delete sWorkers;
+		sWorkers = NULL;
+	}
 	if (sUtils != NULL) {
 		delete sUtils;
 		sUtils = NULL;
 	}
+	delete[] sRgbP;
+	sRgbP = NULL;
 	if (sEffector != NULL) {
 		delete sEffector;
 		sEffector = NULL;
@@ -117,89 +222,224 @@ JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native
 
 	sVideoW = 0;
 	sVideoH = 0;
-	sDataSize = 0;
-	if (sDataP != NULL) {
-		delete[] sDataP;
-		sDataP = NULL;
-	}
-	if (sMaskP != NULL) {
-		delete[] sMaskP;
-		sMaskP = NULL;
-	}
 
 	return rcode;
 }
 
-/** . */
+/**
+ * jDstRgb: NULL to draw to the window of native_set_window() (if any).
+ * jDstYuv: direct ByteBuffer (encoder frame), or NULL.
+ * The arrays are held as critical regions (no copies) only while the
+ * workers run, so the hold time is bounded by one frame's conversion.
+ */
 JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1draw
-(JNIEnv* env, jclass clazz, jbyteArray jSrcYuv, jintArray jDstRgb, jint jDstYuvFmt, jbyteArray jDstYuv)
+(JNIEnv* env, jclass clazz, jbyteArray jSrcYuv, jintArray jDstRgb, jint jDstYuvFmt, jobject jDstYuv)
 {
-	if (sVideoW <= 0 || sVideoH <= 0 || sDataP == NULL) {
+	if (sVideoW <= 0 || sVideoH <= 0 || sWorkers == NULL) {
+		return -1;
+	}
+	const jsize area = sVideoW * sVideoH;
+	if (env->GetArrayLength(jSrcYuv) < area * 3 / 2 ||
+			(jDstRgb != NULL && env->GetArrayLength(jDstRgb) < area)) {
 		return -1;
 	}
 
-	uint8_t*  srcYuvP = (uint8_t*)(env->GetByteArrayElements(jSrcYuv, NULL));
-	uint32_t* dstRgbP = (uint32_t*)(env->GetIntArrayElements(jDstRgb, NULL));
-	uint8_t*  dstYuvP = NULL;
+	// No JNI calls are allowed inside the critical regions: all the
+	// lookups are done first.
+	uint8_t* dstYuvP = NULL;
 	if (jDstYuv != NULL) {
-		dstYuvP = (uint8_t*)(env->GetByteArrayElements(jDstYuv, NULL));
-	}
-
-	// H-FLIP?
-	if (sFacingFront) {
-		// only for NV21
-		const int32_t w1 = sVideoW;
-		const int32_t h1 = sVideoH;
-		const int32_t wh = w1 / 2;
-		const int32_t hh = h1 / 2;
-		const int32_t w2 = w1 * 2;
-		uint8_t* sy = srcYuvP;
-		uint8_t* dy = sDataP + w1 - 1;
-		unsigned short* suv = ((unsigned short*)srcYuvP) + wh * h1;
-		unsigned short* duv = ((unsigned short*)sDataP)  + wh * h1 + wh - 1;
-		// Y
-		for (int32_t y=h1; y>0; y--) {
-			for (int32_t x=w1; x>0; x--) {
-				*dy-- = *sy++;
-			}
-			dy += w2;
+		dstYuvP = (uint8_t*)(env->GetDirectBufferAddress(jDstYuv));
+		if (dstYuvP == NULL || env->GetDirectBufferCapacity(jDstYuv) < area * 3 / 2) {
+			LOGE("%s(L=%d): not a direct buffer, or too small", __func__, __LINE__);
+			return -1;
+		}
+	}
+
+	// The window buffer (may wait for one: before the critical regions)
+	PreviewWindow::Buffer  winBuf;
+	PreviewWindow::Buffer* winBufP = NULL;
+	if (jDstRgb == NULL) {
+		pthread_mutex_lock(&sWindowMutex);
+		if (sWindow != NULL && sWindow->lock(&winBuf) == 0) {
+			winBufP = &winBuf;
+		}
+	}
+
+	// The preview: the frame if the buffer can take it, or scaled down to
+	// fit in it (the cost goes with the display size).
+	int32_t pw = sVideoW;
+	int32_t ph = sVideoH;
+	if (winBufP != NULL && (winBuf.width < sVideoW || winBuf.height < sVideoH)) {
+		if (winBuf.width * sVideoH < winBuf.height * sVideoW) {
+			pw = winBuf.width;
+			ph = (winBuf.width * sVideoH + sVideoW / 2) / sVideoW;
+		} else {
+			pw = (winBuf.height * sVideoW + sVideoH / 2) / sVideoH;
+			ph = winBuf.height;
+		}
+		if (pw < 1) pw = 1;
+		if (ph < 1) ph = 1;
+		if ((pw != sEffector->previewWidth() || ph != sEffector->previewHeight()) &&
+				sEffector->initPreview(pw, ph, sFacingFront) != 0) {
+			LOGE("%s(L=%d): initPreview(%d,%d) error", __func__, __LINE__, pw, ph);
 		}
-		// U/V
-		for (int32_t y=hh; y>0; y--) {
-			for (int32_t x=wh; x>0; x--) {
-				*duv-- = *suv++;
+	}
+
+	uint8_t*  srcYuvP = (uint8_t*)(env->GetPrimitiveArrayCritical(jSrcYuv, NULL));
+	uint32_t* dstRgbP = (jDstRgb != NULL ? (uint32_t*)(env->GetPrimitiveArrayCritical(jDstRgb, NULL)) : sRgbP);
+	if (srcYuvP == NULL || dstRgbP == NULL) {
+		if (dstRgbP != NULL && jDstRgb != NULL) {
+			env->ReleasePrimitiveArrayCritical(jDstRgb, dstRgbP, JNI_ABORT);
+		}
+		if (srcYuvP != NULL) {
+			env->ReleasePrimitiveArrayCritical(jSrcYuv, srcYuvP, JNI_ABORT);
+		}
+		if (jDstRgb == NULL) {
+			if (winBufP != NULL) {
+				sWindow->post();
 			}
-			duv += w1;
+			pthread_mutex_unlock(&sWindowMutex);
 		}
-	} else {
-		memcpy(sDataP, srcYuvP, sizeof(uint8_t) * sDataSize);
+		return -1;
 	}
 
-	jint rcode = sEffector->draw(sDataP, dstRgbP);
-	if (rcode == 0) {
-		// for Video recording
-		if (dstYuvP != NULL) {
-			sUtils->yuv_RGBtoYUV(dstRgbP, jDstYuvFmt, dstYuvP);
+	// Effect -> YUV, striped over the workers
+	DrawJob job;
+	job.srcYuvP   = srcYuvP;
+	job.dstRgbP   = dstRgbP;
+	job.dstYuvFmt = jDstYuvFmt;
+	job.dstYuvP   = dstYuvP;
+	job.winBuf    = winBufP;
+	job.scaled    = (pw != sVideoW || ph != sVideoH);
+	memset(job.rcode, 0, sizeof(job.rcode));
+
+	const int64_t t0 = now_us();
+	sWorkers->run(draw_band, &job, sVideoH);
+	sWallUs += now_us() - t0;
+	sFrameCnt++;
+
+	jint rcode = 0;
+	for (int32_t i=0; i<sWorkers->threads(); i++) {
+		if (job.rcode[i] != 0) {
+			rcode = job.rcode[i];
 		}
 	}
 
-	env->ReleaseByteArrayElements(jSrcYuv, (jbyte*)srcYuvP, JNI_ABORT);
-	env->ReleaseIntArrayElements(jDstRgb, (jint*)dstRgbP, 0);
-	if (jDstYuv != NULL) {
-		env->ReleaseByteArrayElements(jDstYuv, (jbyte*)dstYuvP, 0);
+	if (jDstRgb != NULL) {
+		env->ReleasePrimitiveArrayCritical(jDstRgb, dstRgbP, 0);
+	}
+	env->ReleasePrimitiveArrayCritical(jSrcYuv, srcYuvP, JNI_ABORT);
+
+	if (jDstRgb == NULL) {
+		if (winBufP != NULL) {
+			PreviewWindow::fillMargins(pw, ph, winBuf);
+			sWindow->post();
+		}
+		pthread_mutex_unlock(&sWindowMutex);
 	}
 
 	return rcode;
 }
 
+/**
+ * Preview window for native_draw(jDstRgb=NULL): jSurface's buffers are
+ * set to jBufW x jBufH. The frame is at the top-left, scaled down if it
+ * does not fit.
+ * NULL: none. Returns non-0 if the surface can not be used.
+ */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1set_1window
+(JNIEnv* env, jclass clazz, jobject jSurface, jint jBufW, jint jBufH)
+{
+	ANativeWindow* window = NULL;
+	if (jSurface != NULL) {
+		if (jBufW <= 0 || jBufH <= 0) {
+			return -1;
+		}
+		window = ANativeWindow_fromSurface(env, jSurface);
+		if (window == NULL) {
+			LOGE("%s(L=%d): ANativeWindow_fromSurface error", __func__, __LINE__);
+			return -1;
+		}
+	}
+
+	set_preview_window(window != NULL ? new NativePreviewWindow(window, jBufW, jBufH) : NULL);
+	return 0;
+}
+
+/**
+ * Adds an effect to the chain drawn on top of the mask (jType:
+ * Effect::Type, jParams: its params). Call after native_init, while no
+ * frames are drawn. Returns its index, or -1.
+ */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1effect_1add
+(JNIEnv* env, jclass clazz, jint jType, jintArray jParams)
+{
+	if (sEffector == NULL) {
+		return -1;
+	}
+	const jsize    n       = (jParams != NULL ? env->GetArrayLength(jParams) : 0);
+	const int32_t* paramsP = (jParams != NULL ? (const int32_t*)(env->GetIntArrayElements(jParams, NULL)) : NULL);
+	Effect* effect = Effect::create(jType, paramsP, n);
+	if (paramsP != NULL) {
+		env->ReleaseIntArrayElements(jParams, (jint*)paramsP, JNI_ABORT);
+	}
+	if (effect == NULL) {
+		LOGE("%s(L=%d): bad effect %d", __func__, __LINE__, jType);
+		return -1;
+	}
+	return sEffector->chain()->add(effect);
+}
+
+/** Removes all the effects of the chain (the mask stays). */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1effect_1clear
+(JNIEnv* env, jclass clazz)
+{
+	if (sEffector == NULL) {
+		return -1;
+	}
+	sEffector->chain()->clear();
+	return 0;
+}
+
+/** {frames, wall, threads, effect, yuv, preview} (us, stages are summed over threads). */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1stats
+(JNIEnv* env, jclass clazz, jlongArray jStats)
+{
+	if (sWorkers == NULL || jStats == NULL) {
+		return -1;
+	}
+
+	jlong stats[3 + STAGE_NUM];
+	stats[0] = sFrameCnt;
+	stats[1] = sWallUs;
+	stats[2] = sWorkers->threads();
+	for (int32_t s=0; s<STAGE_NUM; s++) {
+		stats[3 + s] = 0;
+		for (int32_t b=0; b<sWorkers->threads(); b++) {
+			stats[3 + s] += sStageUs[b][s];
+		}
+	}
+
+	jint n = env->GetArrayLength(jStats);
+	if (n > 3 + STAGE_NUM) {
+		n = 3 + STAGE_NUM;
+	}
+	env->SetLongArrayRegion(jStats, 0, n, stats);
+	return n;
+}
+
 /** . */
 JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1cnvavc
-(JNIEnv* env, jclass clazz, jstring jSrcPath, jstring jDstPath)
+(JNIEnv* env, jclass clazz, jstring jSrcPath, jstring jDstPath, jstring jIdxPath)
 {
 	const char* src_path = env->GetStringUTFChars(jSrcPath, NULL);
 	const char* dst_path = env->GetStringUTFChars(jDstPath, NULL);
+	const char* idx_path = NULL;
+	if (jIdxPath != NULL) {
+		idx_path = env->GetStringUTFChars(jIdxPath, NULL);
+	}
 
-	jint rcode = cnvavc(src_path, dst_path, sVideoW, sVideoH, sFps);
+	jint rcode = cnvavc(src_path, dst_path, idx_path, sVideoW, sVideoH, sFps);
 
 	if (src_path != NULL) {
 		env->ReleaseStringUTFChars(jSrcPath, src_path);
@@ -207,6 +447,9 @@ JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native
 	if (dst_path != NULL) {
 		env->ReleaseStringUTFChars(jDstPath, dst_path);
 	}
+	if (idx_path != NULL) {
+		env->ReleaseStringUTFChars(jIdxPath, idx_path);
+	}
 
 	return rcode;
 }
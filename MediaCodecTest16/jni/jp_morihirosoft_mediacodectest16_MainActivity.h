@@ -12,10 +12,10 @@ extern "C" {
 /*
  * Class:     jp_morihirosoft_mediacodectest16_MainActivity
  * Method:    native_init
- * Signature: (ZIII[I)I
+ * Signature: (ZIII[II)I
  */
 JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1init
-  (JNIEnv *, jclass, jboolean, jint, jint, jint, jintArray);
+  (JNIEnv *, jclass, jboolean, jint, jint, jint, jintArray, jint);
 
 /*
  * Class:     jp_morihirosoft_mediacodectest16_MainActivity
@@ -28,18 +28,50 @@ JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native
 /*
  * Class:     jp_morihirosoft_mediacodectest16_MainActivity
  * Method:    native_draw
- * Signature: ([B[II[B)I
+ * Signature: ([B[IILjava/nio/ByteBuffer;)I
  */
 JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1draw
-  (JNIEnv *, jclass, jbyteArray, jintArray, jint, jbyteArray);
+  (JNIEnv *, jclass, jbyteArray, jintArray, jint, jobject);
+
+/*
+ * Class:     jp_morihirosoft_mediacodectest16_MainActivity
+ * Method:    native_set_window
+ * Signature: (Landroid/view/Surface;II)I
+ */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1set_1window
+  (JNIEnv *, jclass, jobject, jint, jint);
+
+/*
+ * Class:     jp_morihirosoft_mediacodectest16_MainActivity
+ * Method:    native_effect_add
+ * Signature: (I[I)I
+ */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1effect_1add
+  (JNIEnv *, jclass, jint, jintArray);
+
+/*
+ * Class:     jp_morihirosoft_mediacodectest16_MainActivity
+ * Method:    native_effect_clear
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1effect_1clear
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     jp_morihirosoft_mediacodectest16_MainActivity
+ * Method:    native_stats
+ * Signature: ([J)I
+ */
+JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1stats
+  (JNIEnv *, jclass, jlongArray);
 
 /*
  * Class:     jp_morihirosoft_mediacodectest16_MainActivity
  * Method:    native_cnvavc
- * Signature: (Ljava/lang/String;Ljava/lang/String;)I
+ * Signature: (Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)I
  */
 JNIEXPORT jint JNICALL Java_jp_morihirosoft_mediacodectest16_MainActivity_native_1cnvavc
-  (JNIEnv *, jclass, jstring, jstring);
+  (JNIEnv *, jclass, jstring, jstring, jstring);
 
 #ifdef __cplusplus
 }
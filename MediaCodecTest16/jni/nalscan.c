@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <string.h>
+
+#include "nalscan.h"
+
+// 0x80 in each 0x00 byte of v, 0x00 in the others (exact, no borrow)
+#define LOW7S 0x7F7F7F7F7F7F7F7FULL
+#define ZERO_BYTES(v) (~((((v) & LOW7S) + LOW7S) | (v) | LOW7S))
+
+// In memory order: 0x00 00 in the word, its first and last byte 0x00
+#if defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_BIG_ENDIAN__
+#define ZERO_PAIRS(m) ((m) & ((m) << 8))
+#define FIRST_ZERO(m) ((uint32_t)((m) >> 63))
+#define LAST_ZERO(m)  ((uint32_t)((m) >> 7) & 1)
+#else
+#define ZERO_PAIRS(m) ((m) & ((m) >> 8))
+#define FIRST_ZERO(m) ((uint32_t)((m) >> 7) & 1)
+#define LAST_ZERO(m)  ((uint32_t)((m) >> 63))
+#endif
+
+//
+void nalscan_init(nalscan_t* s)
+{
+	s->zeros = 0;
+}
+
+//
+int32_t nalscan_next(nalscan_t* s, const uint8_t* buf, int32_t pos, int32_t len, uint32_t* run)
+{
+	uint32_t zeros = s->zeros;
+	int32_t  i = pos;
+
+	while (i < len) {
+		// Word at a time while no 00 00 is in reach: a start code has
+		// one, a lone 0x00 (as in CABAC data) is passed over. zeros is
+		// then the word's last 0x00, if any.
+		if (zeros <= 1) {
+			uint64_t v, m;
+			while (i + (int32_t)sizeof(v) <= len) {
+				memcpy(&v, buf + i, sizeof(v));
+				m = ZERO_BYTES(v);
+				if (ZERO_PAIRS(m) != 0 || (zeros & FIRST_ZERO(m)) != 0) {
+					break;
+				}
+				zeros = LAST_ZERO(m);
+				i += sizeof(v);
+			}
+			if (i >= len) {
+				break;
+			}
+		}
+
+		// Byte at a time, a word's worth before trying words again. No
+		// branch on 0x00 (dense 0x00 would mispredict it): only a start
+		// code branches.
+		const int32_t stop = (len - i > 8 ? i + 8 : len);
+		while (i < stop) {
+			const uint8_t c = buf[i++];
+			if (c == 0x01 && zeros >= 2) {
+				*run = zeros;
+				s->zeros = 0;
+				return i;
+			}
+			zeros = (zeros + 1) & -(uint32_t)(c == 0x00);
+		}
+	}
+	s->zeros = zeros;
+	return -1;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef __NALSCAN__
+#define __NALSCAN__
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+//---------------------------------------------------------------------
+// Annex-B NAL unit scanner
+//---------------------------------------------------------------------
+// Finds start codes (00 00 01, 00 00 00 01, and any longer 0x00 run
+// before 0x01) in a stream fed in blocks of any size. The 0x00 run
+// is carried over between blocks, so a start code split between two
+// blocks is found too. 00 00 03 (emulation prevention) is not a start
+// code. 8-byte words without 00 00 are skipped at once, the others are
+// scanned a byte at a time without a branch per 0x00.
+//
+// A NAL unit starts just after 0x01 and ends at the first 0x00 of the
+// next run (trailing_zero_8bits are not part of it).
+typedef struct {
+	uint32_t zeros; // 0x00 run at the end of the scanned data
+} nalscan_t;
+
+void nalscan_init(nalscan_t* s);
+
+// Scan buf[pos..len). Returns the index of the next NAL unit (just
+// after 0x01) and its 0x00 run length in *run, or -1 at the end.
+// The returned index may be len (the NAL unit starts in the next block).
+int32_t nalscan_next(nalscan_t* s, const uint8_t* buf, int32_t pos, int32_t len, uint32_t* run);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif // __NALSCAN__
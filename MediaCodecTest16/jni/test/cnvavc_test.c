@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+#include <time.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/stat.h>
+#include <sys/sendfile.h>
+#include <arpa/inet.h>
+
+#include "test_util.h"
+
+//---------------------------------------------------------------------
+// cnvavc() on the host
+//---------------------------------------------------------------------
+// Generates an Annex-B stream (and optionally its sidecar index) the
+// way MyRecorder writes it, converts it with cnvavc(), and checks the
+// result: sample table (stsz, stco/co64, stss, stts), mdat header, and
+// every sample byte for byte at its chunk offset.
+//
+//   cnvavc_test [-m MiB] [-f bytes] [-3] [-i] [-L] [-k] [dir]
+//     -m: source size (default 64)
+//     -f: frame size (default 256 KiB, IDR: twice)
+//     -3: 00 00 01 start codes on every 5th frame (-> copy loop)
+//     -i: with the sidecar index (-> no scan)
+//     -L: fail unless co64 and a large mdat were written (>4 GiB run)
+//     -k: keep the files
+//
+// Builds (Makefile): cnvavc_test (as on the device), cnvavc_test_copy
+// (ZERO_COPY=0: the copy loop only) and cnvavc_test_fallback
+// (sendfile() fails after 1 MiB -> the copy loop takes over).
+extern int32_t cnvavc(const char* src_path, const char* dst_path, const char* idx_path,
+		int32_t video_w, int32_t video_h, int32_t fps);
+
+#define VIDEO_W  (1280)
+#define VIDEO_H  (720)
+#define FPS      (30)
+#define GOP      (30)
+#define FRAME_US (1000000 / FPS)
+#define PAT_MOD  (251)
+
+static const uint8_t SPS[] = {0x67,0x42,0x80,0x1F,0xDA,0x01,0x40,0x16,0xE8,0x06,0xD0,0xA1,0x35};
+static const uint8_t PPS[] = {0x68,0xCE,0x06,0xE2};
+
+static uint8_t* sPat     = NULL; // 1..251 repeated, no 0x00 -> no start code
+static uint32_t sFrameSz = 256 * 1024;
+
+static void put_be32(uint8_t* p, uint32_t v)
+{
+	v = htonl(v);
+	memcpy(p, &v, sizeof(v));
+}
+
+static void put_be64(uint8_t* p, uint64_t v)
+{
+	put_be32(p, (uint32_t)(v >> 32));
+	put_be32(p + 4, (uint32_t)v);
+}
+
+static uint32_t get_be32(const uint8_t* p)
+{
+	uint32_t v;
+	memcpy(&v, p, sizeof(v));
+	return ntohl(v);
+}
+
+static uint64_t get_be64(const uint8_t* p)
+{
+	return ((uint64_t)get_be32(p) << 32) | get_be32(p + 4);
+}
+
+// Frame k: NAL header byte + sPat from a k dependent phase
+static int32_t  is_idr(uint32_t k)     { return (k % GOP) == 0; }
+static uint8_t  frame_head(uint32_t k) { return (is_idr(k) ? 0x65 : 0x41); }
+static uint32_t frame_size(uint32_t k) { return (is_idr(k) ? 2 : 1) * sFrameSz + (k % 7) * 1000; }
+static const uint8_t* frame_body(uint32_t k) { return sPat + (k * 7) % PAT_MOD; }
+
+#ifdef SENDFILE_FAIL
+// Linked with --wrap=sendfile64 (sendfile() with a 64-bit off_t): the
+// first call moves up to 1 MiB (and the fd positions, as a real partial
+// transfer does), then ENOSYS.
+extern ssize_t __real_sendfile64(int out_fd, int in_fd, off_t* offset, size_t count);
+
+ssize_t __wrap_sendfile64(int out_fd, int in_fd, off_t* offset, size_t count)
+{
+	static int32_t called = 0;
+	if (called++ == 0) {
+		return __real_sendfile64(out_fd, in_fd, offset, (count < 1024*1024 ? count : 1024*1024));
+	}
+	errno = ENOSYS;
+	return -1;
+}
+#endif
+
+//---------------------------------------------------------------------
+// Generator
+//---------------------------------------------------------------------
+static int32_t put_nal(FILE* fp, FILE* idx, uint64_t* addr, int32_t short_sc,
+		uint8_t head, const uint8_t* body, uint32_t size, int64_t pts)
+{
+	static const uint8_t SC[4] = {0x00,0x00,0x00,0x01};
+	const uint32_t sc = (short_sc ? 3 : 4);
+	if (fwrite(SC + 4 - sc, 1, sc, fp) != sc ||
+			fwrite(&head, 1, 1, fp) != 1 ||
+			fwrite(body, 1, size - 1, fp) != size - 1) {
+		return -1;
+	}
+	*addr += sc;
+	if (idx != NULL) {
+		uint8_t rec[24];
+		memset(rec, 0, sizeof(rec));
+		put_be64(rec, *addr);
+		put_be32(rec + 8, size);
+		rec[12] = head;
+		put_be64(rec + 16, (uint64_t)pts);
+		if (fwrite(rec, sizeof(rec), 1, idx) != 1) {
+			return -1;
+		}
+	}
+	*addr += size;
+	return 0;
+}
+
+// Returns the number of frames, or -1.
+static int64_t generate(const char* src_path, const char* idx_path, uint64_t total, int32_t short_sc)
+{
+	FILE*    fp   = fopen(src_path, "wb");
+	FILE*    idx  = (idx_path != NULL ? fopen(idx_path, "wb") : NULL);
+	uint64_t addr = 0;
+	uint32_t k;
+	int32_t  res  = (fp != NULL && (idx_path == NULL || idx != NULL) ? 0 : -1);
+
+	if (res == 0) {
+		setvbuf(fp, NULL, _IOFBF, 4*1024*1024);
+		if (idx != NULL) {
+			const uint8_t head[8] = {'A','V','C','I',0,0,0,1};
+			res = (fwrite(head, sizeof(head), 1, idx) == 1 ? 0 : -1);
+		}
+	}
+	if (res == 0) {
+		res = put_nal(fp, idx, &addr, 0, SPS[0], SPS + 1, sizeof(SPS), 0);
+	}
+	if (res == 0) {
+		res = put_nal(fp, idx, &addr, 0, PPS[0], PPS + 1, sizeof(PPS), 0);
+	}
+	for (k=0; res == 0 && addr < total; k++) {
+		res = put_nal(fp, idx, &addr, (short_sc && k % 5 == 4),
+				frame_head(k), frame_body(k), frame_size(k), (int64_t)k * FRAME_US);
+	}
+	if (fp != NULL && fclose(fp) != 0) {
+		res = -1;
+	}
+	if (idx != NULL && fclose(idx) != 0) {
+		res = -1;
+	}
+	return (res == 0 ? (int64_t)k : -1);
+}
+
+//---------------------------------------------------------------------
+// Checker
+//---------------------------------------------------------------------
+// Box [type] in [*pos, end) of mem -> its payload in [*pos, *end)
+static int32_t find_box(const uint8_t* mem, uint64_t* pos, uint64_t* end, const char* type)
+{
+	uint64_t p = *pos;
+	while (p + 8 <= *end) {
+		uint64_t size = get_be32(mem + p);
+		uint32_t head = 8;
+		if (size == 1) {
+			size = get_be64(mem + p + 8);
+			head = 16;
+		}
+		if (size < head || p + size > *end) {
+			return -1;
+		}
+		if (memcmp(mem + p + 4, type, 4) == 0) {
+			*pos = p + head;
+			*end = p + size;
+			return 0;
+		}
+		p += size;
+	}
+	return -1;
+}
+
+static int32_t check(const char* dst_path, uint32_t frames, int32_t want_large)
+{
+	int32_t  res   = -1;
+	int      fd    = open(dst_path, O_RDONLY);
+	uint8_t* moov  = NULL;
+	uint8_t* smp   = NULL;
+	uint64_t moov_len = 0, mdat_pos = 0, mdat_end = 0;
+	int32_t  mdat_large = 0;
+	uint64_t file_size, p;
+	struct stat st;
+
+	if (fd < 0 || fstat(fd, &st) != 0) {
+		FAIL("open %s", dst_path);
+	}
+	file_size = st.st_size;
+
+	// Top level: moov, mdat
+	for (p=0; p+8 <= file_size; ) {
+		uint8_t  h[16];
+		uint64_t size;
+		uint32_t head = 8;
+		if (pread(fd, h, sizeof(h), p) < 8) {
+			FAIL("read box at %llu", (unsigned long long)p);
+		}
+		size = get_be32(h);
+		if (size == 1) {
+			size = get_be64(h + 8);
+			head = 16;
+		}
+		if (size < head || p + size > file_size) {
+			FAIL("bad box size at %llu", (unsigned long long)p);
+		}
+		if (memcmp(h + 4, "moov", 4) == 0) {
+			moov_len = size;
+			moov = (uint8_t*)malloc(size);
+			if (moov == NULL || pread(fd, moov, size, p) != (ssize_t)size) {
+				FAIL("read moov");
+			}
+		} else if (memcmp(h + 4, "mdat", 4) == 0) {
+			mdat_pos   = p + head;
+			mdat_end   = p + size;
+			mdat_large = (head == 16);
+		}
+		p += size;
+	}
+	if (moov == NULL || mdat_end == 0 || p != file_size) {
+		FAIL("moov/mdat missing or trailing data");
+	}
+	if (mdat_end - mdat_pos + 8 > 0xFFFFFFFFULL && !mdat_large) {
+		FAIL("mdat > 4GiB without largesize");
+	}
+
+	// moov/trak/mdia/minf/stbl
+	uint64_t sb = 8, se = moov_len;
+	if (find_box(moov, &sb, &se, "trak") || find_box(moov, &sb, &se, "mdia") ||
+			find_box(moov, &sb, &se, "minf") || find_box(moov, &sb, &se, "stbl")) {
+		FAIL("no stbl");
+	}
+	uint64_t sz = sb, sz_end = se, co = sb, co_end = se, ss = sb, ss_end = se, ts = sb, ts_end = se;
+	int32_t  co64 = 0;
+	if (find_box(moov, &sz, &sz_end, "stsz") || find_box(moov, &ss, &ss_end, "stss") ||
+			find_box(moov, &ts, &ts_end, "stts")) {
+		FAIL("no stsz/stss/stts");
+	}
+	if (find_box(moov, &co, &co_end, "stco") != 0) {
+		co = sb;
+		co_end = se;
+		if (find_box(moov, &co, &co_end, "co64") != 0) {
+			FAIL("no stco/co64");
+		}
+		co64 = 1;
+	}
+	if (want_large && !(co64 && mdat_large)) {
+		FAIL("not a >4GiB layout (co64=%d, large mdat=%d)", co64, mdat_large);
+	}
+
+	// Counts
+	const uint32_t n = get_be32(moov + sz + 8);
+	uint32_t i, j, sum;
+	if (n != frames || get_be32(moov + co + 4) != n) {
+		FAIL("samples: stsz=%u, stco=%u, frames=%u", n, get_be32(moov + co + 4), frames);
+	}
+	for (i=0, sum=0; i<get_be32(moov + ts + 4); i++) {
+		sum += get_be32(moov + ts + 8 + i * 8);
+	}
+	if (sum != n) {
+		FAIL("stts: %u samples", sum);
+	}
+	const uint32_t nsync = get_be32(moov + ss + 4);
+	if (nsync != (frames + GOP - 1) / GOP) {
+		FAIL("stss: %u entries", nsync);
+	}
+	for (i=0; i<nsync; i++) {
+		if (get_be32(moov + ss + 8 + i * 4) != i * GOP + 1) {
+			FAIL("stss[%u]=%u", i, get_be32(moov + ss + 8 + i * 4));
+		}
+	}
+
+	// Samples: [SPS, PPS,] frame k, as length + NAL
+	smp = (uint8_t*)malloc(2 * sFrameSz + 7 * 1000 + 64);
+	if (smp == NULL) {
+		FAIL("malloc");
+	}
+	for (i=0; i<n; i++) {
+		const uint32_t size = get_be32(moov + sz + 12 + i * 4);
+		const uint64_t off  = (co64 ? get_be64(moov + co + 8 + i * 8) : get_be32(moov + co + 8 + i * 4));
+		if (off < mdat_pos || off + size > mdat_end || size > 2 * sFrameSz + 7 * 1000 + 64) {
+			FAIL("sample %u: off=%llu, size=%u out of mdat", i, (unsigned long long)off, size);
+		}
+		if (pread(fd, smp, size, off) != (ssize_t)size) {
+			FAIL("sample %u: read", i);
+		}
+		uint32_t q = 0;
+		if (i == 0) {
+			for (j=0; j<2; j++) {
+				const uint8_t* ps  = (j == 0 ? SPS : PPS);
+				const uint32_t len = (j == 0 ? sizeof(SPS) : sizeof(PPS));
+				if (get_be32(smp + q) != len || memcmp(smp + q + 4, ps, len) != 0) {
+					FAIL("sample 0: %s", (j == 0 ? "SPS" : "PPS"));
+				}
+				q += 4 + len;
+			}
+		}
+		const uint32_t len = frame_size(i);
+		if (q + 4 + len != size || get_be32(smp + q) != len ||
+				smp[q + 4] != frame_head(i) || memcmp(smp + q + 5, frame_body(i), len - 1) != 0) {
+			FAIL("sample %u: data", i);
+		}
+	}
+	printf("check: OK (%u samples, co64=%d, large mdat=%d, %llu bytes)\n",
+			n, co64, mdat_large, (unsigned long long)file_size);
+	res = 0;
+
+done:
+	if (fd >= 0) {
+		close(fd);
+	}
+	free(moov);
+	free(smp);
+	return res;
+}
+
+//---------------------------------------------------------------------
+// main
+//---------------------------------------------------------------------
+int main(int argc, char** argv)
+{
+	uint64_t    total      = 64;
+	int32_t     short_sc   = 0;
+	int32_t     use_idx    = 0;
+	int32_t     want_large = 0;
+	int32_t     keep       = 0;
+	const char* dir        = ".";
+	char        src_path[1024], dst_path[1024], idx_path[1024];
+	int32_t     i, rcode;
+
+	for (i=1; i<argc; i++) {
+		if (strcmp(argv[i], "-m") == 0 && i+1 < argc) {
+			total = strtoull(argv[++i], NULL, 10);
+		} else if (strcmp(argv[i], "-f") == 0 && i+1 < argc) {
+			sFrameSz = (uint32_t)strtoul(argv[++i], NULL, 10);
+		} else if (strcmp(argv[i], "-3") == 0) {
+			short_sc = 1;
+		} else if (strcmp(argv[i], "-i") == 0) {
+			use_idx = 1;
+		} else if (strcmp(argv[i], "-L") == 0) {
+			want_large = 1;
+		} else if (strcmp(argv[i], "-k") == 0) {
+			keep = 1;
+		} else if (argv[i][0] != '-') {
+			dir = argv[i];
+		} else {
+			fprintf(stderr, "usage: %s [-m MiB] [-f bytes] [-3] [-i] [-L] [-k] [dir]\n", argv[0]);
+			return 2;
+		}
+	}
+	if (sFrameSz < 16) {
+		fprintf(stderr, "-f: too small\n");
+		return 2;
+	}
+	total *= 1024 * 1024;
+	snprintf(src_path, sizeof(src_path), "%s/cnvavc_test.h264", dir);
+	snprintf(dst_path, sizeof(dst_path), "%s/cnvavc_test.mp4",  dir);
+	snprintf(idx_path, sizeof(idx_path), "%s/cnvavc_test.idx",  dir);
+
+	// Pattern: long enough for any frame at any phase
+	const uint32_t pat_len = 2 * sFrameSz + 7 * 1000 + PAT_MOD;
+	sPat = (uint8_t*)malloc(pat_len);
+	if (sPat == NULL) {
+		return 1;
+	}
+	for (i=0; i<(int32_t)pat_len; i++) {
+		sPat[i] = (uint8_t)(1 + i % PAT_MOD);
+	}
+
+	double t = now_sec();
+	const int64_t frames = generate(src_path, (use_idx ? idx_path : NULL), total, short_sc);
+	if (frames < 0) {
+		fprintf(stderr, "FAIL: generate %s\n", src_path);
+		return 1;
+	}
+	printf("generate: %lld frames, %.1f MiB, %.2f s%s%s\n", (long long)frames,
+			total / 1048576.0, now_sec() - t,
+			(short_sc ? ", 3-byte start codes" : ""), (use_idx ? ", index" : ""));
+
+	t = now_sec();
+	clock_t cpu = clock();
+	rcode = cnvavc(src_path, dst_path, (use_idx ? idx_path : NULL), VIDEO_W, VIDEO_H, FPS);
+	cpu = clock() - cpu;
+	t = now_sec() - t;
+	if (rcode != 0) {
+		fprintf(stderr, "FAIL: cnvavc rcode=%d\n", rcode);
+		return 1;
+	}
+	printf("cnvavc: %.2f s, %.1f MiB/s, cpu %.2f s\n", t, total / 1048576.0 / t, (double)cpu / CLOCKS_PER_SEC);
+
+	rcode = check(dst_path, (uint32_t)frames, want_large);
+	if (!keep) {
+		unlink(src_path);
+		unlink(dst_path);
+		unlink(idx_path);
+	}
+	free(sPat);
+	return (rcode == 0 ? 0 : 1);
+}
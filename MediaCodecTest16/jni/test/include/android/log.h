@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef __HOST_ANDROID_LOG__
+#define __HOST_ANDROID_LOG__
+
+//---------------------------------------------------------------------
+// <android/log.h> for the host builds in jni/test: to stderr
+//---------------------------------------------------------------------
+#include <stdio.h>
+
+#define ANDROID_LOG_INFO  (4)
+#define ANDROID_LOG_ERROR (6)
+
+#define __android_log_print(prio, tag, ...) \
+	(fprintf(stderr, "%s: ", (tag)), fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+
+#endif // __HOST_ANDROID_LOG__
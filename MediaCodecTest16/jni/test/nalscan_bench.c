@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+
+#include "nalscan.h"
+#include "test_util.h"
+
+//---------------------------------------------------------------------
+// nalscan_next() on the host
+//---------------------------------------------------------------------
+// Scans a generated Annex-B stream in 64 KiB blocks (as cnvavc does)
+// with nalscan_next() and with a byte-at-a-time scanner (the loop
+// cnvavc had before), checks that both find the same NAL units, and
+// prints their speed.
+//
+//   nalscan_bench [-m MiB] [-z N] [-r rounds]
+//     -m: stream size (default 256)
+//     -z: 1/N of the payload bytes are 0x00 (default 256: as in CABAC
+//         slice data; 8: zero-heavy; 1: 00 00 03 repeated, the byte
+//         loop predicts all its branches and is the faster one)
+//     -r: best of (default 5)
+#define BLOCK_SIZE (64*1024)
+
+// NAL units of 100..200000 bytes, 3/4-byte start codes, payload with
+// emulation prevention (no 00 00 0x, x<=3, inside a NAL unit).
+// Returns the stream length, the number of NAL units in *nals.
+static uint32_t generate(uint8_t* buf, uint32_t len, uint32_t zero_1n, uint32_t* nals)
+{
+	uint32_t pos = 0;
+	*nals = 0;
+	while (pos + 4 + 200000 + 200000/2 < len) {
+		const uint32_t size = 100 + next_rand() % 200000;
+		uint32_t zeros = 0;
+		uint32_t i;
+		if (next_rand() % 4 == 0) {
+			buf[pos++] = 0x00;
+		}
+		buf[pos++] = 0x00;
+		buf[pos++] = 0x00;
+		buf[pos++] = 0x01;
+		buf[pos++] = (next_rand() % 8 == 0 ? 0x65 : 0x41);
+		for (i=1; i<size; i++) {
+			const uint32_t r = next_rand();
+			uint8_t c = (r % zero_1n == 0 ? 0x00 : (uint8_t)(1 + (r >> 8) % 255));
+			if (zeros >= 2 && c <= 0x03) {
+				buf[pos++] = 0x03;
+				zeros = 0;
+			}
+			buf[pos++] = c;
+			zeros = (c == 0x00 ? zeros + 1 : 0);
+		}
+		if (zeros > 0) {
+			buf[pos++] = 0x03; // rbsp does not end with 0x00
+		}
+		(*nals)++;
+	}
+	return pos;
+}
+
+// Byte at a time, the 0x00 run carried over between blocks
+static int32_t scan_bytes(uint32_t* zeros, const uint8_t* buf, int32_t pos, int32_t len)
+{
+	uint32_t z = *zeros;
+	int32_t  i;
+	for (i=pos; i<len; i++) {
+		if (buf[i] == 0x00) {
+			z++;
+		} else if (buf[i] == 0x01 && z >= 2) {
+			*zeros = 0;
+			return i + 1;
+		} else {
+			z = 0;
+		}
+	}
+	*zeros = z;
+	return -1;
+}
+
+// Returns the number of NAL units; their addresses summed into *sum.
+static uint32_t run(const uint8_t* data, uint32_t len, int32_t word, uint64_t* sum)
+{
+	nalscan_t scan;
+	uint32_t  zeros = 0;
+	uint32_t  nals  = 0;
+	uint32_t  base;
+	nalscan_init(&scan);
+	*sum = 0;
+	for (base=0; base<len; base+=BLOCK_SIZE) {
+		const uint8_t* buf = data + base;
+		const int32_t  num = (len - base < BLOCK_SIZE ? len - base : BLOCK_SIZE);
+		int32_t  pos = 0;
+		uint32_t r;
+		while ((pos = (word ? nalscan_next(&scan, buf, pos, num, &r) : scan_bytes(&zeros, buf, pos, num))) >= 0) {
+			*sum += base + pos;
+			nals++;
+		}
+	}
+	return nals;
+}
+
+int main(int argc, char** argv)
+{
+	uint32_t mib    = 256;
+	uint32_t zero_n = 256;
+	int32_t  rounds = 5;
+	int32_t  i, w;
+
+	for (i=1; i<argc; i++) {
+		if (strcmp(argv[i], "-m") == 0 && i+1 < argc) {
+			mib = (uint32_t)strtoul(argv[++i], NULL, 10);
+		} else if (strcmp(argv[i], "-z") == 0 && i+1 < argc) {
+			zero_n = (uint32_t)strtoul(argv[++i], NULL, 10);
+		} else if (strcmp(argv[i], "-r") == 0 && i+1 < argc) {
+			rounds = atoi(argv[++i]);
+		} else {
+			fprintf(stderr, "usage: %s [-m MiB] [-z N] [-r rounds]\n", argv[0]);
+			return 2;
+		}
+	}
+	if (mib < 1 || mib > 2047 || zero_n < 1 || rounds < 1) {
+		fprintf(stderr, "bad args\n");
+		return 2;
+	}
+
+	const uint32_t alc  = mib * 1024 * 1024;
+	uint8_t*       data = (uint8_t*)malloc(alc);
+	if (data == NULL) {
+		return 1;
+	}
+	uint32_t       nal_num;
+	const uint32_t len = generate(data, alc, zero_n, &nal_num);
+
+	uint32_t nals[2];
+	uint64_t sums[2];
+	double   best[2];
+	for (w=0; w<2; w++) {
+		best[w] = 1e9;
+		for (i=0; i<rounds; i++) {
+			const double t = now_sec();
+			nals[w] = run(data, len, w, &sums[w]);
+			const double d = now_sec() - t;
+			if (d < best[w]) {
+				best[w] = d;
+			}
+		}
+	}
+	printf("stream: %.1f MiB, 1/%u zeros, %u NAL units%s\n", len / 1048576.0, zero_n, nals[1],
+			(zero_n == 1 ? " (00 00 03 repeated: byte loop favored)" : ""));
+	printf("  byte at a time : %7.1f MiB/s\n", len / 1048576.0 / best[0]);
+	printf("  nalscan_next() : %7.1f MiB/s (x%.2f)\n", len / 1048576.0 / best[1], best[0] / best[1]);
+	free(data);
+
+	CHECK(nals[0] == nal_num && nals[1] == nal_num && sums[0] == sums[1],
+			"NAL units differ (%u, %u, %u)", nal_num, nals[0], nals[1]);
+	return check_result();
+}
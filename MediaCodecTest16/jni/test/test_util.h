@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef TEST_UTIL_H_
+#define TEST_UTIL_H_
+
+#include <stdio.h>
+#include <stdint.h>
+#include <time.h>
+
+//---------------------------------------------------------------------
+// Helpers for the host programs in jni/test
+//---------------------------------------------------------------------
+
+// xorshift32: the same data for any run (NalScannerBench.java too)
+static uint32_t sRand = 2463534242U;
+static inline uint32_t next_rand(void)
+{
+	sRand ^= sRand << 13;
+	sRand ^= sRand >> 17;
+	sRand ^= sRand << 5;
+	return sRand;
+}
+
+static inline double now_sec(void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec * 1e-9;
+}
+
+// CHECK(): report and count a failure, then go on (see check_result()).
+// FAIL():  report a failure and goto done.
+static int32_t sFails = 0;
+
+#define CHECK(cond, ...) do { \
+	if (!(cond)) { \
+		fprintf(stderr, "FAIL: " __VA_ARGS__); \
+		fputc('\n', stderr); \
+		sFails++; \
+	} \
+} while (0)
+
+#define FAIL(...) do { fprintf(stderr, "FAIL: " __VA_ARGS__); fputc('\n', stderr); goto done; } while (0)
+
+// Exit code: 1 if any CHECK() failed
+static inline int32_t check_result(void)
+{
+	if (sFails > 0) {
+		fprintf(stderr, "FAIL: %d checks\n", sFails);
+		return 1;
+	}
+	return 0;
+}
+
+#endif // TEST_UTIL_H_
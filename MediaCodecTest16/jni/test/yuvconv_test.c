@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <stdint.h>
+
+#include "yuvconv.h"
+#include "test_util.h"
+
+//---------------------------------------------------------------------
+// yuvconv on the host
+//---------------------------------------------------------------------
+// Checks the kernels chosen by yuvconv_init() (SSE2 here) against the
+// plain C ones, and both against the Utils code they replaced, then
+// prints their speed.
+// - SIMD vs C: bit-identical, all conversions, both hflip settings,
+//   partial bands and columns.
+// - NV21 -> ARGB vs Utils::yuv_YUVtoRGB(): bit-identical.
+// - ARGB -> YUV vs Utils::yuv_RGBtoNV12/NV21/I420(): Y bit-identical.
+//   U/V: Utils took the top-left pixel, yuvconv the 2x2 average, so
+//   they are identical for flat blocks only; the others are counted.
+//
+//   yuvconv_test [-s WxH] [-r rounds]
+//     -s: timed frame size (default 640x480)
+//     -r: best of (default 20)
+
+//---------------------------------------------------------------------
+// Utils (before yuvconv), as it was
+//---------------------------------------------------------------------
+static uint32_t utils_YUVtoRGB_1(int32_t y, int32_t u, int32_t v)
+{
+	y *= 1192;
+
+	int32_t r = (y + 1634 * v);
+	int32_t g = (y - 833 * v - 400 * u);
+	int32_t b = (y + 2066 * u);
+
+	r = (r<0 ? 0 : (r>262143 ? 262143 : r));
+	g = (g<0 ? 0 : (g>262143 ? 262143 : g));
+	b = (b<0 ? 0 : (b>262143 ? 262143 : b));
+
+	return (uint32_t)(
+			(0x00FF0000 & (r<< 6)) |
+			(0x0000FF00 & (g>> 2)) |
+			(0x000000FF & (b>>10)));
+}
+
+static void utils_YUVtoRGB(const uint8_t* yuv, uint32_t* rgb32, uint32_t vw, uint32_t vh)
+{
+	const uint8_t* yP1 = &yuv[0];
+	const uint8_t* yP2 = &yuv[vw];
+	const uint8_t* vuP = &yuv[vw * vh];
+	uint32_t* rgb32P1  = &rgb32[0];
+	uint32_t* rgb32P2  = &rgb32[vw];
+
+	for (uint32_t i=0; i<vh/2; i++) {
+		for (uint32_t j=0; j<vw/2; j++) {
+			int32_t y1 = ((*(yP1++))&0xFF) - 16;
+			if (y1 < 0) y1 = 0;
+			int32_t y2 = ((*(yP1++))&0xFF) - 16;
+			if (y2 < 0) y2 = 0;
+			int32_t y3 = ((*(yP2++))&0xFF) - 16;
+			if (y3 < 0) y3 = 0;
+			int32_t y4 = ((*(yP2++))&0xFF) - 16;
+			if (y4 < 0) y4 = 0;
+
+			int32_t v = ((*(vuP++))&0xFF) - 128;
+			int32_t u = ((*(vuP++))&0xFF) - 128;
+
+			*(rgb32P1++) = utils_YUVtoRGB_1(y1, u, v);
+			*(rgb32P1++) = utils_YUVtoRGB_1(y2, u, v);
+			*(rgb32P2++) = utils_YUVtoRGB_1(y3, u, v);
+			*(rgb32P2++) = utils_YUVtoRGB_1(y4, u, v);
+		}
+		yP1 = yP2;
+		yP2 += vw;
+		rgb32P1 = rgb32P2;
+		rgb32P2 += vw;
+	}
+}
+
+// NV12/NV21/I420 in one: U/V from the top-left pixel of each block
+static void utils_RGBtoYUV(const uint32_t* rgb32, uint8_t* yuv, int32_t fmt, uint32_t vw, uint32_t vh)
+{
+	const uint32_t va = vw * vh;
+	int32_t yIndex  = 0;
+	int32_t uvIndex = va;
+	int32_t uIndex  = va;
+	int32_t vIndex  = va + va / 4;
+
+	for (uint32_t i=0,k=0; i<vh; i++) {
+		for (uint32_t j=0; j<vw; j++,k++) {
+			const int32_t R = (rgb32[k] & 0x00FF0000) >> 16;
+			const int32_t G = (rgb32[k] & 0x0000FF00) >> 8;
+			const int32_t B = (rgb32[k] & 0x000000FF);
+
+			const int32_t Y = (( 66*R + 129*G +  25*B + 128) >> 8) +  16;
+			yuv[yIndex++] = (uint8_t) ((Y < 0) ? 0 : ((Y > 255) ? 255 : Y));
+
+			if (i % 2 == 0 && j % 2 == 0) {
+				int32_t U = ((-38*R -  74*G + 112*B + 128) >> 8) + 128;
+				int32_t V = ((112*R -  94*G -  18*B + 128) >> 8) + 128;
+				U = (U<0) ? 0 : ((U > 255) ? 255 : U);
+				V = (V<0) ? 0 : ((V > 255) ? 255 : V);
+				switch (fmt) {
+				case YUVCONV_NV12: yuv[uvIndex++] = (uint8_t)U; yuv[uvIndex++] = (uint8_t)V; break;
+				case YUVCONV_NV21: yuv[uvIndex++] = (uint8_t)V; yuv[uvIndex++] = (uint8_t)U; break;
+				default:           yuv[uIndex++]  = (uint8_t)U; yuv[vIndex++]  = (uint8_t)V; break;
+				}
+			}
+		}
+	}
+}
+
+//---------------------------------------------------------------------
+// Frames
+//---------------------------------------------------------------------
+#define PAT_RANDOM  (0)
+#define PAT_SMOOTH  (1) // gradients, most 2x2 blocks close to flat
+#define PAT_EXTREME (2) // 0x00/0xFF and the clamp limits
+#define PAT_FLAT    (3) // flat 2x2 blocks
+#define PAT_NUM     (4)
+
+static const char* PAT_NAME[PAT_NUM] = { "random", "smooth", "extreme", "flat" };
+
+static uint8_t pat_byte(int32_t pat, int32_t x, int32_t y)
+{
+	switch (pat) {
+	case PAT_RANDOM:  return (uint8_t)next_rand();
+	case PAT_SMOOTH:  return (uint8_t)((x * 3 + y * 5) / 4 + (next_rand() & 3));
+	case PAT_EXTREME: {
+		static const uint8_t v[] = { 0, 15, 16, 17, 127, 128, 235, 240, 255 };
+		return v[next_rand() % sizeof(v)];
+	}
+	default:          return (uint8_t)(((x / 2) * 37 + (y / 2) * 91) ^ 0x5A);
+	}
+}
+
+static void fill_nv21(uint8_t* yuv, int32_t w, int32_t h, int32_t pat)
+{
+	for (int32_t y=0; y<h; y++) {
+		for (int32_t x=0; x<w; x++) {
+			yuv[w * y + x] = pat_byte(pat, x, y);
+		}
+	}
+	for (int32_t y=0; y<h/2; y++) {
+		for (int32_t x=0; x<w; x++) {
+			yuv[w * h + w * y + x] = pat_byte(pat, x, y);
+		}
+	}
+}
+
+static void fill_argb(uint32_t* rgb, int32_t w, int32_t h, int32_t pat)
+{
+	for (int32_t y=0; y<h; y++) {
+		for (int32_t x=0; x<w; x++) {
+			const int32_t fx = (pat == PAT_FLAT ? x & ~1 : x);
+			const int32_t fy = (pat == PAT_FLAT ? y & ~1 : y);
+			uint32_t c = 0;
+			for (int32_t k=0; k<3; k++) {
+				c = (c << 8) | pat_byte(pat == PAT_FLAT ? PAT_FLAT : pat, fx + k * 7, fy + k * 3);
+			}
+			rgb[w * y + x] = c;
+		}
+	}
+}
+
+//---------------------------------------------------------------------
+// Checks
+//---------------------------------------------------------------------
+static void check_to_argb(int32_t w, int32_t h, int32_t pat)
+{
+	const int32_t n = w * h;
+	uint8_t*  yuv = (uint8_t*)malloc(n * 3 / 2);
+	uint32_t* ref = (uint32_t*)malloc(n * 4);
+	uint32_t* c   = (uint32_t*)malloc(n * 4);
+	uint32_t* s   = (uint32_t*)malloc(n * 4);
+	fill_nv21(yuv, w, h, pat);
+
+	// Whole frame vs Utils
+	utils_YUVtoRGB(yuv, ref, w, h);
+	yuvconv_nv21_to_argb_c(yuv, c, w, h, 0, h, 0, w, 0);
+	yuvconv_nv21_to_argb(yuv, s, w, h, 0, h, 0);
+	CHECK(memcmp(ref, c, n * 4) == 0, "nv21_to_argb_c != Utils (%dx%d %s)", w, h, PAT_NAME[pat]);
+	CHECK(memcmp(ref, s, n * 4) == 0, "nv21_to_argb != Utils (%dx%d %s)", w, h, PAT_NAME[pat]);
+
+	// hflip, a band and columns: SIMD vs C (the rest untouched)
+	for (int32_t hflip=0; hflip<2; hflip++) {
+		const int32_t y0 = (h >= 8 ? 2 : 0);
+		const int32_t y1 = (h >= 8 ? h - 4 : h);
+		const int32_t x0 = (w >= 8 ? 2 : 0);
+		const int32_t x1 = (w >= 8 ? w - 2 : w);
+		memset(c, 0xAB, n * 4);
+		memset(s, 0xAB, n * 4);
+		yuvconv_nv21_to_argb_c(yuv, c, w, h, y0, y1, 0, w, hflip);
+		yuvconv_nv21_to_argb(yuv, s, w, h, y0, y1, hflip);
+		CHECK(memcmp(c, s, n * 4) == 0, "nv21_to_argb rows [%d,%d) hflip=%d (%dx%d %s)",
+				y0, y1, hflip, w, h, PAT_NAME[pat]);
+		memset(c, 0xAB, n * 4);
+		memset(s, 0xAB, n * 4);
+		yuvconv_nv21_to_argb_c(yuv, c, w, h, y0, y1, x0, x1, hflip);
+		yuvconv_nv21_to_argb_cols(yuv, s, w, h, y0, y1, x0, x1, hflip);
+		CHECK(memcmp(c, s, n * 4) == 0, "nv21_to_argb_cols [%d,%d) hflip=%d (%dx%d %s)",
+				x0, x1, hflip, w, h, PAT_NAME[pat]);
+	}
+	free(yuv);
+	free(ref);
+	free(c);
+	free(s);
+}
+
+// Returns the number of U/V bytes that differ from Utils.
+static int32_t check_to_yuv(int32_t w, int32_t h, int32_t pat, int32_t fmt, int32_t* max_diff)
+{
+	const int32_t n = w * h;
+	uint32_t* rgb = (uint32_t*)malloc(n * 4);
+	uint8_t*  ref = (uint8_t*)malloc(n * 3 / 2);
+	uint8_t*  c   = (uint8_t*)malloc(n * 3 / 2);
+	uint8_t*  s   = (uint8_t*)malloc(n * 3 / 2);
+	int32_t   diffs = 0;
+	fill_argb(rgb, w, h, pat);
+
+	utils_RGBtoYUV(rgb, ref, fmt, w, h);
+	yuvconv_argb_to_yuv_c(rgb, c, fmt, w, h, 0, h, 0);
+	CHECK(yuvconv_argb_to_yuv(rgb, s, fmt, w, h, 0, h) == 0, "argb_to_yuv fmt=%d", fmt);
+	CHECK(memcmp(c, s, n * 3 / 2) == 0, "argb_to_yuv != _c (%dx%d %s fmt=%d)", w, h, PAT_NAME[pat], fmt);
+	CHECK(memcmp(ref, s, n) == 0, "argb_to_yuv Y != Utils (%dx%d %s fmt=%d)", w, h, PAT_NAME[pat], fmt);
+	for (int32_t i=n; i<n*3/2; i++) {
+		const int32_t d = abs((int32_t)ref[i] - (int32_t)s[i]);
+		if (d != 0) {
+			diffs++;
+			if (d > *max_diff) {
+				*max_diff = d;
+			}
+		}
+	}
+	if (pat == PAT_FLAT) {
+		CHECK(diffs == 0, "argb_to_yuv U/V != Utils for flat blocks (%dx%d fmt=%d)", w, h, fmt);
+	}
+
+	// A band: SIMD vs C (the rest untouched)
+	if (h >= 8) {
+		memset(c, 0xAB, n * 3 / 2);
+		memset(s, 0xAB, n * 3 / 2);
+		yuvconv_argb_to_yuv_c(rgb, c, fmt, w, h, 2, h - 4, 0);
+		yuvconv_argb_to_yuv(rgb, s, fmt, w, h, 2, h - 4);
+		CHECK(memcmp(c, s, n * 3 / 2) == 0, "argb_to_yuv rows [2,%d) (%dx%d %s fmt=%d)",
+				h - 4, w, h, PAT_NAME[pat], fmt);
+	}
+	free(rgb);
+	free(ref);
+	free(c);
+	free(s);
+	return diffs;
+}
+
+// yuvconv_nv21_to_rgbx_row() vs the blocks gathered here, converted by
+// the C kernel
+static void check_to_rgbx(int32_t w, int32_t h, int32_t pat)
+{
+	const int32_t dw = w / 2 + 13; // up and down, and > ROW_CHUNK for the wide ones
+	uint8_t*  yuv  = (uint8_t*)malloc(w * h * 3 / 2);
+	int32_t*  xmap = (int32_t*)malloc(dw * sizeof(int32_t));
+	uint32_t* c    = (uint32_t*)malloc(dw * 4);
+	uint32_t* s    = (uint32_t*)malloc(dw * 4);
+	uint8_t*  ys   = (uint8_t*)malloc(dw);
+	uint8_t*  us   = (uint8_t*)malloc(dw);
+	uint8_t*  vs   = (uint8_t*)malloc(dw);
+	fill_nv21(yuv, w, h, pat);
+	for (int32_t x=0; x<dw; x++) {
+		xmap[x] = (int32_t)(((int64_t)x * (w / 2)) / dw) * 2;
+	}
+
+	for (int32_t sy=0; sy<h; sy+=2) {
+		const uint8_t* s1 = yuv + w * sy;
+		const uint8_t* s2 = s1 + w;
+		const uint8_t* vu = yuv + w * h + w * (sy / 2);
+		for (int32_t x=0; x<dw; x++) {
+			const int32_t k = xmap[x];
+			ys[x] = (uint8_t)((s1[k] + s1[k + 1] + s2[k] + s2[k + 1] + 2) >> 2);
+			vs[x] = vu[k];
+			us[x] = vu[k + 1];
+		}
+		memset(c, 0xAB, dw * 4);
+		memset(s, 0xAB, dw * 4);
+		yuvconv_yuv444_to_rgbx_c(ys, us, vs, c, 1, dw);
+		yuvconv_nv21_to_rgbx_row(yuv, w, h, sy, xmap, s, 1, dw);
+		if (memcmp(c, s, dw * 4) != 0) {
+			CHECK(0, "nv21_to_rgbx_row sy=%d (%dx%d %s)", sy, w, h, PAT_NAME[pat]);
+			break;
+		}
+	}
+	free(yuv);
+	free(xmap);
+	free(c);
+	free(s);
+	free(ys);
+	free(us);
+	free(vs);
+}
+
+//---------------------------------------------------------------------
+// Speed
+//---------------------------------------------------------------------
+#define TIME_BEST(rounds, best, stmt) do { \
+	best = 1e9; \
+	for (int32_t r_=0; r_<(rounds); r_++) { \
+		const double t_ = now_sec(); \
+		stmt; \
+		const double d_ = now_sec() - t_; \
+		if (d_ < best) best = d_; \
+	} \
+} while (0)
+
+static void bench(int32_t w, int32_t h, int32_t rounds, const char* name)
+{
+	const int32_t n  = w * h;
+	const int32_t dw = w / 2;
+	uint8_t*  yuv  = (uint8_t*)malloc(n * 3 / 2);
+	uint32_t* rgb  = (uint32_t*)malloc(n * 4);
+	int32_t*  xmap = (int32_t*)malloc(dw * sizeof(int32_t));
+	uint8_t*  ys   = (uint8_t*)malloc(dw);
+	uint8_t*  us   = (uint8_t*)malloc(dw);
+	uint8_t*  vs   = (uint8_t*)malloc(dw);
+	double    t[2];
+	fill_nv21(yuv, w, h, PAT_RANDOM);
+	for (int32_t x=0; x<dw; x++) {
+		xmap[x] = x * 2;
+	}
+
+	printf("%dx%d, ms/frame (best of %d):\n", w, h, rounds);
+	TIME_BEST(rounds, t[0], utils_YUVtoRGB(yuv, rgb, w, h));
+	TIME_BEST(rounds, t[1], yuvconv_nv21_to_argb(yuv, rgb, w, h, 0, h, 0));
+	printf("  NV21 -> ARGB    Utils %6.3f  %-4s %6.3f (x%.1f)\n", t[0] * 1e3, name, t[1] * 1e3, t[0] / t[1]);
+	TIME_BEST(rounds, t[0], yuvconv_nv21_to_argb_c(yuv, rgb, w, h, 0, h, 0, w, 0));
+	printf("                  c     %6.3f\n", t[0] * 1e3);
+
+	TIME_BEST(rounds, t[0], utils_RGBtoYUV(rgb, yuv, YUVCONV_NV21, w, h));
+	TIME_BEST(rounds, t[1], yuvconv_argb_to_yuv(rgb, yuv, YUVCONV_NV21, w, h, 0, h));
+	printf("  ARGB -> NV21    Utils %6.3f  %-4s %6.3f (x%.1f)\n", t[0] * 1e3, name, t[1] * 1e3, t[0] / t[1]);
+	TIME_BEST(rounds, t[0], yuvconv_argb_to_yuv_c(rgb, yuv, YUVCONV_NV21, w, h, 0, h, 0));
+	printf("                  c     %6.3f\n", t[0] * 1e3);
+
+	// Half size preview (h/2 rows of w/2); c: the same gather, C kernel
+	TIME_BEST(rounds, t[1], for (int32_t sy=0; sy<h; sy+=2) {
+		yuvconv_nv21_to_rgbx_row(yuv, w, h, sy, xmap, rgb + dw * (sy / 2), 0, dw);
+	});
+	TIME_BEST(rounds, t[0], for (int32_t sy=0; sy<h; sy+=2) {
+		const uint8_t* s1 = yuv + w * sy;
+		const uint8_t* s2 = s1 + w;
+		const uint8_t* vu = yuv + n + w * (sy / 2);
+		for (int32_t x=0; x<dw; x++) {
+			const int32_t k = xmap[x];
+			ys[x] = (uint8_t)((s1[k] + s1[k + 1] + s2[k] + s2[k + 1] + 2) >> 2);
+			vs[x] = vu[k];
+			us[x] = vu[k + 1];
+		}
+		yuvconv_yuv444_to_rgbx_c(ys, us, vs, rgb + dw * (sy / 2), 0, dw);
+	});
+	printf("  NV21 -> RGBX/2  c     %6.3f  %-4s %6.3f (x%.1f)\n", t[0] * 1e3, name, t[1] * 1e3, t[0] / t[1]);
+
+	free(yuv);
+	free(rgb);
+	free(xmap);
+	free(ys);
+	free(us);
+	free(vs);
+}
+
+int main(int argc, char** argv)
+{
+	static const int32_t SIZES[][2] = {
+		{ 640, 480 }, { 648, 480 }, { 1280, 720 }, { 22, 16 }, { 16, 16 }, { 2, 2 }, { 176, 144 },
+	};
+	static const int32_t FMTS[] = { YUVCONV_NV12, YUVCONV_NV21, YUVCONV_I420 };
+	int32_t bw = 640, bh = 480, rounds = 20;
+
+	for (int32_t i=1; i<argc; i++) {
+		if (strcmp(argv[i], "-s") == 0 && i+1 < argc) {
+			if (sscanf(argv[++i], "%dx%d", &bw, &bh) != 2) {
+				bw = 0;
+			}
+		} else if (strcmp(argv[i], "-r") == 0 && i+1 < argc) {
+			rounds = atoi(argv[++i]);
+		} else {
+			fprintf(stderr, "usage: %s [-s WxH] [-r rounds]\n", argv[0]);
+			return 2;
+		}
+	}
+	if (bw < 2 || bh < 2 || (bw & 1) || (bh & 1) || rounds < 1) {
+		fprintf(stderr, "bad args\n");
+		return 2;
+	}
+
+	const char* name = yuvconv_init();
+	printf("kernels: %s\n", name);
+
+	int32_t uv_diffs = 0, uv_num = 0, uv_max = 0;
+	for (uint32_t i=0; i<sizeof(SIZES)/sizeof(SIZES[0]); i++) {
+		const int32_t w = SIZES[i][0];
+		const int32_t h = SIZES[i][1];
+		for (int32_t pat=0; pat<PAT_NUM; pat++) {
+			check_to_argb(w, h, pat);
+			check_to_rgbx(w, h, pat);
+			for (uint32_t f=0; f<sizeof(FMTS)/sizeof(FMTS[0]); f++) {
+				uv_diffs += check_to_yuv(w, h, pat, FMTS[f], &uv_max);
+				uv_num   += w * h / 2;
+			}
+		}
+	}
+	printf("U/V vs Utils (top-left pixel): %d of %d bytes differ, max %d\n", uv_diffs, uv_num, uv_max);
+	if (check_result() != 0) {
+		return 1;
+	}
+	printf("OK: %s = c = Utils (U/V: 2x2 average)\n", name);
+
+	bench(bw, bh, rounds, name);
+	return 0;
+}
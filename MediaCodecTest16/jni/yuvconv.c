@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <stddef.h>
+
+#if defined(HAVE_NEON) && !defined(__aarch64__)
+#include <cpu-features.h>
+#endif
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#endif
+
+#include "yuvconv.h"
+
+//---------------------------------------------------------------------
+// C
+//---------------------------------------------------------------------
+// NV21 -> ARGB of 1 pixel (y, u, v: -16 / -128 applied)
+static inline uint32_t to_argb_1(int32_t y, int32_t u, int32_t v)
+{
+	if (y < 0) y = 0;
+	y *= 1192;
+
+	int32_t r = (y + 1634 * v);
+	int32_t g = (y - 833 * v - 400 * u);
+	int32_t b = (y + 2066 * u);
+
+	r = (r<0 ? 0 : (r>262143 ? 262143 : r));
+	g = (g<0 ? 0 : (g>262143 ? 262143 : g));
+	b = (b<0 ? 0 : (b>262143 ? 262143 : b));
+
+	return (uint32_t)(
+			(0x00FF0000 & (r<< 6)) |
+			(0x0000FF00 & (g>> 2)) |
+			(0x000000FF & (b>>10)));
+}
+
+//
+void yuvconv_nv21_to_argb_c(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip)
+{
+	for (int32_t i=y0; i<y1; i+=2) {
+		const uint8_t* s1 = yuv + w * i;
+		const uint8_t* s2 = s1 + w;
+		const uint8_t* vu = yuv + w * h + w * (i / 2);
+		uint32_t*      d1 = rgb + w * i;
+		uint32_t*      d2 = d1 + w;
+		for (int32_t x=x0; x<x1; x+=2) {
+			// Source of pixel x, x+1 and of their V/U
+			const int32_t p0 = (hflip ? w - 1 - x : x);
+			const int32_t p1 = (hflip ? w - 2 - x : x + 1);
+			const int32_t pc = (hflip ? w - 2 - x : x);
+			const int32_t v  = vu[pc    ] - 128;
+			const int32_t u  = vu[pc + 1] - 128;
+			d1[x    ] = to_argb_1(s1[p0] - 16, u, v);
+			d1[x + 1] = to_argb_1(s1[p1] - 16, u, v);
+			d2[x    ] = to_argb_1(s2[p0] - 16, u, v);
+			d2[x + 1] = to_argb_1(s2[p1] - 16, u, v);
+		}
+	}
+}
+
+// Y/U/V of RGB (0..255) are always in 16..240: no clamp.
+#define RGB_Y(r,g,b) ((( 66*(r) + 129*(g) +  25*(b) + 128) >> 8) +  16)
+#define RGB_U(r,g,b) (((-38*(r) -  74*(g) + 112*(b) + 128) >> 8) + 128)
+#define RGB_V(r,g,b) (((112*(r) -  94*(g) -  18*(b) + 128) >> 8) + 128)
+
+//
+void yuvconv_argb_to_yuv_c(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0)
+{
+	const int32_t a = w * h;
+	for (int32_t i=y0; i<y1; i+=2) {
+		const uint32_t* s1 = rgb + w * i;
+		const uint32_t* s2 = s1 + w;
+		uint8_t*        d1 = yuv + w * i;
+		uint8_t*        d2 = d1 + w;
+		uint8_t*        uv = yuv + a + w * (i / 2);         // NV12/NV21
+		uint8_t*        dU = yuv + a + (w / 2) * (i / 2);   // I420
+		uint8_t*        dV = dU + a / 4;
+		for (int32_t x=x0; x<w; x+=2) {
+			const uint32_t q[4] = { s1[x], s1[x + 1], s2[x], s2[x + 1] };
+			int32_t R = 0, G = 0, B = 0;
+			for (int32_t k=0; k<4; k++) {
+				const int32_t r = (q[k] >> 16) & 0xFF;
+				const int32_t g = (q[k] >>  8) & 0xFF;
+				const int32_t b = (q[k]      ) & 0xFF;
+				R += r;
+				G += g;
+				B += b;
+				(k < 2 ? d1 : d2)[x + (k & 1)] = (uint8_t)RGB_Y(r, g, b);
+			}
+			R = (R + 2) >> 2;
+			G = (G + 2) >> 2;
+			B = (B + 2) >> 2;
+			const uint8_t U = (uint8_t)RGB_U(R, G, B);
+			const uint8_t V = (uint8_t)RGB_V(R, G, B);
+			switch (fmt) {
+			case YUVCONV_NV12: uv[x] = U; uv[x + 1] = V; break;
+			case YUVCONV_NV21: uv[x] = V; uv[x + 1] = U; break;
+			default:           dU[x / 2] = U; dV[x / 2] = V; break;
+			}
+		}
+	}
+}
+
+static void argb_to_yuv_c(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1)
+{
+	yuvconv_argb_to_yuv_c(rgb, yuv, fmt, w, h, y0, y1, 0);
+}
+
+// ARGB (alpha 0x00) -> RGBX_8888 (bytes R,G,B,0xFF; little endian)
+static inline uint32_t argb_to_rgbx(uint32_t c)
+{
+	return (__builtin_bswap32(c) >> 8) | 0xFF000000;
+}
+
+//
+void yuvconv_yuv444_to_rgbx_c(const uint8_t* y, const uint8_t* u, const uint8_t* v,
+		uint32_t* rgbx, int32_t x0, int32_t n)
+{
+	for (int32_t x=x0; x<n; x++) {
+		rgbx[x] = argb_to_rgbx(to_argb_1(y[x] - 16, u[x] - 128, v[x] - 128));
+	}
+}
+
+//---------------------------------------------------------------------
+// SSE2 (8 pixels of 2 rows at a time)
+//---------------------------------------------------------------------
+#if defined(__SSE2__)
+// 16bit x 8 -> reversed
+static inline __m128i rev_epi16(__m128i v)
+{
+	v = _mm_shuffle_epi32(v, _MM_SHUFFLE(0,1,2,3));
+	v = _mm_shufflelo_epi16(v, _MM_SHUFFLE(2,3,0,1));
+	return _mm_shufflehi_epi16(v, _MM_SHUFFLE(2,3,0,1));
+}
+
+// (Y*1192 + C) >> 10 of 8 pixels -> 8bit x 8 (saturated = the C clamp)
+static inline __m128i to_8bit(__m128i ya, __m128i yb, __m128i ca, __m128i cb)
+{
+	const __m128i a = _mm_srai_epi32(_mm_add_epi32(ya, ca), 10);
+	const __m128i b = _mm_srai_epi32(_mm_add_epi32(yb, cb), 10);
+	const __m128i c = _mm_packs_epi32(a, b);
+	return _mm_packus_epi16(c, c);
+}
+
+// R, G, B (8bit x 8) of 8 pixels
+static inline void to_rgb8_8(__m128i y, const __m128i rv[2], const __m128i guv[2], const __m128i bu[2],
+		__m128i* r8, __m128i* g8, __m128i* b8)
+{
+	y = _mm_max_epi16(_mm_sub_epi16(y, _mm_set1_epi16(16)), _mm_setzero_si128());
+	const __m128i lo = _mm_mullo_epi16(y, _mm_set1_epi16(1192));
+	const __m128i hi = _mm_mulhi_epi16(y, _mm_set1_epi16(1192));
+	const __m128i ya = _mm_unpacklo_epi16(lo, hi);
+	const __m128i yb = _mm_unpackhi_epi16(lo, hi);
+
+	*r8 = to_8bit(ya, yb, rv[0],  rv[1]);
+	*g8 = to_8bit(ya, yb, guv[0], guv[1]);
+	*b8 = to_8bit(ya, yb, bu[0],  bu[1]);
+}
+
+// 1 row of 8 pixels
+static inline void to_argb_8(__m128i y, __m128i rv[2], __m128i guv[2], __m128i bu[2], uint32_t* d)
+{
+	__m128i r8, g8, b8;
+	to_rgb8_8(y, rv, guv, bu, &r8, &g8, &b8);
+	const __m128i bg = _mm_unpacklo_epi8(b8, g8);
+	const __m128i r0 = _mm_unpacklo_epi8(r8, _mm_setzero_si128());
+	_mm_storeu_si128((__m128i*)(d    ), _mm_unpacklo_epi16(bg, r0));
+	_mm_storeu_si128((__m128i*)(d + 4), _mm_unpackhi_epi16(bg, r0));
+}
+
+// (v,u) x 4 -> v*cv + u*cu x 4
+#define VU_COEF(cv,cu) _mm_set_epi16(cu,cv,cu,cv,cu,cv,cu,cv)
+
+static void nv21_to_argb_sse2(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip)
+{
+	const __m128i zero = _mm_setzero_si128();
+	const int32_t x8 = x0 + ((x1 - x0) & ~7);
+	for (int32_t i=y0; i<y1; i+=2) {
+		const uint8_t* s1 = yuv + w * i;
+		const uint8_t* s2 = s1 + w;
+		const uint8_t* vu = yuv + w * h + w * (i / 2);
+		uint32_t*      d1 = rgb + w * i;
+		uint32_t*      d2 = d1 + w;
+		for (int32_t x=x0; x<x8; x+=8) {
+			const int32_t p = (hflip ? w - 8 - x : x);
+			__m128i c  = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(vu + p)), zero);
+			__m128i ya = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(s1 + p)), zero);
+			__m128i yb = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(s2 + p)), zero);
+			if (hflip) {
+				c  = _mm_shuffle_epi32(c, _MM_SHUFFLE(0,1,2,3));
+				ya = rev_epi16(ya);
+				yb = rev_epi16(yb);
+			}
+			c = _mm_sub_epi16(c, _mm_set1_epi16(128));
+
+			// Per V/U pair, then x2 (1 pair for 2 pixels)
+			const __m128i rv  = _mm_madd_epi16(c, VU_COEF(1634,    0));
+			const __m128i guv = _mm_madd_epi16(c, VU_COEF(-833, -400));
+			const __m128i bu  = _mm_madd_epi16(c, VU_COEF(   0, 2066));
+			__m128i rv2[2]  = { _mm_unpacklo_epi32(rv,  rv),  _mm_unpackhi_epi32(rv,  rv)  };
+			__m128i guv2[2] = { _mm_unpacklo_epi32(guv, guv), _mm_unpackhi_epi32(guv, guv) };
+			__m128i bu2[2]  = { _mm_unpacklo_epi32(bu,  bu),  _mm_unpackhi_epi32(bu,  bu)  };
+
+			to_argb_8(ya, rv2, guv2, bu2, d1 + x);
+			to_argb_8(yb, rv2, guv2, bu2, d2 + x);
+		}
+		if (x8 < x1) {
+			yuvconv_nv21_to_argb_c(yuv, rgb, w, h, i, i + 2, x8, x1, hflip);
+		}
+	}
+}
+
+// Y, U, V per pixel -> RGBX (the scaled preview)
+static void yuv444_to_rgbx_sse2(const uint8_t* y, const uint8_t* u, const uint8_t* v,
+		uint32_t* rgbx, int32_t x0, int32_t n)
+{
+	const __m128i zero = _mm_setzero_si128();
+	const int32_t x8 = x0 + ((n - x0) & ~7);
+	for (int32_t x=x0; x<x8; x+=8) {
+		const __m128i y8 = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(y + x)), zero);
+		const __m128i v8 = _mm_sub_epi16(_mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(v + x)), zero), _mm_set1_epi16(128));
+		const __m128i u8 = _mm_sub_epi16(_mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*)(u + x)), zero), _mm_set1_epi16(128));
+		// (v,u) pairs of pixels 0-3, 4-7
+		const __m128i c[2] = { _mm_unpacklo_epi16(v8, u8), _mm_unpackhi_epi16(v8, u8) };
+		const __m128i rv[2]  = { _mm_madd_epi16(c[0], VU_COEF(1634,    0)), _mm_madd_epi16(c[1], VU_COEF(1634,    0)) };
+		const __m128i guv[2] = { _mm_madd_epi16(c[0], VU_COEF(-833, -400)), _mm_madd_epi16(c[1], VU_COEF(-833, -400)) };
+		const __m128i bu[2]  = { _mm_madd_epi16(c[0], VU_COEF(   0, 2066)), _mm_madd_epi16(c[1], VU_COEF(   0, 2066)) };
+
+		__m128i r8, g8, b8;
+		to_rgb8_8(y8, rv, guv, bu, &r8, &g8, &b8);
+		const __m128i rg = _mm_unpacklo_epi8(r8, g8);
+		const __m128i bx = _mm_unpacklo_epi8(b8, _mm_set1_epi8((char)0xFF));
+		_mm_storeu_si128((__m128i*)(rgbx + x    ), _mm_unpacklo_epi16(rg, bx));
+		_mm_storeu_si128((__m128i*)(rgbx + x + 4), _mm_unpackhi_epi16(rg, bx));
+	}
+	if (x8 < n) {
+		yuvconv_yuv444_to_rgbx_c(y, u, v, rgbx, x8, n);
+	}
+}
+
+// ARGB x 8 -> R, G, B (16bit x 8)
+static inline void to_rgb_8(const uint32_t* s, __m128i* r, __m128i* g, __m128i* b)
+{
+	const __m128i m  = _mm_set1_epi32(0xFF);
+	const __m128i p0 = _mm_loadu_si128((const __m128i*)(s    ));
+	const __m128i p1 = _mm_loadu_si128((const __m128i*)(s + 4));
+	*r = _mm_packs_epi32(_mm_and_si128(_mm_srli_epi32(p0, 16), m), _mm_and_si128(_mm_srli_epi32(p1, 16), m));
+	*g = _mm_packs_epi32(_mm_and_si128(_mm_srli_epi32(p0,  8), m), _mm_and_si128(_mm_srli_epi32(p1,  8), m));
+	*b = _mm_packs_epi32(_mm_and_si128(p0, m), _mm_and_si128(p1, m));
+}
+
+// Y of 8 pixels (16bit, unsigned: at most 56228)
+static inline __m128i to_y_8(__m128i r, __m128i g, __m128i b)
+{
+	__m128i y = _mm_add_epi16(_mm_mullo_epi16(r, _mm_set1_epi16(66)), _mm_mullo_epi16(g, _mm_set1_epi16(129)));
+	y = _mm_add_epi16(y, _mm_mullo_epi16(b, _mm_set1_epi16(25)));
+	y = _mm_add_epi16(y, _mm_set1_epi16(128));
+	return _mm_add_epi16(_mm_srli_epi16(y, 8), _mm_set1_epi16(16));
+}
+
+// 2x2 average of 2 rows x 8 pixels -> 16bit x 4 (in 32bit)
+static inline __m128i avg_4(__m128i a, __m128i b)
+{
+	const __m128i s = _mm_madd_epi16(_mm_add_epi16(a, b), _mm_set1_epi16(1));
+	return _mm_srli_epi32(_mm_add_epi32(s, _mm_set1_epi32(2)), 2);
+}
+
+// U or V of 8 (16bit)
+static inline __m128i to_c_8(__m128i r, __m128i g, __m128i b, short cr, short cg, short cb)
+{
+	__m128i c = _mm_add_epi16(_mm_mullo_epi16(r, _mm_set1_epi16(cr)), _mm_mullo_epi16(g, _mm_set1_epi16(cg)));
+	c = _mm_add_epi16(c, _mm_mullo_epi16(b, _mm_set1_epi16(cb)));
+	c = _mm_srai_epi16(_mm_add_epi16(c, _mm_set1_epi16(128)), 8);
+	return _mm_add_epi16(c, _mm_set1_epi16(128));
+}
+
+static void argb_to_yuv_sse2(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1)
+{
+	const int32_t a   = w * h;
+	const int32_t w16 = w & ~15;
+	for (int32_t i=y0; i<y1; i+=2) {
+		const uint32_t* s1 = rgb + w * i;
+		const uint32_t* s2 = s1 + w;
+		uint8_t*        d1 = yuv + w * i;
+		uint8_t*        d2 = d1 + w;
+		uint8_t*        uv = yuv + a + w * (i / 2);         // NV12/NV21
+		uint8_t*        dU = yuv + a + (w / 2) * (i / 2);   // I420
+		uint8_t*        dV = dU + a / 4;
+		for (int32_t x=0; x<w16; x+=16) {
+			__m128i r[4], g[4], b[4]; // row1 x 2, row2 x 2
+			to_rgb_8(s1 + x,     &r[0], &g[0], &b[0]);
+			to_rgb_8(s1 + x + 8, &r[1], &g[1], &b[1]);
+			to_rgb_8(s2 + x,     &r[2], &g[2], &b[2]);
+			to_rgb_8(s2 + x + 8, &r[3], &g[3], &b[3]);
+
+			_mm_storeu_si128((__m128i*)(d1 + x), _mm_packus_epi16(to_y_8(r[0], g[0], b[0]), to_y_8(r[1], g[1], b[1])));
+			_mm_storeu_si128((__m128i*)(d2 + x), _mm_packus_epi16(to_y_8(r[2], g[2], b[2]), to_y_8(r[3], g[3], b[3])));
+
+			const __m128i R = _mm_packs_epi32(avg_4(r[0], r[2]), avg_4(r[1], r[3]));
+			const __m128i G = _mm_packs_epi32(avg_4(g[0], g[2]), avg_4(g[1], g[3]));
+			const __m128i B = _mm_packs_epi32(avg_4(b[0], b[2]), avg_4(b[1], b[3]));
+			const __m128i U = to_c_8(R, G, B, -38, -74, 112);
+			const __m128i V = to_c_8(R, G, B, 112, -94, -18);
+			switch (fmt) {
+			case YUVCONV_NV12:
+				_mm_storeu_si128((__m128i*)(uv + x), _mm_packus_epi16(_mm_unpacklo_epi16(U, V), _mm_unpackhi_epi16(U, V)));
+				break;
+			case YUVCONV_NV21:
+				_mm_storeu_si128((__m128i*)(uv + x), _mm_packus_epi16(_mm_unpacklo_epi16(V, U), _mm_unpackhi_epi16(V, U)));
+				break;
+			default:
+				_mm_storel_epi64((__m128i*)(dU + x / 2), _mm_packus_epi16(U, U));
+				_mm_storel_epi64((__m128i*)(dV + x / 2), _mm_packus_epi16(V, V));
+				break;
+			}
+		}
+		if (w16 < w) {
+			yuvconv_argb_to_yuv_c(rgb, yuv, fmt, w, h, i, i + 2, w16);
+		}
+	}
+}
+#endif // __SSE2__
+
+//---------------------------------------------------------------------
+// Selection
+//---------------------------------------------------------------------
+static yuvconv_to_argb_t sToArgb = NULL;
+static yuvconv_to_yuv_t  sToYuv  = NULL;
+static yuvconv_to_rgbx_t sToRgbx = NULL;
+static const char*       sName   = NULL;
+
+//
+const char* yuvconv_init(void)
+{
+	sToArgb = yuvconv_nv21_to_argb_c;
+	sToYuv  = argb_to_yuv_c;
+	sToRgbx = yuvconv_yuv444_to_rgbx_c;
+	sName   = "c";
+#if defined(HAVE_NEON)
+#if defined(__aarch64__)
+	const int32_t neon = 1;
+#else
+	const int32_t neon = (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM &&
+			(android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0);
+#endif
+	if (neon) {
+		sToArgb = yuvconv_nv21_to_argb_neon;
+		sToYuv  = yuvconv_argb_to_yuv_neon;
+		sToRgbx = yuvconv_yuv444_to_rgbx_neon;
+		sName   = "neon";
+		return sName;
+	}
+#endif
+#if defined(__SSE2__)
+	// Part of the x86-64 and the Android x86 ABIs
+	sToArgb = nv21_to_argb_sse2;
+	sToYuv  = argb_to_yuv_sse2;
+	sToRgbx = yuv444_to_rgbx_sse2;
+	sName   = "sse2";
+#endif
+	return sName;
+}
+
+//
+void yuvconv_nv21_to_argb(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t hflip)
+{
+	if (sToArgb == NULL) {
+		yuvconv_init();
+	}
+	sToArgb(yuv, rgb, w, h, y0, y1, 0, w, hflip);
+}
+
+//
+void yuvconv_nv21_to_argb_cols(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip)
+{
+	if (sToArgb == NULL) {
+		yuvconv_init();
+	}
+	sToArgb(yuv, rgb, w, h, y0, y1, x0, x1, hflip);
+}
+
+//
+int32_t yuvconv_argb_to_yuv(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1)
+{
+	if (fmt != YUVCONV_NV12 && fmt != YUVCONV_NV21 && fmt != YUVCONV_I420) {
+		return -1;
+	}
+	if (sToYuv == NULL) {
+		yuvconv_init();
+	}
+	sToYuv(rgb, yuv, fmt, w, h, y0, y1);
+	return 0;
+}
+
+//---------------------------------------------------------------------
+// Scaled preview
+//---------------------------------------------------------------------
+#define ROW_CHUNK (64)
+
+// The blocks are gathered (Y averaged), then converted by the kernel.
+void yuvconv_nv21_to_rgbx_row(const uint8_t* yuv, int32_t w, int32_t h, int32_t sy,
+		const int32_t* xmap, uint32_t* dst, int32_t x0, int32_t x1)
+{
+	if (sToRgbx == NULL) {
+		yuvconv_init();
+	}
+	const uint8_t* s1 = yuv + w * sy;
+	const uint8_t* s2 = s1 + w;
+	const uint8_t* vu = yuv + w * h + w * (sy / 2);
+	uint8_t ys[ROW_CHUNK], us[ROW_CHUNK], vs[ROW_CHUNK];
+	for (int32_t x=x0; x<x1; x+=ROW_CHUNK) {
+		const int32_t n = (x1 - x < ROW_CHUNK ? x1 - x : ROW_CHUNK);
+		for (int32_t k=0; k<n; k++) {
+			const int32_t c = xmap[x + k];
+			ys[k] = (uint8_t)((s1[c] + s1[c + 1] + s2[c] + s2[c + 1] + 2) >> 2);
+			vs[k] = vu[c];
+			us[k] = vu[c + 1];
+		}
+		sToRgbx(ys, us, vs, dst + x, 0, n);
+	}
+}
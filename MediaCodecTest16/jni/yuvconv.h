@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef __YUVCONV__
+#define __YUVCONV__
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+//---------------------------------------------------------------------
+// Color conversion kernels
+//---------------------------------------------------------------------
+// NV21 <-> ARGB(8888) in 2x2 blocks, for rows [y0,y1) (even) of a
+// w x h frame (w, h: even). A SIMD kernel (NEON, SSE2) is chosen at
+// run time by yuvconv_init(), with the plain C one as the fallback;
+// all of them give the same output.
+//
+// NV21 -> ARGB: BT.601 limited range, one U/V pair per 2x2 block,
+//   alpha 0x00. hflip: the source rows are read right to left.
+// ARGB -> YUV: Y per pixel, U/V from the 2x2 block's average RGB.
+#define YUVCONV_NV12 (1)
+#define YUVCONV_NV21 (2)
+#define YUVCONV_I420 (3)
+
+// Selects the kernels (may be called more than once). Returns their
+// name ("neon", "sse2" or "c").
+const char* yuvconv_init(void);
+
+void yuvconv_nv21_to_argb(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t hflip);
+// Columns [x0,x1) (even) only
+void yuvconv_nv21_to_argb_cols(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip);
+
+// Returns non-0 for an unknown fmt.
+int32_t yuvconv_argb_to_yuv(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1);
+
+// Preview scaled down: 1 row of RGBX_8888 (bytes R,G,B,0xFF). Pixel x
+// of [x0,x1) is the 2x2 block at column xmap[x] (even) of rows sy, sy+1
+// (even): average Y, its U/V.
+void yuvconv_nv21_to_rgbx_row(const uint8_t* yuv, int32_t w, int32_t h, int32_t sy,
+		const int32_t* xmap, uint32_t* dst, int32_t x0, int32_t x1);
+
+//---------------------------------------------------------------------
+// Kernels (for yuvconv.c only; the C ones also do the columns left
+// over by the SIMD ones)
+//---------------------------------------------------------------------
+typedef void (*yuvconv_to_argb_t)(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip);
+typedef void (*yuvconv_to_yuv_t)(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1);
+// Y, U, V of each pixel [x0,n) -> RGBX
+typedef void (*yuvconv_to_rgbx_t)(const uint8_t* y, const uint8_t* u, const uint8_t* v,
+		uint32_t* rgbx, int32_t x0, int32_t n);
+
+void yuvconv_nv21_to_argb_c(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip);
+void yuvconv_argb_to_yuv_c(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0);
+void yuvconv_yuv444_to_rgbx_c(const uint8_t* y, const uint8_t* u, const uint8_t* v,
+		uint32_t* rgbx, int32_t x0, int32_t n);
+
+#if defined(HAVE_NEON)
+void yuvconv_nv21_to_argb_neon(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip);
+void yuvconv_argb_to_yuv_neon(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1);
+void yuvconv_yuv444_to_rgbx_neon(const uint8_t* y, const uint8_t* u, const uint8_t* v,
+		uint32_t* rgbx, int32_t x0, int32_t n);
+#endif
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif // __YUVCONV__
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// Built with NEON (Android.mk: .neon), called only if the CPU has it.
+#include <arm_neon.h>
+
+#include "yuvconv.h"
+
+//---------------------------------------------------------------------
+// NEON (16 pixels of 2 rows at a time)
+//---------------------------------------------------------------------
+// (Y*1192 + C) >> 10 of 8 pixels -> 8bit x 8 (saturated = the C clamp)
+static inline uint8x8_t to_8bit(int32x4_t ya, int32x4_t yb)
+{
+	return vqmovn_u16(vcombine_u16(vqshrun_n_s32(ya, 10), vqshrun_n_s32(yb, 10)));
+}
+
+// B, G, R, 0 of 8 pixels (v, u: 1 pair per pixel)
+static inline uint8x8x4_t to_bgr0_8(uint8x8_t y8, int16x8_t v, int16x8_t u)
+{
+	const int16x8_t y  = vmaxq_s16(vreinterpretq_s16_u16(vsubl_u8(y8, vdup_n_u8(16))), vdupq_n_s16(0));
+	const int32x4_t ya = vmull_n_s16(vget_low_s16(y),  1192);
+	const int32x4_t yb = vmull_n_s16(vget_high_s16(y), 1192);
+
+	uint8x8x4_t o;
+	o.val[0] = to_8bit(vmlal_n_s16(ya, vget_low_s16(u), 2066),
+	                   vmlal_n_s16(yb, vget_high_s16(u), 2066));
+	o.val[1] = to_8bit(vmlal_n_s16(vmlal_n_s16(ya, vget_low_s16(v),  -833), vget_low_s16(u),  -400),
+	                   vmlal_n_s16(vmlal_n_s16(yb, vget_high_s16(v), -833), vget_high_s16(u), -400));
+	o.val[2] = to_8bit(vmlal_n_s16(ya, vget_low_s16(v), 1634),
+	                   vmlal_n_s16(yb, vget_high_s16(v), 1634));
+	o.val[3] = vdup_n_u8(0);
+	return o;
+}
+
+// 1 row of 8 pixels
+static inline void to_argb_8(uint8x8_t y8, int16x8_t v, int16x8_t u, uint32_t* d)
+{
+	vst4_u8((uint8_t*)d, to_bgr0_8(y8, v, u));
+}
+
+//
+void yuvconv_nv21_to_argb_neon(const uint8_t* yuv, uint32_t* rgb,
+		int32_t w, int32_t h, int32_t y0, int32_t y1, int32_t x0, int32_t x1, int32_t hflip)
+{
+	const int32_t x16 = x0 + ((x1 - x0) & ~15);
+	for (int32_t i=y0; i<y1; i+=2) {
+		const uint8_t* s1 = yuv + w * i;
+		const uint8_t* s2 = s1 + w;
+		const uint8_t* vu = yuv + w * h + w * (i / 2);
+		uint32_t*      d1 = rgb + w * i;
+		uint32_t*      d2 = d1 + w;
+		for (int32_t x=x0; x<x16; x+=16) {
+			uint8x8x2_t c = vld2_u8(vu + (hflip ? w - 16 - x : x));
+			if (hflip) {
+				c.val[0] = vrev64_u8(c.val[0]);
+				c.val[1] = vrev64_u8(c.val[1]);
+			}
+			// 1 pair for 2 pixels: [0] pixels 0-7, [1] pixels 8-15
+			const int16x8_t   v  = vreinterpretq_s16_u16(vsubl_u8(c.val[0], vdup_n_u8(128)));
+			const int16x8_t   u  = vreinterpretq_s16_u16(vsubl_u8(c.val[1], vdup_n_u8(128)));
+			const int16x8x2_t v2 = vzipq_s16(v, v);
+			const int16x8x2_t u2 = vzipq_s16(u, u);
+
+			for (int32_t k=0; k<2; k++) {
+				const int32_t o = x + 8 * k;
+				uint8x8_t ya, yb;
+				if (hflip) {
+					ya = vrev64_u8(vld1_u8(s1 + w - 8 - o));
+					yb = vrev64_u8(vld1_u8(s2 + w - 8 - o));
+				} else {
+					ya = vld1_u8(s1 + o);
+					yb = vld1_u8(s2 + o);
+				}
+				to_argb_8(ya, v2.val[k], u2.val[k], d1 + o);
+				to_argb_8(yb, v2.val[k], u2.val[k], d2 + o);
+			}
+		}
+		if (x16 < x1) {
+			yuvconv_nv21_to_argb_c(yuv, rgb, w, h, i, i + 2, x16, x1, hflip);
+		}
+	}
+}
+
+// Y, U, V per pixel -> RGBX (the scaled preview)
+void yuvconv_yuv444_to_rgbx_neon(const uint8_t* y, const uint8_t* u, const uint8_t* v,
+		uint32_t* rgbx, int32_t x0, int32_t n)
+{
+	const int32_t x8 = x0 + ((n - x0) & ~7);
+	for (int32_t x=x0; x<x8; x+=8) {
+		const int16x8_t vv = vreinterpretq_s16_u16(vsubl_u8(vld1_u8(v + x), vdup_n_u8(128)));
+		const int16x8_t uu = vreinterpretq_s16_u16(vsubl_u8(vld1_u8(u + x), vdup_n_u8(128)));
+		const uint8x8x4_t c = to_bgr0_8(vld1_u8(y + x), vv, uu);
+		uint8x8x4_t o;
+		o.val[0] = c.val[2];
+		o.val[1] = c.val[1];
+		o.val[2] = c.val[0];
+		o.val[3] = vdup_n_u8(0xFF);
+		vst4_u8((uint8_t*)(rgbx + x), o);
+	}
+	if (x8 < n) {
+		yuvconv_yuv444_to_rgbx_c(y, u, v, rgbx, x8, n);
+	}
+}
+
+// Y of 8 pixels
+static inline uint8x8_t to_y_8(uint8x8x4_t p)
+{
+	uint16x8_t y = vmull_u8(p.val[2], vdup_n_u8(66));
+	y = vmlal_u8(y, p.val[1], vdup_n_u8(129));
+	y = vmlal_u8(y, p.val[0], vdup_n_u8(25));
+	y = vaddq_u16(y, vdupq_n_u16(128));
+	return vadd_u8(vshrn_n_u16(y, 8), vdup_n_u8(16));
+}
+
+// 2x2 average of 2 rows x 16 pixels -> 8 (16bit)
+static inline int16x8_t avg_8(uint8x8_t a0, uint8x8_t a1, uint8x8_t b0, uint8x8_t b1)
+{
+	const uint16x8_t s = vcombine_u16(vpadal_u8(vpaddl_u8(a0), b0), vpadal_u8(vpaddl_u8(a1), b1));
+	return vreinterpretq_s16_u16(vshrq_n_u16(vaddq_u16(s, vdupq_n_u16(2)), 2));
+}
+
+// U or V of 8
+static inline uint8x8_t to_c_8(int16x8_t r, int16x8_t g, int16x8_t b, int16_t cr, int16_t cg, int16_t cb)
+{
+	int16x8_t c = vmulq_n_s16(r, cr);
+	c = vmlaq_n_s16(c, g, cg);
+	c = vmlaq_n_s16(c, b, cb);
+	c = vshrq_n_s16(vaddq_s16(c, vdupq_n_s16(128)), 8);
+	return vmovn_u16(vreinterpretq_u16_s16(vaddq_s16(c, vdupq_n_s16(128))));
+}
+
+//
+void yuvconv_argb_to_yuv_neon(const uint32_t* rgb, uint8_t* yuv, int32_t fmt,
+		int32_t w, int32_t h, int32_t y0, int32_t y1)
+{
+	const int32_t a   = w * h;
+	const int32_t w16 = w & ~15;
+	for (int32_t i=y0; i<y1; i+=2) {
+		const uint32_t* s1 = rgb + w * i;
+		const uint32_t* s2 = s1 + w;
+		uint8_t*        d1 = yuv + w * i;
+		uint8_t*        d2 = d1 + w;
+		uint8_t*        uv = yuv + a + w * (i / 2);         // NV12/NV21
+		uint8_t*        dU = yuv + a + (w / 2) * (i / 2);   // I420
+		uint8_t*        dV = dU + a / 4;
+		for (int32_t x=0; x<w16; x+=16) {
+			// B, G, R, A x 8: row1 x 2, row2 x 2
+			const uint8x8x4_t p0 = vld4_u8((const uint8_t*)(s1 + x));
+			const uint8x8x4_t p1 = vld4_u8((const uint8_t*)(s1 + x + 8));
+			const uint8x8x4_t p2 = vld4_u8((const uint8_t*)(s2 + x));
+			const uint8x8x4_t p3 = vld4_u8((const uint8_t*)(s2 + x + 8));
+
+			vst1_u8(d1 + x,     to_y_8(p0));
+			vst1_u8(d1 + x + 8, to_y_8(p1));
+			vst1_u8(d2 + x,     to_y_8(p2));
+			vst1_u8(d2 + x + 8, to_y_8(p3));
+
+			const int16x8_t R = avg_8(p0.val[2], p1.val[2], p2.val[2], p3.val[2]);
+			const int16x8_t G = avg_8(p0.val[1], p1.val[1], p2.val[1], p3.val[1]);
+			const int16x8_t B = avg_8(p0.val[0], p1.val[0], p2.val[0], p3.val[0]);
+			uint8x8x2_t c;
+			switch (fmt) {
+			case YUVCONV_NV12:
+				c.val[0] = to_c_8(R, G, B, -38, -74, 112);
+				c.val[1] = to_c_8(R, G, B, 112, -94, -18);
+				vst2_u8(uv + x, c);
+				break;
+			case YUVCONV_NV21:
+				c.val[0] = to_c_8(R, G, B, 112, -94, -18);
+				c.val[1] = to_c_8(R, G, B, -38, -74, 112);
+				vst2_u8(uv + x, c);
+				break;
+			default:
+				vst1_u8(dU + x / 2, to_c_8(R, G, B, -38, -74, 112));
+				vst1_u8(dV + x / 2, to_c_8(R, G, B, 112, -94, -18));
+				break;
+			}
+		}
+		if (w16 < w) {
+			yuvconv_argb_to_yuv_c(rgb, yuv, fmt, w, h, i, i + 2, w16);
+		}
+	}
+}
@@ -16,23 +16,20 @@
 package jp.morihirosoft.mediacodectest16;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.ViewGroup.LayoutParams;
 
 class CameraView extends SurfaceView implements
 SurfaceHolder.Callback,
-Camera.PreviewCallback
+Camera.PreviewCallback,
+FrameSource
 {
-	//---------------------------------------------------------------------
-	// INTERFACE
-	//---------------------------------------------------------------------
-	interface CameraPreviewBuffer {
-		abstract byte[] getBuffer();
-		abstract void onPreviewFrame(byte[] data);
-	}
+	private static final String TAG = "CameraView";
 
 	//---------------------------------------------------------------------
 	// MEMBERS
@@ -41,9 +38,18 @@ Camera.PreviewCallback
 
 	private boolean             mIsResumed           = false;
 	private boolean             mIsCreated           = false;
-	private CameraPreviewBuffer mCameraPreviewBuffer = null;
+	private FrameCallback       mCameraPreviewBuffer = null;
 	private Camera              mCamera              = null;
 
+	// Preview buffer pool (owned by the camera, or by onPreviewFrame)
+	private byte[][]            mBuffers             = null;
+	private int                 mQueuedBuffers       = 0; // owned by the camera
+	private long                mLastTimeUs          = -1;
+	private volatile int        mDeliveredCnt        = 0;
+	private volatile int        mProcessedCnt        = 0;
+	private volatile int        mDroppedCnt          = 0; // estimated
+	private volatile int        mStarvedCnt          = 0; // camera had no buffer
+
 	//---------------------------------------------------------------------
 	// PUBLIC METHODS
 	//---------------------------------------------------------------------
@@ -62,15 +68,18 @@ Camera.PreviewCallback
 		init();
 	}
 
-	public void setup(CameraPreviewBuffer previewbuffer) {
+	@Override
+	public void setup(FrameCallback previewbuffer) {
 		mCameraPreviewBuffer = previewbuffer;
 	}
 
+	@Override
 	public void resume() {
 		mIsResumed = true;
 		startCamera();
 	}
 
+	@Override
 	public void pause() {
 		mIsResumed = false;
 		stopCamera();
@@ -97,8 +106,7 @@ Camera.PreviewCallback
 				setLayoutParams(lparam);
 			}
 
-			mCamera.addCallbackBuffer(mCameraPreviewBuffer.getBuffer());
-			mCamera.setPreviewCallbackWithBuffer(this);
+			queueAllBuffers();
 			mCamera.startPreview();
 		}
 	}
@@ -112,8 +120,51 @@ Camera.PreviewCallback
 
 	@Override
 	public void onPreviewFrame(byte[] data, Camera camera) {
-		mCameraPreviewBuffer.onPreviewFrame(data);
-		camera.addCallbackBuffer(mCameraPreviewBuffer.getBuffer());
+		// Camera.PreviewCallback has no timestamp, so take the arrival time.
+		final long timeUs = System.nanoTime() / 1000;
+		mQueuedBuffers--;
+		mDeliveredCnt++;
+		if (mQueuedBuffers == 0) {
+			mStarvedCnt++;
+		}
+
+		// Drop estimate: gaps of more than 1.5 frame intervals
+		final long intervalUs = 1000000L / mVideoParam.getMaxFps();
+		if (mLastTimeUs >= 0) {
+			final long gapUs = timeUs - mLastTimeUs;
+			if (gapUs * 2 > intervalUs * 3) {
+				mDroppedCnt += (int)((gapUs + intervalUs / 2) / intervalUs) - 1;
+			}
+		}
+		mLastTimeUs = timeUs;
+
+		try {
+			mCameraPreviewBuffer.onPreviewFrame(data, timeUs);
+			mProcessedCnt++;
+		} finally {
+			// Recycle
+			camera.addCallbackBuffer(data);
+			mQueuedBuffers++;
+		}
+	}
+
+	@Override
+	public int getDeliveredCount() {
+		return mDeliveredCnt;
+	}
+
+	@Override
+	public int getProcessedCount() {
+		return mProcessedCnt;
+	}
+
+	@Override
+	public int getDroppedCount() {
+		return mDroppedCnt;
+	}
+
+	public int getStarvedCount() {
+		return mStarvedCnt;
 	}
 
 	//---------------------------------------------------------------------
@@ -139,8 +190,7 @@ Camera.PreviewCallback
 						mVideoParam.mFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
 						mVideoParam.mFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
 				mCamera.setParameters(cp);
-				mCamera.addCallbackBuffer(mCameraPreviewBuffer.getBuffer());
-				mCamera.setPreviewCallbackWithBuffer(this);
+				queueAllBuffers();
 				mCamera.setPreviewDisplay(getHolder());
 				mCamera.startPreview();
 			} catch (Exception e) {
@@ -156,6 +206,26 @@ Camera.PreviewCallback
 			mCamera.setPreviewCallback(null);
 			mCamera.release();
 			mCamera = null;
+			Log.i(TAG, "frames: delivered="+mDeliveredCnt+", processed="+mProcessedCnt+
+					", dropped="+mDroppedCnt+", starved="+mStarvedCnt);
+		}
+	}
+
+	/**
+	 * (Re)give all the pool buffers to the camera.
+	 */
+	private void queueAllBuffers() {
+		if (mBuffers == null) {
+			final int size = mVideoParam.mSize.width * mVideoParam.mSize.height *
+					ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+			mBuffers = new byte[mVideoParam.mPreviewBuffers][size];
+		}
+		mCamera.setPreviewCallbackWithBuffer(null); // clear the queue
+		for (byte[] b : mBuffers) {
+			mCamera.addCallbackBuffer(b);
 		}
+		mQueuedBuffers = mBuffers.length;
+		mLastTimeUs = -1;
+		mCamera.setPreviewCallbackWithBuffer(this);
 	}
 }
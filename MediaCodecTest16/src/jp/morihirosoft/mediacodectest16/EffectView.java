@@ -20,6 +20,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
@@ -27,6 +28,12 @@ class EffectView extends SurfaceView implements
 SurfaceHolder.Callback,
 Runnable
 {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	private static final String TAG     = "EffectView";
+	private static final long   WAIT_NS = 100000000L; // 100ms
+
 	//---------------------------------------------------------------------
 	// MEMBERS
 	//---------------------------------------------------------------------
@@ -38,8 +45,12 @@ Runnable
 	private int           mSurfaceH  = 0;
 	private int           mImageW    = 0;
 	private int           mImageH    = 0;
-	private int[][]       mImagePix  = null;
-	private int[]         mImageIdx  = null;
+	private TripleBuffer  mFrames    = null;
+	private volatile int  mShownCnt  = 0;
+	private boolean       mUseWindow = false;
+	private volatile boolean mWindowSet = false; // native_draw draws to the surface
+	private int           mWindowW   = 0; // its buffers
+	private int           mWindowH   = 0;
 
 	//---------------------------------------------------------------------
 	// PUBLIC MRTHODS
@@ -70,19 +81,34 @@ Runnable
 		mHolder = holder;
 		mSurfaceW = width;
 		mSurfaceH = height;
+		setWindow();
 	}
 
 	@Override
 	public void surfaceDestroyed(SurfaceHolder holder) {
 		mIsCreated = false;
+		if (mWindowSet) {
+			mWindowSet = false;
+			MainActivity.native_set_window(null, 0, 0);
+		}
 		stopThread();
 	}
 
-	public void setup(int image_w, int image_h, int[][] image_pix, int[] image_idx) {
-		mImageW   = image_w;
-		mImageH   = image_h;
-		mImagePix = image_pix;
-		mImageIdx = image_idx;
+	/**
+	 * use_window: native_draw() draws straight to the surface if it can
+	 * (see isWindowSet()), frames are only for the Canvas fallback.
+	 */
+	public void setup(int image_w, int image_h, TripleBuffer frames, boolean use_window) {
+		mImageW    = image_w;
+		mImageH    = image_h;
+		mFrames    = frames;
+		mUseWindow = use_window;
+		setWindow();
+	}
+
+	/** True: native_draw(dst_rgb=null) draws to the surface (no frames needed). */
+	public boolean isWindowSet() {
+		return mWindowSet;
 	}
 
 	public void resume() {
@@ -93,6 +119,10 @@ Runnable
 	public void pause() {
 		mIsResumed = false;
 		stopThread();
+		if (mFrames != null) {
+			Log.i(TAG, "frames: published="+mFrames.getPublishedCount()+
+					", overwritten="+mFrames.getOverwrittenCount()+", shown="+mShownCnt);
+		}
 	}
 
 	public void run() {
@@ -100,19 +130,11 @@ Runnable
 		Paint paint = new Paint();
 
 		while(mThread != null){
-			if (mHolder == null || mSurfaceW < 1 || mSurfaceH < 1) {
+			// Latest frame (the thread ends within WAIT_NS after pause)
+			final int[] pix = mFrames.acquire(WAIT_NS);
+			if (pix == null || mHolder == null || mSurfaceW < 1 || mSurfaceH < 1) {
 				continue;
 			}
-			int idx = 0;
-			try {
-				synchronized (mImageIdx) {
-					mImageIdx.wait();
-					idx = mImageIdx[0];
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				throw new RuntimeException();
-			}
 
 			canvas = mHolder.lockCanvas();
 			if (canvas == null) {
@@ -128,9 +150,10 @@ Runnable
 				s = (float)mSurfaceH / (float)mImageH;
 			}
 			canvas.scale(s, s);
-			canvas.drawBitmap(mImagePix[idx], 0, mImageW, 0, 0, mImageW, mImageH, false, paint);
+			canvas.drawBitmap(pix, 0, mImageW, 0, 0, mImageW, mImageH, false, paint);
 
 			mHolder.unlockCanvasAndPost(canvas);
+			mShownCnt++;
 		}
 	}
 
@@ -141,8 +164,49 @@ Runnable
 		getHolder().addCallback(this);
 	}
 
+	// Surface -> native_draw. The buffers are of the surface's aspect, and
+	// the compositor scales them (the frame at the top-left, like run()).
+	// A surface of half the image's pixels or less gets buffers of its own
+	// size: native_draw scales the frame down while converting it, the
+	// cost goes with the display then. (Nearer to 1:1 the full size frame
+	// is cheaper.)
+	// Called again when the surface changes: buffers of another size are
+	// set then (the native side replaces the window).
+	private void setWindow() {
+		if (!mUseWindow || !mIsCreated || mHolder == null ||
+				mSurfaceW < 1 || mSurfaceH < 1 || mImageW < 1 || mImageH < 1) {
+			return;
+		}
+		int bw, bh;
+		if (2 * mSurfaceW * mSurfaceH <= mImageW * mImageH) {
+			bw = mSurfaceW;
+			bh = mSurfaceH;
+		} else if (mSurfaceW * mImageH < mSurfaceH * mImageW) {
+			bw = mImageW;
+			bh = Math.max(mImageH, (mSurfaceH * mImageW + mSurfaceW / 2) / mSurfaceW);
+		} else {
+			bw = Math.max(mImageW, (mSurfaceW * mImageH + mSurfaceH / 2) / mSurfaceH);
+			bh = mImageH;
+		}
+		if (mWindowSet && bw == mWindowW && bh == mWindowH) {
+			return;
+		}
+		if (MainActivity.native_set_window(mHolder.getSurface(), bw, bh) == 0) {
+			mWindowSet = true;
+			mWindowW   = bw;
+			mWindowH   = bh;
+			stopThread();
+		} else if (mWindowSet) {
+			// The old buffers no longer fit: back to the Canvas
+			Log.e(TAG, "native_set_window("+bw+"x"+bh+") error");
+			mWindowSet = false;
+			MainActivity.native_set_window(null, 0, 0);
+			startThread();
+		}
+	}
+
 	private void startThread() {
-		if (mIsCreated && mIsResumed && mThread == null) {
+		if (mIsCreated && mIsResumed && mThread == null && !mWindowSet) {
 			mThread = new Thread(this);
 			mThread.start();
 		}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodectest16;
+
+/**
+ * Where the NV21 frames (VideoParam.mSize) come from: the camera
+ * (CameraView), or a file (YuvFileSource).
+ */
+interface FrameSource {
+	//---------------------------------------------------------------------
+	// INTERFACE
+	//---------------------------------------------------------------------
+	interface FrameCallback {
+		// data is recycled after this returns.
+		abstract void onPreviewFrame(byte[] data, long timeUs);
+	}
+
+	//---------------------------------------------------------------------
+	// METHODS
+	//---------------------------------------------------------------------
+	void setup(FrameCallback callback);
+	void resume(); // frames start
+	void pause();  // frames stop (none after this returns)
+
+	int getDeliveredCount();
+	int getProcessedCount();
+	int getDroppedCount();
+}
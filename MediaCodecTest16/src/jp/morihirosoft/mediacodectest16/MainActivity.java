@@ -15,6 +15,9 @@
  */
 package jp.morihirosoft.mediacodectest16;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -26,6 +29,8 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
@@ -33,18 +38,30 @@ import android.widget.Button;
 
 public class MainActivity extends Activity implements
 View.OnClickListener,
-CameraView.CameraPreviewBuffer
+FrameSource.FrameCallback
 {
+	private static final String TAG = "MainActivity";
+
 	//---------------------------------------------------------------------
 	// NATIVE METHODS
 	//---------------------------------------------------------------------
 	static {
 		System.loadLibrary("MediaCodecTest16");
 	}
-	native public static int native_init(boolean f, int w, int h, int fps, int[] mask);
+	native public static int native_init(boolean f, int w, int h, int fps, int[] mask, int threads);
 	native public static int native_quit();
-	native public static int native_draw(byte[] src_yuv, int[] dst_rgb, int dst_yuv_fmt, byte[] dst_yuv);
-	native public static int native_cnvavc(String src_path, String dst_path);
+	native public static int native_draw(byte[] src_yuv, int[] dst_rgb, int dst_yuv_fmt, ByteBuffer dst_yuv); // dst_rgb: null -> window, dst_yuv: direct
+	native public static int native_set_window(Surface surface, int buf_w, int buf_h);
+	native public static int native_effect_add(int type, int[] params); // returns index or -1
+	native public static int native_effect_clear();
+	native public static int native_stats(long[] stats);
+	native public static int native_cnvavc(String src_path, String dst_path, String idx_path);
+
+	// native_effect_add() types. Consecutive per-pixel effects are done
+	// in one pass over the frame.
+	public static final int EFFECT_COLOR_MATRIX = 1; // per-pixel, params: 3x4 matrix (1/256)
+	public static final int EFFECT_WATERMARK    = 2; // per-pixel, params: x, y, w, h, ARGB[w*h]
+	public static final int EFFECT_HBLUR        = 3; // per-tile,  params: radius (1..16)
 
 	//---------------------------------------------------------------------
 	// MEMBERS
@@ -57,13 +74,12 @@ CameraView.CameraPreviewBuffer
 	private Button     mBtnStop    = null;
 	private Button     mBtnPlay    = null;
 
-	private MyRecorder mRecorder = null;
+	private FrameSource  mFrameSource  = null; // mCameraView, or a file
+	private MyRecorder   mRecorder     = null; // (under mRecorderLock)
+	private final Object mRecorderLock = new Object();
 
-	private byte[]   mSrcYuv = null;
-	private int[][]  mDstRgb = {null,null};
-	private byte[][] mDstYuv = {null,null};
-	private int[]    mDstIdx = {0};
-	private int[]    mMask   = null;
+	private TripleBuffer mDstRgb = null; // -> EffectView (if not drawn to its surface)
+	private int[]        mMask   = null;
 
 	//---------------------------------------------------------------------
 	// PUBLIC / PROTECTED METHODS
@@ -94,13 +110,21 @@ CameraView.CameraPreviewBuffer
 		final int vw = mVideoParam.mSize.width;
 		final int vh = mVideoParam.mSize.height;
 		final int rgb_size = vw * vh;
-		final int yuv_size = vw * vh * 3 / 2;
-		mSrcYuv    = new byte[yuv_size];
-		mDstRgb[0] = new int[rgb_size];
-		mDstRgb[1] = new int[rgb_size];
-		mDstYuv[0] = new byte[yuv_size];
-		mDstYuv[1] = new byte[yuv_size];
-		mMask      = new int[rgb_size];
+		mDstRgb = new TripleBuffer(rgb_size);
+		mMask   = new int[rgb_size];
+
+		// Frames: the camera, or a file (headless throughput runs)
+		mFrameSource = mCameraView;
+		if (mVideoParam.mFrameFile != null) {
+			try {
+				mFrameSource = new YuvFileSource(mVideoParam.mFrameFile, vw, vh,
+						mVideoParam.getMaxFps(), mVideoParam.mFrameFilePaced);
+				mFrameSource.setup(this);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mFrameSource = mCameraView;
+			}
+		}
 
 		// for Effect sample
 		Bitmap b = Bitmap.createBitmap(vw, vh, Bitmap.Config.ARGB_8888);
@@ -121,27 +145,32 @@ CameraView.CameraPreviewBuffer
 		final int vh  = mVideoParam.mSize.height;
 		final int fps = mVideoParam.getMaxFps();
 
-		// CameraView
-		mCameraView.resume();
-
 		// JNI
-		if (native_init(mVideoParam.mFacingFront, vw, vh, fps, mMask) !=0) {
+		if (native_init(mVideoParam.mFacingFront, vw, vh, fps, mMask, mVideoParam.mThreads) !=0) {
 			native_quit();
+		} else if (mVideoParam.mEffectChain) {
+			addEffects(vw, vh);
 		}
 
 		// EffectView
-		mEffectView.setup(vw, vh, mDstRgb, mDstIdx);
+		mEffectView.setup(vw, vh, mDstRgb, mVideoParam.mNativePreview);
 		mEffectView.resume();
 		mEffectView.setZOrderMediaOverlay(true);
 		mEffectView.setZOrderOnTop(true);
 		mEffectView.getParent().bringChildToFront(mEffectView);
 
+		// Frames (after JNI: a file starts at once)
+		mFrameSource.resume();
+
 		// Video
 		// -> not auto restart
 	}
 
 	@Override
 	protected void onPause() {
+		// Frames (first: a file delivers on its own thread)
+		mFrameSource.pause();
+
 		// Video
 		stopVideo();
 
@@ -149,11 +178,9 @@ CameraView.CameraPreviewBuffer
 		mEffectView.pause();
 
 		// JNI
+		logStats();
 		native_quit();
 
-		// CameraView
-		mCameraView.pause();
-
 		super.onPause();
 	}
 
@@ -173,24 +200,26 @@ CameraView.CameraPreviewBuffer
 	}
 
 	@Override
-	public byte[] getBuffer() {
-		return mSrcYuv;
-	}
-
-	@Override
-	public void onPreviewFrame(byte[] src_yuv) {
-		final int idx = 1 - mDstIdx[0];
-
-		if (mRecorder == null) {
-			native_draw(src_yuv, mDstRgb[idx], 0, null);
-		} else {
-			native_draw(src_yuv, mDstRgb[idx], mRecorder.getColorFormat(), mDstYuv[idx]);
-			mRecorder.offerEncoder(mDstYuv[idx]);
+	public void onPreviewFrame(byte[] src_yuv, long timeUs) {
+		final boolean to_window = mEffectView.isWindowSet();
+		final int[] dst_rgb = (to_window ? null : mDstRgb.getWriteBuffer());
+		// (stopVideo() waits for a frame in flight to its recorder)
+		synchronized (mRecorderLock) {
+			final MyRecorder recorder = mRecorder;
+			final MyRecorder.Frame frame = (recorder != null ? recorder.obtainFrame() : null);
+
+			if (frame == null) {
+				native_draw(src_yuv, dst_rgb, 0, null);
+			} else {
+				native_draw(src_yuv, dst_rgb, recorder.getColorFormat(), frame.mData);
+				frame.mTimeUs = timeUs;
+				recorder.queueFrame(frame);
+			}
 		}
 
-		synchronized (mDstIdx) {
-			mDstIdx[0] = idx;
-			mDstIdx.notify();
+		// Never waits for EffectView (which never sees a half-written frame)
+		if (!to_window) {
+			mDstRgb.publish();
 		}
 	}
 
@@ -201,21 +230,66 @@ CameraView.CameraPreviewBuffer
 		mBtnStart.setEnabled(false);
 		mBtnStop.setEnabled(true);
 		if (mRecorder == null) {
-			mRecorder = new MyRecorder();
-			if (mRecorder.start() != 0) {
+			final MyRecorder recorder = new MyRecorder();
+			if (recorder.start() != 0) {
+				// start() has released what it opened
 				stopVideo();
 				return;
 			}
+			synchronized (mRecorderLock) {
+				mRecorder = recorder;
+			}
 		}
 	}
 
 	private void stopVideo() {
 		mBtnStart.setEnabled(true);
 		mBtnStop.setEnabled(false);
-		if (mRecorder != null) {
-			mRecorder.stop();
+		final MyRecorder recorder;
+		synchronized (mRecorderLock) {
+			recorder = mRecorder;
 			mRecorder = null;
 		}
+		if (recorder != null) {
+			recorder.stop();
+		}
+	}
+
+	// Effect chain sample: a warm color grade and a watermark
+	private void addEffects(int vw, int vh) {
+		native_effect_add(EFFECT_COLOR_MATRIX, new int[] {
+				282,   0,   0,  0,
+				  0, 256,   0,  0,
+				  0,   0, 230,  0,
+		});
+
+		final int ww = 160;
+		final int wh = 32;
+		Bitmap b = Bitmap.createBitmap(ww, wh, Bitmap.Config.ARGB_8888);
+		Canvas c = new Canvas(b);
+		Paint  p = new Paint();
+		p.setColor(Color.argb(0xC0, 0xFF, 0xFF, 0xFF));
+		p.setTextSize(wh * 3 / 4);
+		p.setAntiAlias(true);
+		c.drawText("MediaCodecTest16", 0, wh * 3 / 4, p);
+		final int[] params = new int[4 + ww * wh];
+		params[0] = vw - ww - 8;
+		params[1] = vh - wh - 8;
+		params[2] = ww;
+		params[3] = wh;
+		b.getPixels(params, 4, ww, 0, 0, ww, wh);
+		b.recycle();
+		native_effect_add(EFFECT_WATERMARK, params);
+	}
+
+	private void logStats() {
+		final long[] s = new long[6]; // frames, wall, threads, effect, yuv, preview
+		if (native_stats(s) != s.length || s[0] == 0) {
+			return;
+		}
+		Log.i(TAG, String.format(
+				"native_draw: frames=%d, threads=%d, wall=%.2fms, effect=%.2fms, yuv=%.2fms, preview=%.2fms",
+				s[0], s[2], s[1]/1000.0/s[0], s[3]/1000.0/s[0], s[4]/1000.0/s[0], s[5]/1000.0/s[0]));
 	}
 
 	private void playVideo() {
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodectest16;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.media.MediaCodec;
+
+import jp.morihirosoft.mediacodeccommon.Mp4Box;
+import jp.morihirosoft.mediacodeccommon.NalScanner;
+
+/**
+ * Streaming MP4 writer for a single AVC track (MediaMuxer is API 18+).
+ * The layout is ftyp/free/mdat/moov: samples are appended to mdat as they
+ * come out of the encoder, and only the sample table (moov) is written in
+ * stop(), so the stop cost depends on the frame count only.
+ */
+public class MyMuxer {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	private static final int NAL_TYPE_SYNC = 0x05;
+	private static final int NAL_TYPE_SPS  = 0x07;
+	private static final int NAL_TYPE_PPS  = 0x08;
+
+	private static final int  INIT_SAMPLE_SIZE = 1024;
+	private static final long MAX_UINT32       = 0xFFFFFFFFL;
+	private static final long MAC_TIME_OFFSET  = 2082844800L; // 1904 -> 1970
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private final int mWidth;
+	private final int mHeight;
+	private final int mFps;
+
+	private RandomAccessFile mFile    = null;
+	private FileChannel      mChannel = null;
+	private final ByteBuffer mNalHead = ByteBuffer.allocateDirect(4); // direct: no copy per write
+	private final ByteBuffer[] mNalBufs = {mNalHead, null}; // gather: length + NAL unit
+	private final NalScanner mScanner = new NalScanner();
+
+	private long mMdatAddr = 0; // 'free'(8) + 'mdat'(8)
+	private long mDataAddr = 0; // current end of mdat
+
+	private byte[] mSps = null;
+	private byte[] mPps = null;
+
+	private int    mSampleCnt = 0;
+	private int[]  mSizes     = new int[INIT_SAMPLE_SIZE];
+	private long[] mAddrs     = new long[INIT_SAMPLE_SIZE];
+	private long[] mPtss      = new long[INIT_SAMPLE_SIZE]; // us
+	private int    mSyncCnt   = 0;
+	private int[]  mSyncs     = new int[INIT_SAMPLE_SIZE];
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public MyMuxer(String path, int width, int height, int fps) throws IOException {
+		mWidth  = width;
+		mHeight = height;
+		mFps    = fps;
+
+		mFile = new RandomAccessFile(path, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+
+		ByteBuffer b = ByteBuffer.allocate(64);
+		// ftyp
+		Mp4Box.putFtyp(b, "isom", "iso2", "avc1", "mp41");
+		// free (becomes the large-size mdat header if mdat > 4GiB)
+		mMdatAddr = b.position();
+		int pos = Mp4Box.begin(b, "free");
+		Mp4Box.end(b, pos);
+		// mdat (size is fixed in stop())
+		pos = Mp4Box.begin(b, "mdat");
+		Mp4Box.end(b, pos);
+		b.flip();
+		writeFully(b);
+		mDataAddr = mChannel.position();
+	}
+
+	public void writeSampleData(ByteBuffer buf, MediaCodec.BufferInfo info) throws IOException {
+		if (mChannel == null) {
+			throw new IllegalStateException("muxer is not running");
+		}
+		final int start = info.offset;
+		final int end   = info.offset + info.size;
+		final boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+		boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+		final long addr = mDataAddr;
+		buf.limit(end);
+		if (!mScanner.reset(buf, start, end)) {
+			// No start code, treat as one NAL unit.
+			if (!config) {
+				writeNal(buf, start, end, end);
+			}
+		}
+		while (mScanner.next()) {
+			final int nal = mScanner.offset();
+			final int nalEnd = nal + mScanner.length();
+			final int nalType = mScanner.type();
+			if (nalType == NAL_TYPE_SPS && mSps == null) {
+				mSps = copyOf(buf, nal, nalEnd);
+			} else if (nalType == NAL_TYPE_PPS && mPps == null) {
+				mPps = copyOf(buf, nal, nalEnd);
+			} else if (nalType == NAL_TYPE_SYNC) {
+				sync = true;
+			}
+			if (!config) {
+				writeNal(buf, nal, nalEnd, end);
+			}
+		}
+		if (config || mDataAddr == addr) {
+			return;
+		}
+
+		// Sample table
+		if (mSampleCnt == mSizes.length) {
+			mSizes = grow(mSizes);
+			mAddrs = grow(mAddrs);
+			mPtss  = grow(mPtss);
+		}
+		mSizes[mSampleCnt] = (int)(mDataAddr - addr);
+		mAddrs[mSampleCnt] = addr;
+		mPtss[mSampleCnt]  = info.presentationTimeUs;
+		if (sync) {
+			if (mSyncCnt == mSyncs.length) {
+				mSyncs = grow(mSyncs);
+			}
+			mSyncs[mSyncCnt++] = mSampleCnt + 1;
+		}
+		mSampleCnt++;
+	}
+
+	public void stop() throws IOException {
+		if (mChannel == null) {
+			return;
+		}
+		try {
+			if (mSps == null || mPps == null) {
+				throw new IOException("no SPS/PPS");
+			}
+
+			// mdat size
+			final long mdatSize = mDataAddr - mMdatAddr - 8;
+			ByteBuffer b = ByteBuffer.allocate(16);
+			if (mdatSize > MAX_UINT32) {
+				b.putInt(1);
+				Mp4Box.putType(b, "mdat");
+				b.putLong(mdatSize + 8);
+			} else {
+				b.putInt(8);
+				Mp4Box.putType(b, "free");
+				b.putInt((int)mdatSize);
+				Mp4Box.putType(b, "mdat");
+			}
+			b.flip();
+			mChannel.write(b, mMdatAddr);
+
+			// moov
+			b = makeMoov();
+			b.flip();
+			mChannel.position(mDataAddr);
+			writeFully(b);
+		} finally {
+			release();
+		}
+	}
+
+	public void release() {
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		mFile    = null;
+		mChannel = null;
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	private void writeNal(ByteBuffer buf, int start, int end, int limit) throws IOException {
+		mNalHead.clear();
+		mNalHead.putInt(end - start);
+		mNalHead.flip();
+
+		buf.limit(end);
+		buf.position(start);
+		mNalBufs[1] = buf;
+		while (buf.hasRemaining()) {
+			mDataAddr += mChannel.write(mNalBufs);
+		}
+		mNalBufs[1] = null;
+		buf.limit(limit);
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			mDataAddr += mChannel.write(b);
+		}
+	}
+
+	private ByteBuffer makeMoov() {
+		final int  n        = mSampleCnt;
+		final boolean co64  = (n > 0 && mAddrs[n-1] > MAX_UINT32);
+		final int  now      = (int)(System.currentTimeMillis() / 1000 + MAC_TIME_OFFSET);
+		final int[] durations = getDurations();
+		long mediaDuration = 0;
+		for (int d : durations) {
+			mediaDuration += d;
+		}
+		final int  duration = (int)(1000L * mediaDuration / Mp4Box.TIMESCALE);
+
+		ByteBuffer b = ByteBuffer.allocate(1024 + mSps.length + mPps.length +
+				4 * mSyncCnt + (co64 ? 20 : 16) * n);
+
+		final int moov = Mp4Box.begin(b, "moov");
+		Mp4Box.putMvhd(b, now, duration);
+		final int trak = Mp4Box.begin(b, "trak");
+		Mp4Box.putTkhd(b, now, duration, mWidth, mHeight);
+		final int mdia = Mp4Box.begin(b, "mdia");
+		Mp4Box.putMdhd(b, now, mediaDuration);
+		Mp4Box.putHdlr(b);
+		final int minf = Mp4Box.begin(b, "minf");
+		Mp4Box.putVmhdDinf(b);
+		final int stbl = Mp4Box.begin(b, "stbl");
+		{
+			Mp4Box.putStsd(b, mWidth, mHeight, mSps, mPps);
+
+			final int stts = Mp4Box.begin(b, "stts");
+			b.putInt(0x00000000);
+			final int sttsCnt = b.position();
+			b.putInt(0);
+			int entries = 0;
+			for (int i=0; i<n; ) {
+				int j = i + 1;
+				while (j < n && durations[j] == durations[i]) {
+					j++;
+				}
+				b.putInt(j - i);
+				b.putInt(durations[i]);
+				entries++;
+				i = j;
+			}
+			b.putInt(sttsCnt, entries);
+			Mp4Box.end(b, stts);
+
+			final int stss = Mp4Box.begin(b, "stss");
+			b.putInt(0x00000000);
+			b.putInt(mSyncCnt);
+			for (int i=0; i<mSyncCnt; i++) {
+				b.putInt(mSyncs[i]);
+			}
+			Mp4Box.end(b, stss);
+
+			final int stsc = Mp4Box.begin(b, "stsc");
+			b.putInt(0x00000000);
+			b.putInt(1);
+			b.putInt(1); // first chunk
+			b.putInt(1); // samples per chunk
+			b.putInt(1); // sample description id
+			Mp4Box.end(b, stsc);
+
+			final int stsz = Mp4Box.begin(b, "stsz");
+			b.putInt(0x00000000);
+			b.putInt(0);
+			b.putInt(n);
+			for (int i=0; i<n; i++) {
+				b.putInt(mSizes[i]);
+			}
+			Mp4Box.end(b, stsz);
+
+			final int stco = Mp4Box.begin(b, co64 ? "co64" : "stco");
+			b.putInt(0x00000000);
+			b.putInt(n);
+			for (int i=0; i<n; i++) {
+				if (co64) {
+					b.putLong(mAddrs[i]);
+				} else {
+					b.putInt((int)mAddrs[i]);
+				}
+			}
+			Mp4Box.end(b, stco);
+		}
+		Mp4Box.end(b, stbl);
+		Mp4Box.end(b, minf);
+		Mp4Box.end(b, mdia);
+		Mp4Box.end(b, trak);
+		Mp4Box.end(b, moov);
+		return b;
+	}
+
+	/**
+	 * Sample durations (Mp4Box.TIMESCALE) from pts. The last sample (or a
+	 * non-increasing pts) gets the duration of the one before it.
+	 */
+	private int[] getDurations() {
+		final int n = mSampleCnt;
+		int[] durations = new int[n];
+		int dur = Mp4Box.TIMESCALE / mFps;
+		for (int i=0; i<n-1; i++) {
+			final long d = Mp4Box.toTimescale(mPtss[i+1]) - Mp4Box.toTimescale(mPtss[i]);
+			if (d > 0) {
+				dur = (int)d;
+			}
+			durations[i] = dur;
+		}
+		if (n > 0) {
+			durations[n-1] = dur;
+		}
+		return durations;
+	}
+
+	private static byte[] copyOf(ByteBuffer buf, int start, int end) {
+		byte[] dst = new byte[end - start];
+		for (int i=start; i<end; i++) {
+			dst[i - start] = buf.get(i);
+		}
+		return dst;
+	}
+
+	private static int[] grow(int[] src) {
+		int[] dst = new int[src.length * 2];
+		System.arraycopy(src, 0, dst, 0, src.length);
+		return dst;
+	}
+
+	private static long[] grow(long[] src) {
+		long[] dst = new long[src.length * 2];
+		System.arraycopy(src, 0, dst, 0, src.length);
+		return dst;
+	}
+}
@@ -16,19 +16,41 @@
 package jp.morihirosoft.mediacodectest16;
 
 import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
+import android.util.Log;
+
+import jp.morihirosoft.mediacodeccommon.BitrateController;
+import jp.morihirosoft.mediacodeccommon.MediaCodecEncoder;
+import jp.morihirosoft.mediacodeccommon.NalScanner;
+import jp.morihirosoft.mediacodeccommon.SoftwareEncoder;
+import jp.morihirosoft.mediacodeccommon.VideoEncoder;
+
+public class MyRecorder implements
+Runnable
+{
+	private static final String TAG = "MyRecorder";
 
-public class MyRecorder {
 	//---------------------------------------------------------------------
 	// CONSTANTS
 	//---------------------------------------------------------------------
+	// Frame queue overflow (the encoder is slower than the camera)
+	public static final int POLICY_DROP_NEWEST = 0; // skip the new frame
+	public static final int POLICY_DROP_OLDEST = 1; // reuse the oldest queued frame
+	public static final int POLICY_BLOCK       = 2; // wait (stalls the camera)
+
+	private static final long TIMEOUT_US     = 10000;
+	private static final long EOS_TIMEOUT_US = 2000000; // stop(): frames in the codec -> EOS
+
 	private static final int ColorFormat_NV12 = 1;
 	private static final int ColorFormat_NV21 = 2;
 	private static final int ColorFormat_I420 = 3;
@@ -39,27 +61,76 @@ public class MyRecorder {
 		{ColorFormat_I420, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar},
 	};
 
+	// Sidecar frame index (see cnvavc.c), one record per NAL unit:
+	// u64 addr, u32 size, u8 nal_type, u8 flags, u16 reserved, s64 pts_us
+	private static final int IDX_MAGIC       = 0x41564349; // "AVCI"
+	private static final int IDX_VERSION     = 1;
+	private static final int IDX_FLAG_SYNC   = 0x01;
+	private static final int IDX_FLAG_CONFIG = 0x02;
+	private static final int NAL_TYPE_SYNC   = 0x05;
+
 	//---------------------------------------------------------------------
 	// MEMBERS
 	//---------------------------------------------------------------------
 	private final VideoParam mVideoParam = VideoParam.getInstance();
 	private final String     mFileMp4 = mVideoParam.mOutput;
 	private final String     mFileTmp = mFileMp4+".tmp";
+	private final String     mFileIdx = mFileMp4+".idx";
 
-	private MediaCodec           mMediaCodec  = null;
+	private VideoEncoder         mEncoder     = null;
+	private ByteBuffer[]         mInputBufs   = null;
+	private Frame[]              mFrames      = null; // per input buffer
+	private int                  mFrameSize   = 0;
+	private ByteBuffer[]         mOutputBufs  = null;
+	private final MediaCodec.BufferInfo mBufInfo = new MediaCodec.BufferInfo();
 	private int                  mColorFormat = 0;
-	private BufferedOutputStream mOutput      = null;
+	private MyMuxer              mMuxer       = null; // streaming mux
+	private FileChannel          mOutput      = null; // .tmp + native_cnvavc
+	private DataOutputStream     mIndex       = null;
+	private long                 mOutputAddr  = 0;
+	private final NalScanner     mScanner     = new NalScanner();
+	private long                 mTimeOrigin  = -1; // us
+	private long                 mLastPtsUs   = 0;
+	private BitrateController    mBitrate     = null; // null: fixed bitrate
+
+	// Frame queue (camera thread -> encoder thread). The free frames are
+	// the codec's free input buffers.
+	private ArrayBlockingQueue<Frame> mFilledFrames = null;
+	private final Object              mTakenLock    = new Object(); // POLICY_BLOCK: a frame taken
+	private Thread                    mThread       = null;
+	private volatile boolean          mRunning      = false;
+	private volatile int              mQueuedCnt    = 0;
+	private volatile int              mDroppedCnt   = 0;
+	private volatile int              mEncodedCnt   = 0;
+	private volatile int              mFailedCnt    = 0; // taken, but the codec failed on it
+	private volatile int              mMaxDepth     = 0;
+
+	//---------------------------------------------------------------------
+	// FRAME
+	//---------------------------------------------------------------------
+	public static class Frame {
+		public final ByteBuffer mData; // codec input buffer: written by native_draw() as is
+		public long             mTimeUs = 0;
+		private final int       mIndex;
+
+		private Frame(int index, ByteBuffer data) {
+			mIndex = index;
+			mData  = data;
+		}
+	}
 
 	//---------------------------------------------------------------------
 	// PUBLIC METHODS
 	//---------------------------------------------------------------------
 	public MyRecorder() {
-		File f1 = new File(mFileTmp);
-		if (!f1.exists()) {
-			try {
-				f1.createNewFile();
-			} catch (IOException e) {
-				e.printStackTrace();
+		if (!mVideoParam.mStreamingMux) {
+			File f1 = new File(mFileTmp);
+			if (!f1.exists()) {
+				try {
+					f1.createNewFile();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 
@@ -74,95 +145,418 @@ public class MyRecorder {
 	}
 
 	public int start() {
-		// MediaCodec, ColorFormat
-		mMediaCodec = MediaCodec.createEncoderByType(mVideoParam.mMime);
-		MediaFormat mediaFormat = MediaFormat.createVideoFormat(
-				mVideoParam.mMime, mVideoParam.mSize.width, mVideoParam.mSize.height);
-		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE,
-				mVideoParam.mBps);
-		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE,
-				mVideoParam.getMaxFps());
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
-				mVideoParam.mIfi);
+		// Encoder, ColorFormat
+		mEncoder = (mVideoParam.mSoftEncoder ?
+				new SoftwareEncoder() : new MediaCodecEncoder(mVideoParam.mMime));
 		int col_fmt = -1;
 		for (int[] colorFormat : ColorFormatList) {
 			try {
-				mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat[1]);
-				mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+				mEncoder.configure(mVideoParam.mWidth, mVideoParam.mHeight,
+						mVideoParam.getMaxFps(), mVideoParam.mBps, mVideoParam.mIfi, colorFormat[1]);
 				col_fmt = colorFormat[0];
 			} catch (Exception e) {
 				continue;
 			}
 		}
 		if (col_fmt < 0) {
-			mMediaCodec.release();
+			mEncoder.release();
 			throw new UnsupportedOperationException("Not found color format");
 		}
 		mColorFormat = col_fmt;
-		mMediaCodec.start();
+		mEncoder.start();
+		mInputBufs  = mEncoder.getInputBuffers();
+		mOutputBufs = mEncoder.getOutputBuffers();
+
+		// Bitrate (MediaCodec can retune it from API 19)
+		if (mVideoParam.mAbr) {
+			final BitrateController.Target target = mEncoder.getBitrateTarget();
+			if (target != null) {
+				mBitrate = new BitrateController(target, mVideoParam.mBps,
+						mVideoParam.mBpsMin, mVideoParam.mBpsOutMax, mVideoParam.getMaxFps());
+			} else {
+				Log.i(TAG, "Fixed bitrate (setParameters: API 19-)");
+			}
+		}
 
 		//
 		try {
-			mOutput = new BufferedOutputStream(new FileOutputStream(mFileTmp));
+			if (mVideoParam.mStreamingMux) {
+				mMuxer = new MyMuxer(mFileMp4,
+						mVideoParam.mWidth, mVideoParam.mHeight,
+						mVideoParam.getMaxFps());
+			} else {
+				mOutput = new FileOutputStream(mFileTmp).getChannel();
+				mIndex = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFileIdx)));
+				mIndex.writeInt(IDX_MAGIC);
+				mIndex.writeInt(IDX_VERSION);
+				mOutputAddr = 0;
+			}
 		} catch (Exception e){
 			e.printStackTrace();
+			abort();
 			return -1;
 		}
+
+		// Frames (the codec's input buffers), Frame queue, Encoder thread
+		mFrameSize = mVideoParam.mWidth * mVideoParam.mHeight * 3 / 2;
+		mFrames = new Frame[mInputBufs.length];
+		for (int i=0; i<mInputBufs.length; i++) {
+			if (!mInputBufs[i].isDirect() || mInputBufs[i].capacity() < mFrameSize) {
+				Log.e(TAG, "Unusable input buffer: direct="+mInputBufs[i].isDirect()+
+						", capacity="+mInputBufs[i].capacity());
+				abort();
+				return -1;
+			}
+			mFrames[i] = new Frame(i, mInputBufs[i]);
+		}
+		mFilledFrames = new ArrayBlockingQueue<Frame>(mFrames.length);
+		mRunning = true;
+		mThread = new Thread(this, TAG);
+		mThread.start();
 		return 0;
 	}
 
 	public void stop() {
-		mMediaCodec.stop();
-		mMediaCodec.release();
-		mMediaCodec = null;
+		if (mEncoder == null) {
+			return; // not started, or start() failed
+		}
+
+		// Encode the queued frames, drain the codec up to EOS, and stop
+		// the thread (see run()).
+		mRunning = false;
+		synchronized (mTakenLock) {
+			mTakenLock.notifyAll();
+		}
+		if (mThread != null) {
+			try {
+				mThread.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			mThread = null;
+		}
+		Log.i(TAG, "frames: queued="+mQueuedCnt+", encoded="+mEncodedCnt+
+				", dropped="+mDroppedCnt+", failed="+mFailedCnt+", max depth="+mMaxDepth);
+		if (mBitrate != null) {
+			Log.i(TAG, "bitrate: last="+mBitrate.getBitrate()+", lowered="+mBitrate.getLoweredCount()+
+					", raised="+mBitrate.getRaisedCount()+", failed="+mBitrate.getFailedCount());
+			mBitrate = null;
+		}
+
+		mEncoder.stop();
+		mEncoder.release();
+		mEncoder    = null;
+		mInputBufs  = null;
+		mOutputBufs = null;
+		mFrames     = null;
 		mColorFormat = 0;
+
+		// Finalize (moov only)
+		if (mMuxer != null) {
+			try {
+				mMuxer.stop();
+			} catch (IOException e) {
+				throw new RuntimeException("MyMuxer.stop()", e);
+			} finally {
+				mMuxer = null;
+			}
+			return;
+		}
+
 		try {
-			mOutput.flush();
 			mOutput.close();
 		} catch (Exception e){
 			e.printStackTrace();
 		}
 		mOutput = null;
 
+		// The index is only a hint. If it is broken, cnvavc scans the rest.
+		String idx = mFileIdx;
+		try {
+			mIndex.flush();
+			mIndex.close();
+		} catch (Exception e){
+			e.printStackTrace();
+			idx = null;
+		}
+		mIndex = null;
+
 		// Convert
-		int rcode = MainActivity.native_cnvavc(mFileTmp, mFileMp4);
+		int rcode = MainActivity.native_cnvavc(mFileTmp, mFileMp4, idx);
 		if (rcode != 0) {
 			throw new RuntimeException("native_cnvavc()="+rcode);
 		}
 	}
 
-	public void offerEncoder(byte[] in) {
-		if (mMediaCodec == null) {
+	/**
+	 * Get a free frame to fill (camera thread): a codec input buffer, so
+	 * the frame is converted straight into it. Returns null if the frame
+	 * should be dropped (see VideoParam.mQueuePolicy).
+	 */
+	public Frame obtainFrame() {
+		if (!mRunning) {
+			return null;
+		}
+		final int n = mVideoParam.mQueueSize;
+		Frame f = (mFilledFrames.size() < n ? dequeueFrame(0) : null);
+		if (f == null) {
+			switch (mVideoParam.mQueuePolicy) {
+			case POLICY_DROP_OLDEST:
+				// Not given to the codec yet: reuse its buffer.
+				f = mFilledFrames.poll();
+				break;
+			case POLICY_BLOCK:
+				try {
+					while (f == null && mRunning) {
+						if (mFilledFrames.size() < n) {
+							f = dequeueFrame(TIMEOUT_US);
+						} else {
+							// Until run() takes a frame from the queue
+							synchronized (mTakenLock) {
+								if (mFilledFrames.size() >= n && mRunning) {
+									mTakenLock.wait(TIMEOUT_US / 1000);
+								}
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				return f;
+			default:
+				break;
+			}
+			mDroppedCnt++;
+		}
+		return f;
+	}
+
+	/**
+	 * Queue a frame from obtainFrame() to the encoder (camera thread).
+	 */
+	public void queueFrame(Frame f) {
+		mFilledFrames.offer(f);
+		mQueuedCnt++;
+		final int depth = mFilledFrames.size();
+		if (mMaxDepth < depth) {
+			mMaxDepth = depth;
+		}
+	}
+
+	public int getQueueDepth() {
+		return (mFilledFrames != null ? mFilledFrames.size() : 0);
+	}
+
+	public int getMaxQueueDepth() {
+		return mMaxDepth;
+	}
+
+	public int getDroppedCount() {
+		return mDroppedCnt + mFailedCnt;
+	}
+
+	public int getEncodedCount() {
+		return mEncodedCnt;
+	}
+
+	public int getColorFormat() {
+		return mColorFormat;
+	}
+
+	@Override
+	public void run() {
+		while (mRunning || !mFilledFrames.isEmpty()) {
+			Frame f = null;
+			try {
+				f = mFilledFrames.poll(TIMEOUT_US, TimeUnit.MICROSECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			if (f == null) {
+				continue;
+			}
+			if (mVideoParam.mQueuePolicy == POLICY_BLOCK) {
+				synchronized (mTakenLock) {
+					mTakenLock.notifyAll();
+				}
+			}
+			if (offerEncoder(f)) {
+				mEncodedCnt++;
+			} else {
+				mFailedCnt++;
+			}
+		}
+		finishEncoder();
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	// start() failed after the encoder started: release the encoder and
+	// close the outputs without finalizing them.
+	private void abort() {
+		mEncoder.stop();
+		mEncoder.release();
+		mEncoder    = null;
+		mInputBufs  = null;
+		mOutputBufs = null;
+		mFrames     = null;
+		mColorFormat = 0;
+		mBitrate    = null;
+
+		if (mMuxer != null) {
+			mMuxer.release();
+			mMuxer = null;
+		}
+		if (mOutput != null) {
+			try {
+				mOutput.close();
+			} catch (Exception e){
+				e.printStackTrace();
+			}
+			mOutput = null;
+		}
+		if (mIndex != null) {
+			try {
+				mIndex.close();
+			} catch (Exception e){
+				e.printStackTrace();
+			}
+			mIndex = null;
+		}
+	}
+
+	private Frame dequeueFrame(long timeoutUs) {
+		final VideoEncoder encoder = mEncoder;
+		if (encoder == null) {
+			return null;
+		}
+		try {
+			final int iIdx = encoder.dequeueInputBuffer(timeoutUs);
+			if (iIdx < 0) {
+				return null;
+			}
+			final Frame f = mFrames[iIdx];
+			f.mData.clear();
+			return f;
+		} catch (IllegalStateException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// Returns false if the frame was lost: not queued, or its output
+	// could not be drained.
+	private boolean offerEncoder(Frame f) {
+		if (mEncoder == null) {
+			return false;
+		}
+		if (mTimeOrigin < 0) {
+			mTimeOrigin = f.mTimeUs;
+		}
+		final long ptsUs = f.mTimeUs - mTimeOrigin;
+		try {
+			// Already filled in place by native_draw()
+			mEncoder.queueInputBuffer(f.mIndex, 0, mFrameSize, ptsUs, 0);
+			mLastPtsUs = ptsUs;
+			drainEncoder(0);
+			return true;
+		} catch (Throwable t) {
+			t.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Queue EOS and drain the codec up to it, so that the frames it still
+	 * holds get into the file (encoder thread, after the last frame).
+	 */
+	private void finishEncoder() {
+		if (mEncoder == null) {
 			return;
 		}
+		final long deadline = System.nanoTime() + EOS_TIMEOUT_US * 1000;
 		try {
-			ByteBuffer[] iBufs = mMediaCodec.getInputBuffers();
-			ByteBuffer[] oBufs = mMediaCodec.getOutputBuffers();
-
-			int iIdx = mMediaCodec.dequeueInputBuffer(-1);
-			if (iIdx >= 0) {
-				ByteBuffer iBuf = iBufs[iIdx];
-				iBuf.clear();
-				iBuf.put(in);
-				mMediaCodec.queueInputBuffer(iIdx, 0, in.length, 0, 0);
-			}
-
-			MediaCodec.BufferInfo bufInfo = new MediaCodec.BufferInfo();
-			int oIdx = mMediaCodec.dequeueOutputBuffer(bufInfo,0);
-			while (oIdx >= 0) {
-				ByteBuffer oBuf = oBufs[oIdx];
-				byte[] out = new byte[bufInfo.size];
-				oBuf.get(out);
-				mOutput.write(out, 0, out.length);
-				mMediaCodec.releaseOutputBuffer(oIdx, false);
-				oIdx = mMediaCodec.dequeueOutputBuffer(bufInfo, 0);
+			int iIdx = mEncoder.dequeueInputBuffer(TIMEOUT_US);
+			while (iIdx < 0) {
+				if (drainEncoder(0) || System.nanoTime() > deadline) {
+					Log.e(TAG, "EOS: no input buffer");
+					return;
+				}
+				iIdx = mEncoder.dequeueInputBuffer(TIMEOUT_US);
+			}
+			mEncoder.queueInputBuffer(iIdx, 0, 0, mLastPtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+			while (!drainEncoder(TIMEOUT_US)) {
+				if (System.nanoTime() > deadline) {
+					Log.e(TAG, "EOS: timeout");
+					return;
+				}
 			}
 		} catch (Throwable t) {
 			t.printStackTrace();
 		}
 	}
 
-	public int getColorFormat() {
-		return mColorFormat;
+	/**
+	 * Output buffers -> file, until none is ready (within timeoutUs each).
+	 * No allocation: cached buffer arrays, reused BufferInfo, and the
+	 * codec's buffer goes to the file as is. Returns true at EOS.
+	 */
+	private boolean drainEncoder(long timeoutUs) throws IOException {
+		final MediaCodec.BufferInfo bufInfo = mBufInfo;
+		int oIdx = mEncoder.dequeueOutputBuffer(bufInfo, timeoutUs);
+		while (oIdx != MediaCodec.INFO_TRY_AGAIN_LATER) {
+			if (oIdx == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				mOutputBufs = mEncoder.getOutputBuffers();
+			} else if (oIdx >= 0) {
+				ByteBuffer oBuf = mOutputBufs[oIdx];
+				final long t0 = System.nanoTime();
+				if (bufInfo.size > 0) {
+					if (mMuxer != null) {
+						mMuxer.writeSampleData(oBuf, bufInfo);
+					} else {
+						oBuf.limit(bufInfo.offset + bufInfo.size);
+						oBuf.position(bufInfo.offset);
+						while (oBuf.hasRemaining()) {
+							mOutput.write(oBuf);
+						}
+						writeIndex(oBuf, bufInfo);
+					}
+					if (mBitrate != null && (bufInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+						mBitrate.onSample(bufInfo.size, (System.nanoTime() - t0) / 1000);
+					}
+				}
+				mEncoder.releaseOutputBuffer(oIdx);
+				if ((bufInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+					return true;
+				}
+			}
+			oIdx = mEncoder.dequeueOutputBuffer(bufInfo, timeoutUs);
+		}
+		return false;
+	}
+
+	private void writeIndex(ByteBuffer buf, MediaCodec.BufferInfo info) throws IOException {
+		final int start = info.offset;
+		final int end   = info.offset + info.size;
+		int flags = 0;
+		if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+			flags |= IDX_FLAG_SYNC;
+		}
+		if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+			flags |= IDX_FLAG_CONFIG;
+		}
+
+		mScanner.reset(buf, start, end);
+		while (mScanner.next()) {
+			final int nalType = mScanner.type();
+			mIndex.writeLong(mOutputAddr + (mScanner.offset() - start));
+			mIndex.writeInt(mScanner.length());
+			mIndex.writeByte(nalType);
+			mIndex.writeByte(flags | (nalType == NAL_TYPE_SYNC ? IDX_FLAG_SYNC : 0));
+			mIndex.writeShort(0);
+			mIndex.writeLong(info.presentationTimeUs);
+		}
+		mOutputAddr += info.size;
 	}
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodectest16;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free triple buffer between one producer and one consumer thread
+ * (latest frame wins). The producer always has a buffer of its own to
+ * write, the consumer one to read, and the third is the mailbox in
+ * between: publish() and acquire() swap their own buffer with it. No one
+ * waits for the other, and a buffer is never written while it is read.
+ * A frame published again before the consumer took it is overwritten
+ * (counted).
+ */
+public class TripleBuffer {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	private static final int INDEX = 0x3;
+	private static final int FRESH = 0x4; // mailbox has a frame not acquired yet
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private final int[][]       mBuffers;
+	private final AtomicInteger mMailbox = new AtomicInteger(1); // index | FRESH
+	private int                 mWrite   = 0; // producer only
+	private int                 mRead    = 2; // consumer only
+	private volatile Thread     mWaiter  = null;
+
+	private volatile int mPublishedCnt   = 0;
+	private volatile int mOverwrittenCnt = 0; // published, never acquired
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public TripleBuffer(int size) {
+		mBuffers = new int[][] {new int[size], new int[size], new int[size]};
+	}
+
+	/** Producer: the buffer to write the next frame to. */
+	public int[] getWriteBuffer() {
+		return mBuffers[mWrite];
+	}
+
+	/** Producer: hands the written buffer to the consumer. */
+	public void publish() {
+		final int old = mMailbox.getAndSet(mWrite | FRESH);
+		mWrite = old & INDEX;
+		mPublishedCnt++;
+		if ((old & FRESH) != 0) {
+			mOverwrittenCnt++;
+		}
+		final Thread t = mWaiter;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Consumer: the latest frame, waiting up to timeoutNs for one not
+	 * acquired yet. Null on timeout. The buffer stays valid until the
+	 * next call.
+	 */
+	public int[] acquire(long timeoutNs) {
+		final long end = System.nanoTime() + timeoutNs;
+		mWaiter = Thread.currentThread();
+		try {
+			while ((mMailbox.get() & FRESH) == 0) {
+				final long left = end - System.nanoTime();
+				if (left <= 0) {
+					return null;
+				}
+				LockSupport.parkNanos(this, left);
+			}
+		} finally {
+			mWaiter = null;
+		}
+		mRead = mMailbox.getAndSet(mRead) & INDEX;
+		return mBuffers[mRead];
+	}
+
+	public int getPublishedCount() {
+		return mPublishedCnt;
+	}
+
+	public int getOverwrittenCount() {
+		return mOverwrittenCnt;
+	}
+}
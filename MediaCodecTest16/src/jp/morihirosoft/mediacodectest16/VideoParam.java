@@ -32,7 +32,20 @@ public class VideoParam {
 	private static final int    FPS     = 30;
 	private static final String MIME    = "video/avc";
 	private static final int    BPS     = 4194304; // 0x400000
+	private static final boolean ABR    = true;    // cut BPS while the storage falls behind, back up to it (API 19-)
+	private static final int    BPS_MIN = 1048576; // 0x100000
+	private static final int    BPS_OUT_MAX = 8388608; // 0x800000: ABR cuts an output over this
 	private static final int    IFI     = 5;
+	private static final boolean STREAMING_MUX = true; // false: .tmp + native_cnvavc
+	private static final boolean SOFT_ENCODER  = false; // true: SoftwareEncoder (synthetic stream, no MediaCodec)
+	private static final int    PREVIEW_BUFFERS = 3; // camera callback buffers
+	private static final int    QUEUE_SIZE   = 3; // frames to the encoder thread
+	private static final int    THREADS      = 0; // native_draw workers (0: all CPUs)
+	private static final int    QUEUE_POLICY = MyRecorder.POLICY_DROP_OLDEST;
+	private static final boolean EFFECT_CHAIN = false; // color grade + watermark on top of the mask
+	private static final boolean NATIVE_PREVIEW = true; // false: EffectView draws with a Canvas
+	private static final String FRAME_FILE = null; // NV21 VIDEO_W x VIDEO_H frames looped instead of the camera
+	private static final boolean FRAME_FILE_PACED = true; // false: as fast as possible (max sustainable fps)
 	private static final String SDCARD  = Environment.getExternalStorageDirectory().getPath();
 	private static final String OUTPUT  = SDCARD + "/video.mp4";
 
@@ -41,12 +54,27 @@ public class VideoParam {
 	//---------------------------------------------------------------------
 	public final int     mCameraId;
 	public final boolean mFacingFront;
-	public final Size    mSize;
+	public final Size    mSize;   // null: headless
+	public final int     mWidth;  // mSize's, or the headless one
+	public final int     mHeight;
 	public final int[]   mFpsRange;
 	public final String  mMime   = MIME;
 	public final int     mBps    = BPS;
+	public final boolean mAbr    = ABR;
+	public final int     mBpsMin = BPS_MIN;
+	public final int     mBpsOutMax = BPS_OUT_MAX;
 	public final int     mIfi    = IFI;
-	public final String  mOutput = OUTPUT;
+	public final String  mOutput;
+	public final boolean mStreamingMux = STREAMING_MUX;
+	public final boolean mSoftEncoder;
+	public final int     mPreviewBuffers = PREVIEW_BUFFERS;
+	public final int     mQueueSize    = QUEUE_SIZE;
+	public final int     mQueuePolicy;
+	public final int     mThreads      = THREADS;
+	public final boolean mEffectChain  = EFFECT_CHAIN;
+	public final boolean mNativePreview = NATIVE_PREVIEW;
+	public final String  mFrameFile      = FRAME_FILE;
+	public final boolean mFrameFilePaced = FRAME_FILE_PACED;
 
 	//---------------------------------------------------------------------
 	// SINGLETON
@@ -65,6 +93,21 @@ public class VideoParam {
 		return sInstance;
 	}
 
+	/**
+	 * Off the device (no camera): width x height frames at fps to output,
+	 * by SoftwareEncoder, none dropped (POLICY_BLOCK). Instead of the
+	 * first getInstance().
+	 */
+	public static VideoParam setupHeadless(int width, int height, int fps, String output) {
+		synchronized (sSyncObj) {
+			if (sInstance != null) {
+				throw new IllegalStateException("Already set up");
+			}
+			sInstance = new VideoParam(width, height, fps, output);
+		}
+		return sInstance;
+	}
+
 	private VideoParam() {
 		int num = Camera.getNumberOfCameras();
 		if (num < 1) {
@@ -100,7 +143,9 @@ public class VideoParam {
 			throw new UnsupportedOperationException(
 					String.format("Not support size: %dx%d",VIDEO_W,VIDEO_H));
 		}
-		mSize = size;
+		mSize   = size;
+		mWidth  = size.width;
+		mHeight = size.height;
 
 		// Frame rate
 		int[] fps = null;
@@ -115,6 +160,10 @@ public class VideoParam {
 		}
 		mFpsRange = fps;
 
+		mOutput      = OUTPUT;
+		mSoftEncoder = SOFT_ENCODER;
+		mQueuePolicy = QUEUE_POLICY;
+
 		// Format (check only)
 		final int img_fmt = cp.getPreviewFormat();
 		switch (img_fmt) {
@@ -141,6 +190,25 @@ public class VideoParam {
 		Log.i(TAG, "ImageFormat = NV21");
 	}
 
+	private VideoParam(int width, int height, int fps, String output) {
+		if (width < 2 || height < 2 || (width & 1) != 0 || (height & 1) != 0 || fps < 1) {
+			throw new IllegalArgumentException(width+"x"+height+", "+fps+"fps");
+		}
+		mCameraId    = -1;
+		mFacingFront = false;
+		mSize        = null;
+		mWidth       = width;
+		mHeight      = height;
+		mFpsRange    = new int[2];
+		mFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] = fps * 1000;
+		mFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] = fps * 1000;
+		mOutput      = output;
+		mSoftEncoder = true;
+		mQueuePolicy = MyRecorder.POLICY_BLOCK;
+
+		Log.i(TAG, "Headless: "+mWidth+"x"+mHeight+", "+fps+"fps -> "+mOutput);
+	}
+
 	//---------------------------------------------------------------------
 	// PUBLIC METHODS
 	//---------------------------------------------------------------------
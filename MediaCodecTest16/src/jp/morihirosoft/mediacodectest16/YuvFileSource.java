@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodectest16;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Frames from a raw NV21 file (width x height frames back to back, as
+ * written by e.g. "ffmpeg -pix_fmt nv21 -f rawvideo"), memory-mapped and
+ * looped, on a thread of its own.
+ * <ul>
+ * <li>paced: at fps like a camera. A frame whose time has passed while
+ * the previous one was processed is dropped.</li>
+ * <li>not paced: as fast as the callback takes them (the max sustainable
+ * fps). The time stamps still go by 1/fps.</li>
+ * </ul>
+ */
+class YuvFileSource implements
+FrameSource,
+Runnable
+{
+	private static final String TAG = "YuvFileSource";
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private final MappedByteBuffer mMap;
+	private final int              mFrameSize;
+	private final int              mFrameNum;
+	private final byte[]           mBuffer;
+	private final int              mFps;
+	private final boolean          mPaced;
+
+	private FrameCallback    mCallback = null;
+	private Thread           mThread   = null;
+	private volatile boolean mRunning  = false;
+
+	private volatile int  mDeliveredCnt = 0;
+	private volatile int  mProcessedCnt = 0;
+	private volatile int  mDroppedCnt   = 0;
+	private volatile long mElapsedNs    = 0;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public YuvFileSource(String path, int width, int height, int fps, boolean paced) throws IOException {
+		if (fps < 1) {
+			throw new IllegalArgumentException("fps="+fps);
+		}
+		mFrameSize = width * height * 3 / 2;
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			// One mapping: up to 2GB of whole frames
+			final long frames = Math.min(file.length(), Integer.MAX_VALUE) / mFrameSize;
+			if (frames < 1) {
+				throw new IOException("No "+width+"x"+height+" frame in "+path);
+			}
+			mFrameNum = (int)frames;
+			mMap = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long)mFrameNum * mFrameSize);
+		} finally {
+			file.close(); // the mapping stays
+		}
+		mBuffer = new byte[mFrameSize];
+		mFps    = fps;
+		mPaced  = paced;
+	}
+
+	@Override
+	public void setup(FrameCallback callback) {
+		mCallback = callback;
+	}
+
+	@Override
+	public void resume() {
+		if (mCallback == null) {
+			throw new IllegalStateException("mCallback=null");
+		}
+		if (mThread == null) {
+			mRunning = true;
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	@Override
+	public void pause() {
+		if (mThread == null) {
+			return;
+		}
+		mRunning = false;
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		mThread = null;
+		Log.i(TAG, String.format("frames: delivered=%d, processed=%d, dropped=%d, fps=%.1f (%s)",
+				mDeliveredCnt, mProcessedCnt, mDroppedCnt,
+				(mElapsedNs > 0 ? mProcessedCnt * 1e9 / mElapsedNs : 0.0),
+				(mPaced ? "paced" : "as fast as possible")));
+	}
+
+	@Override
+	public int getDeliveredCount() {
+		return mDeliveredCnt;
+	}
+
+	@Override
+	public int getProcessedCount() {
+		return mProcessedCnt;
+	}
+
+	@Override
+	public int getDroppedCount() {
+		return mDroppedCnt;
+	}
+
+	@Override
+	public void run() {
+		final long intervalNs = 1000000000L / mFps;
+		final long t0 = System.nanoTime();
+		long n = 0; // frame on the timeline (looping over the file)
+		mDeliveredCnt = 0;
+		mProcessedCnt = 0;
+		mDroppedCnt   = 0;
+		while (mRunning) {
+			if (mPaced) {
+				final long due = t0 + n * intervalNs;
+				final long now = System.nanoTime();
+				if (now < due) {
+					LockSupport.parkNanos(due - now);
+					continue;
+				}
+				final long late = (now - due) / intervalNs;
+				if (late > 0) {
+					mDroppedCnt += (int)late;
+					n += late;
+				}
+			}
+
+			mMap.position((int)(n % mFrameNum) * mFrameSize);
+			mMap.get(mBuffer, 0, mFrameSize);
+			mDeliveredCnt++;
+			mCallback.onPreviewFrame(mBuffer, t0 / 1000 + n * intervalNs / 1000);
+			mProcessedCnt++;
+			n++;
+			mElapsedNs = System.nanoTime() - t0;
+		}
+	}
+}
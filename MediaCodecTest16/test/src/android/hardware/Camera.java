@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.hardware;
+
+import java.util.List;
+
+/**
+ * Host stand-in for android.hardware.Camera: no camera on the host, the
+ * calls throw (VideoParam.setupHeadless() makes none).
+ */
+public class Camera {
+	public static class CameraInfo {
+		public static final int CAMERA_FACING_BACK  = 0;
+		public static final int CAMERA_FACING_FRONT = 1;
+		public int facing;
+		public int orientation;
+	}
+
+	public class Size {
+		public int width;
+		public int height;
+
+		public Size(int w, int h) {
+			width  = w;
+			height = h;
+		}
+	}
+
+	public class Parameters {
+		public static final int PREVIEW_FPS_MIN_INDEX = 0;
+		public static final int PREVIEW_FPS_MAX_INDEX = 1;
+
+		public List<Size> getSupportedPreviewSizes() {
+			throw new UnsupportedOperationException("No camera on the host");
+		}
+
+		public List<int[]> getSupportedPreviewFpsRange() {
+			throw new UnsupportedOperationException("No camera on the host");
+		}
+
+		public int getPreviewFormat() {
+			throw new UnsupportedOperationException("No camera on the host");
+		}
+	}
+
+	public static int getNumberOfCameras() {
+		return 0;
+	}
+
+	public static void getCameraInfo(int cameraId, CameraInfo cameraInfo) {
+		throw new UnsupportedOperationException("No camera on the host");
+	}
+
+	public static Camera open(int cameraId) {
+		throw new UnsupportedOperationException("No camera on the host");
+	}
+
+	public Parameters getParameters() {
+		throw new UnsupportedOperationException("No camera on the host");
+	}
+
+	public void release() {
+	}
+
+	private Camera() {
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.media;
+
+import java.nio.ByteBuffer;
+
+import android.os.Bundle;
+import android.view.Surface;
+
+/**
+ * Host stand-in for android.media.MediaCodec: the constants (the values
+ * of the SDK) and BufferInfo. There is no codec on the host, the calls
+ * throw (SoftwareEncoder runs instead).
+ */
+public final class MediaCodec {
+	public static final int BUFFER_FLAG_SYNC_FRAME    = 1;
+	public static final int BUFFER_FLAG_CODEC_CONFIG  = 2;
+	public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+	public static final int CONFIGURE_FLAG_ENCODE = 1;
+
+	public static final int INFO_TRY_AGAIN_LATER        = -1;
+	public static final int INFO_OUTPUT_FORMAT_CHANGED  = -2;
+	public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+	public static final class BufferInfo {
+		public int  offset;
+		public int  size;
+		public long presentationTimeUs;
+		public int  flags;
+
+		public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+			offset = newOffset;
+			size   = newSize;
+			presentationTimeUs = newTimeUs;
+			flags  = newFlags;
+		}
+	}
+
+	public static MediaCodec createEncoderByType(String type) {
+		throw new UnsupportedOperationException("No MediaCodec on the host");
+	}
+
+	public void configure(MediaFormat format, Surface surface, Object crypto, int flags) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Surface createInputSurface() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void start() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void stop() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void release() {
+	}
+
+	public ByteBuffer[] getInputBuffers() {
+		throw new UnsupportedOperationException();
+	}
+
+	public int dequeueInputBuffer(long timeoutUs) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void signalEndOfInputStream() {
+		throw new UnsupportedOperationException();
+	}
+
+	public ByteBuffer[] getOutputBuffers() {
+		throw new UnsupportedOperationException();
+	}
+
+	public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void releaseOutputBuffer(int index, boolean render) {
+		throw new UnsupportedOperationException();
+	}
+
+	public MediaFormat getOutputFormat() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void setParameters(Bundle params) {
+		throw new UnsupportedOperationException();
+	}
+
+	private MediaCodec() {
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import java.util.HashMap;
+
+/**
+ * Host stand-in for android.os.Bundle (the calls the app makes).
+ */
+public final class Bundle {
+	private final HashMap<String, Object> mMap = new HashMap<String, Object>();
+
+	public void putInt(String key, int value) {
+		mMap.put(key, value);
+	}
+
+	public int getInt(String key) {
+		final Object v = mMap.get(key);
+		return (v instanceof Integer ? (Integer)v : 0);
+	}
+}
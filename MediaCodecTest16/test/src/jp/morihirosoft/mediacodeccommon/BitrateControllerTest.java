@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BitrateController on the host: drives onSample() with an encoder that
+ * puts out what its FakeTarget was set to, and a storage of a given
+ * speed, and checks the bitrate path:
+ * <ul>
+ * <li>fast storage from the start: kept at the configured bitrate (no
+ * climb above it)</li>
+ * <li>slow storage: cut by 1/4 per window until the writes fit, never
+ * below min</li>
+ * <li>fast again: back up by 1/16 of the configured bitrate per window,
+ * to it and not above</li>
+ * <li>an output over out_max: cut; a target that refuses: counted, the
+ * bitrate kept</li>
+ * </ul>
+ * Exits with 1 if a check fails.
+ */
+public class BitrateControllerTest {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	private static final int FPS     = 30;
+	private static final int BPS     = 4194304; // as VideoParam
+	private static final int BPS_MIN = 1048576;
+	private static final int BPS_OUT_MAX = 8388608;
+
+	// Storage speeds, bytes/s
+	private static final long FAST      = 64L * 1024 * 1024;
+	private static final long SLOW      = 600L * 1024;  // 4 Mbps takes ~28ms/frame
+	private static final long VERY_SLOW = 50L * 1024;
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private static int sFails = 0;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public static void main(String[] args) {
+		final long frameUs = 1000000L / FPS;
+
+		// Fast storage from the start
+		FakeTarget target = new FakeTarget(BPS);
+		BitrateController bc = new BitrateController(target, BPS, BPS_MIN, BPS_OUT_MAX, FPS);
+		List<Integer> path = run("fast", bc, target, FAST, 1.0, 10);
+		check(target.getCalls().isEmpty(), "fast: bitrate changed "+target.getCalls());
+		check(bc.getBitrate() == BPS, "fast: "+bc.getBitrate()+" != "+BPS);
+
+		// Slow: cuts of 1/4 until a frame is written in half its interval
+		path = run("slow", bc, target, SLOW, 1.0, 10);
+		int prev = BPS;
+		for (int bps : path) {
+			check(bps == prev || bps == prev - prev / 4, "slow: "+prev+" -> "+bps+" (not a 1/4 cut)");
+			prev = bps;
+		}
+		check(bc.getBitrate() < BPS, "slow: not cut");
+		check(writeUs(bc.getBitrate(), SLOW) <= frameUs / 2,
+				"slow: writes still "+writeUs(bc.getBitrate(), SLOW)+"us");
+		check(writeUs(bc.getBitrate() * 4 / 3, SLOW) > frameUs / 2, "slow: cut too far ("+bc.getBitrate()+")");
+		check(path.get(path.size() - 1).equals(path.get(path.size() - 2)), "slow: not steady "+path);
+
+		// Very slow: down to min, not below
+		path = run("very slow", bc, target, VERY_SLOW, 1.0, 10);
+		for (int bps : path) {
+			check(bps >= BPS_MIN, "very slow: "+bps+" < min");
+		}
+		check(bc.getBitrate() == BPS_MIN, "very slow: "+bc.getBitrate()+" != min");
+		final int lowered = bc.getLoweredCount();
+
+		// Fast again: back up in steps of BPS/16, to BPS and not above
+		target.getCalls().clear();
+		path = run("fast again", bc, target, FAST, 1.0, 20);
+		prev = BPS_MIN;
+		for (int bps : path) {
+			check(bps == prev || bps == Math.min(prev + BPS / 16, BPS), "fast again: "+prev+" -> "+bps);
+			check(bps <= BPS, "fast again: "+bps+" > "+BPS);
+			prev = bps;
+		}
+		check(bc.getBitrate() == BPS, "fast again: "+bc.getBitrate()+" != "+BPS);
+		check(target.getCalls().size() == bc.getRaisedCount(), "fast again: calls "+target.getCalls());
+		check(bc.getLoweredCount() == lowered, "fast again: lowered");
+
+		// The codec overshoots out_max: cut although the storage keeps up
+		path = run("overshoot", bc, target, FAST, 2.5, 1);
+		check(path.get(0) == BPS - BPS / 4, "overshoot: "+path.get(0)+" != "+(BPS - BPS / 4));
+
+		// A target that refuses: counted, the bitrate kept
+		target = new FakeTarget(BPS);
+		bc = new BitrateController(target, BPS, BPS_MIN, BPS_OUT_MAX, FPS);
+		target.setFailing(true);
+		run("refused", bc, target, SLOW, 1.0, 3);
+		check(bc.getFailedCount() == 3, "refused: failed="+bc.getFailedCount());
+		check(bc.getBitrate() == BPS && bc.getLoweredCount() == 0, "refused: "+bc.getBitrate());
+		check(target.getCalls().size() == 3, "refused: calls "+target.getCalls());
+
+		// Arguments: the configured bitrate within [min, out_max]
+		checkThrows(BPS_MIN - 1, BPS_MIN, BPS_OUT_MAX);
+		checkThrows(BPS_OUT_MAX + 1, BPS_MIN, BPS_OUT_MAX);
+
+		if (sFails > 0) {
+			System.err.println("FAIL: "+sFails+" checks");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	/**
+	 * seconds of frames of the target's bitrate (x overshoot), written to
+	 * a storage of speed bytes/s. Returns the bitrate after each second.
+	 */
+	private static List<Integer> run(String name, BitrateController bc, FakeTarget target,
+			long speed, double overshoot, int seconds) {
+		final List<Integer> path = new ArrayList<Integer>();
+		final StringBuilder sb = new StringBuilder();
+		sb.append(bc.getBitrate());
+		for (int s=0; s<seconds; s++) {
+			for (int f=0; f<FPS; f++) {
+				final int size = (int)(target.getBitrate() * overshoot / 8 / FPS);
+				bc.onSample(size, size * 1000000L / speed);
+			}
+			path.add(bc.getBitrate());
+			sb.append(" ").append(bc.getBitrate());
+		}
+		System.out.println(name+": "+sb);
+		return path;
+	}
+
+	private static long writeUs(int bps, long speed) {
+		return (long)bps / 8 / FPS * 1000000L / speed;
+	}
+
+	private static void checkThrows(int bps, int min_bps, int out_max_bps) {
+		try {
+			new BitrateController(new FakeTarget(bps), bps, min_bps, out_max_bps, FPS);
+			check(false, "bps="+bps+" accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static void check(boolean ok, String msg) {
+		if (!ok) {
+			System.err.println("FAIL: "+msg);
+			sFails++;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BitrateController.Target off the device: keeps the bitrate it was
+ * given (an encoder to model), and every call. Refuses them while
+ * setFailing(true).
+ */
+class FakeTarget implements BitrateController.Target {
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private final List<Integer> mCalls = new ArrayList<Integer>();
+	private int     mBps;
+	private boolean mFailing = false;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public FakeTarget(int bps) {
+		mBps = bps;
+	}
+
+	@Override
+	public boolean setBitrate(int bps) {
+		mCalls.add(bps);
+		if (mFailing) {
+			return false;
+		}
+		mBps = bps;
+		return true;
+	}
+
+	public void setFailing(boolean failing) {
+		mFailing = failing;
+	}
+
+	public int getBitrate() {
+		return mBps;
+	}
+
+	/** Every setBitrate(), refused ones too. */
+	public List<Integer> getCalls() {
+		return mCalls;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodeccommon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * NalScanner on the host: scans a generated Annex-B stream (the one of
+ * MediaCodecTest16/jni/test/nalscan_bench.c) in a direct ByteBuffer with
+ * NalScanner and with a byte-at-a-time scanner (as MyMuxer had before),
+ * checks that both find the same NAL units, and prints their speed.
+ *
+ *   NalScannerBench [MiB [N [rounds [be|le]]]]
+ *     MiB: stream size (default 256), N: 1/N of the payload bytes are 0x00
+ *     (default 256; 1: 00 00 03 repeated, the byte loop predicts all its
+ *     branches and is the faster one), rounds: best of (default 10, the
+ *     first ones warm up the JIT), be|le: the buffer's byte order
+ *     (default be)
+ */
+public class NalScannerBench {
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private static int sRand = (int)2463534242L;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public static void main(String[] args) {
+		final int mib    = (args.length > 0 ? Integer.parseInt(args[0]) : 256);
+		final int zeroN  = (args.length > 1 ? Integer.parseInt(args[1]) : 256);
+		final int rounds = (args.length > 2 ? Integer.parseInt(args[2]) : 10);
+		final ByteOrder order = (args.length > 3 && args[3].equals("le") ?
+				ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+		final ByteBuffer buf = ByteBuffer.allocateDirect(mib * 1024 * 1024).order(order);
+		final int nalNum = generate(buf, zeroN);
+		final int len    = buf.position();
+
+		final long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+		final long[] sums = new long[2];
+		final int[]  nals = new int[2];
+		final NalScanner scanner = new NalScanner();
+		for (int r=0; r<rounds; r++) {
+			for (int w=0; w<2; w++) {
+				final long t0 = System.nanoTime();
+				long sum = 0;
+				int  n   = 0;
+				if (w == 0) {
+					for (int i=findBytes(buf, 0, len); i>=0; i=findBytes(buf, i, len)) {
+						sum += i;
+						n++;
+					}
+				} else if (scanner.reset(buf, 0, len)) {
+					while (scanner.next()) {
+						sum += scanner.offset();
+						n++;
+					}
+				}
+				best[w] = Math.min(best[w], System.nanoTime() - t0);
+				sums[w] = sum;
+				nals[w] = n;
+			}
+		}
+		final double mb = len / 1048576.0;
+		System.out.println(String.format("stream: %.1f MiB, 1/%d zeros, %d NAL units, %s%s", mb, zeroN, nalNum, order,
+				(zeroN == 1 ? " (00 00 03 repeated: byte loop favored)" : "")));
+		System.out.println(String.format("  byte at a time : %7.1f MiB/s", mb * 1e9 / best[0]));
+		System.out.println(String.format("  NalScanner     : %7.1f MiB/s (x%.2f)",
+				mb * 1e9 / best[1], (double)best[0] / best[1]));
+		if (nals[0] != nalNum || nals[1] != nalNum || sums[0] != sums[1]) {
+			System.err.println("FAIL: NAL units differ ("+nalNum+", "+nals[0]+", "+nals[1]+")");
+			System.exit(1);
+		}
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	// xorshift32, as nalscan_bench.c
+	private static long nextRand() {
+		sRand ^= sRand << 13;
+		sRand ^= sRand >>> 17;
+		sRand ^= sRand << 5;
+		return sRand & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * NAL units of 100..200000 bytes, 3/4-byte start codes, payload with
+	 * emulation prevention. Returns the number of NAL units.
+	 */
+	private static int generate(ByteBuffer buf, int zeroN) {
+		int nals = 0;
+		while (buf.position() + 4 + 200000 + 200000/2 < buf.capacity()) {
+			final int size = 100 + (int)(nextRand() % 200000);
+			int zeros = 0;
+			if (nextRand() % 4 == 0) {
+				buf.put((byte)0x00);
+			}
+			buf.put((byte)0x00);
+			buf.put((byte)0x00);
+			buf.put((byte)0x01);
+			buf.put((byte)(nextRand() % 8 == 0 ? 0x65 : 0x41));
+			for (int i=1; i<size; i++) {
+				final long r = nextRand();
+				final int  c = (r % zeroN == 0 ? 0x00 : (int)(1 + (r >>> 8) % 255));
+				if (zeros >= 2 && c <= 0x03) {
+					buf.put((byte)0x03);
+					zeros = 0;
+				}
+				buf.put((byte)c);
+				zeros = (c == 0x00 ? zeros + 1 : 0);
+			}
+			if (zeros > 0) {
+				buf.put((byte)0x03);
+			}
+			nals++;
+		}
+		return nals;
+	}
+
+	/** Index just after the next start code, or -1. */
+	private static int findBytes(ByteBuffer buf, int from, int end) {
+		int zeros = 0;
+		for (int i=from; i<end; i++) {
+			final byte c = buf.get(i);
+			if (c == 0) {
+				zeros++;
+			} else if (c == 1 && zeros >= 2) {
+				return i + 1;
+			} else {
+				zeros = 0;
+			}
+		}
+		return -1;
+	}
+}
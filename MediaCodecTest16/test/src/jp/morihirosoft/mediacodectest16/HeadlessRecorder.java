@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodectest16;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * MyRecorder off the device: VideoParam.setupHeadless() (SoftwareEncoder,
+ * no frame dropped), frames queued as fast as MyRecorder takes them, with
+ * the time stamps of a fps camera. Then the MP4 is checked: one sample
+ * per frame, each an exact run of length-prefixed NAL units, IDRs where
+ * stss says and nowhere else, the duration. Prints how many times real
+ * time it ran at.
+ *
+ *   HeadlessRecorder [seconds [WxH [fps [out.mp4]]]]
+ *     defaults: 60, 640x480, 30, java.io.tmpdir/headless.mp4
+ */
+public class HeadlessRecorder {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	private static final int NAL_TYPE_SLICE = 0x01;
+	private static final int NAL_TYPE_SYNC  = 0x05;
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private static int sFails = 0;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public static void main(String[] args) throws IOException {
+		final int      seconds = (args.length > 0 ? Integer.parseInt(args[0]) : 60);
+		final String[] size    = (args.length > 1 ? args[1] : "640x480").split("x");
+		final int      fps     = (args.length > 2 ? Integer.parseInt(args[2]) : 30);
+		final String   output  = (args.length > 3 ? args[3] :
+				new File(System.getProperty("java.io.tmpdir"), "headless.mp4").getPath());
+		final int      width   = Integer.parseInt(size[0]);
+		final int      height  = Integer.parseInt(size[1]);
+
+		final VideoParam vp = VideoParam.setupHeadless(width, height, fps, output);
+		final int frames = seconds * fps;
+
+		// Record
+		final long t0 = System.nanoTime();
+		final MyRecorder recorder = new MyRecorder();
+		if (recorder.start() != 0) {
+			System.err.println("FAIL: MyRecorder.start()");
+			System.exit(1);
+		}
+		final long timeOrigin = 1000000L; // as a camera's clock
+		for (int i=0; i<frames; i++) {
+			final MyRecorder.Frame f = recorder.obtainFrame();
+			if (f == null) {
+				continue; // counted as dropped
+			}
+			f.mTimeUs = timeOrigin + i * 1000000L / fps;
+			recorder.queueFrame(f);
+		}
+		recorder.stop();
+		final double wall = (System.nanoTime() - t0) / 1e9;
+
+		// Check
+		check(recorder.getDroppedCount() == 0, "dropped="+recorder.getDroppedCount());
+		check(recorder.getEncodedCount() == frames, "encoded="+recorder.getEncodedCount()+" != "+frames);
+		final Mp4 mp4 = new Mp4(output);
+		final int gop = vp.mIfi * fps;
+		check(mp4.mSamples == frames, "samples="+mp4.mSamples+" != "+frames);
+		check(mp4.mSyncs == (frames + gop - 1) / gop, "sync samples="+mp4.mSyncs);
+		check(mp4.mBadSamples == 0, mp4.mBadSamples+" samples with bad NAL units or sync flags");
+		final double duration = (double)mp4.mDuration / mp4.mTimescale;
+		check(Math.abs(duration - seconds) < 2.0 / fps, "duration="+duration+"s");
+
+		System.out.println(String.format("%d frames (%dx%d, %d fps, %d s) in %.2f s: x%.1f real time",
+				frames, width, height, fps, seconds, wall, seconds / wall));
+		System.out.println(String.format("%s: %d bytes, %d samples, %d sync, %.3f s, %.2f Mbps",
+				output, new File(output).length(), mp4.mSamples, mp4.mSyncs, duration,
+				mp4.mSampleBytes * 8 / duration / 1e6));
+		if (sFails > 0) {
+			System.err.println("FAIL: "+sFails+" checks");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	private static void check(boolean ok, String msg) {
+		if (!ok) {
+			System.err.println("FAIL: "+msg);
+			sFails++;
+		}
+	}
+
+	/**
+	 * The sample table of MyMuxer's single track (moov/trak/mdia), and
+	 * each sample's NAL units read back from mdat.
+	 */
+	private static class Mp4 {
+		int  mSamples     = 0;
+		int  mSyncs       = 0;
+		int  mBadSamples  = 0;
+		long mSampleBytes = 0;
+		long mDuration    = 0;
+		long mTimescale   = 1;
+
+		private final RandomAccessFile mFile;
+		private int[]  mSizes   = null;
+		private long[] mOffsets = null;
+		private int[]  mSyncIdx = null; // 1-based, as stss
+
+		Mp4(String path) throws IOException {
+			mFile = new RandomAccessFile(path, "r");
+			try {
+				parse(0, mFile.length());
+				if (mSizes == null || mOffsets == null || mSizes.length != mOffsets.length) {
+					throw new IOException("No stsz/stco");
+				}
+				mSamples = mSizes.length;
+				mSyncs   = (mSyncIdx != null ? mSyncIdx.length : 0);
+				int s = 0;
+				for (int i=0; i<mSamples; i++) {
+					final boolean sync = (s < mSyncs && mSyncIdx[s] == i + 1);
+					if (sync) {
+						s++;
+					}
+					mSampleBytes += mSizes[i];
+					if (!checkSample(mOffsets[i], mSizes[i], sync)) {
+						mBadSamples++;
+					}
+				}
+			} finally {
+				mFile.close();
+			}
+		}
+
+		private void parse(long pos, long end) throws IOException {
+			while (pos + 8 <= end) {
+				mFile.seek(pos);
+				long size = mFile.readInt() & 0xFFFFFFFFL;
+				final String type = readType();
+				long body = pos + 8;
+				if (size == 1) {
+					size = mFile.readLong();
+					body += 8;
+				} else if (size == 0) {
+					size = end - pos;
+				}
+				if (size < 8 || pos + size > end) {
+					throw new IOException("Bad box "+type+" at "+pos);
+				}
+				if (type.equals("moov") || type.equals("trak") || type.equals("mdia") ||
+						type.equals("minf") || type.equals("stbl")) {
+					parse(body, pos + size);
+				} else if (type.equals("mdhd")) {
+					mFile.seek(body);
+					final int version = mFile.readInt() >>> 24;
+					mFile.skipBytes(version == 1 ? 16 : 8);
+					mTimescale = mFile.readInt() & 0xFFFFFFFFL;
+					mDuration  = (version == 1 ? mFile.readLong() : mFile.readInt() & 0xFFFFFFFFL);
+				} else if (type.equals("stsz")) {
+					mFile.seek(body + 4);
+					final int fixed = mFile.readInt();
+					mSizes = new int[mFile.readInt()];
+					for (int i=0; i<mSizes.length; i++) {
+						mSizes[i] = (fixed != 0 ? fixed : mFile.readInt());
+					}
+				} else if (type.equals("stco") || type.equals("co64")) {
+					mFile.seek(body + 4);
+					mOffsets = new long[mFile.readInt()];
+					for (int i=0; i<mOffsets.length; i++) {
+						mOffsets[i] = (type.equals("co64") ? mFile.readLong() : mFile.readInt() & 0xFFFFFFFFL);
+					}
+				} else if (type.equals("stss")) {
+					mFile.seek(body + 4);
+					mSyncIdx = new int[mFile.readInt()];
+					for (int i=0; i<mSyncIdx.length; i++) {
+						mSyncIdx[i] = mFile.readInt();
+					}
+				}
+				pos += size;
+			}
+		}
+
+		private String readType() throws IOException {
+			final byte[] b = new byte[4];
+			mFile.readFully(b);
+			return new String(b, "US-ASCII");
+		}
+
+		// Length-prefixed NAL units filling the sample exactly; an IDR
+		// slice in a sync sample, non-IDR slices only in the others.
+		private boolean checkSample(long offset, int size, boolean sync) throws IOException {
+			long pos = offset;
+			final long end = offset + size;
+			boolean idr = false, slice = false;
+			while (pos + 5 <= end) {
+				mFile.seek(pos);
+				final long len  = mFile.readInt() & 0xFFFFFFFFL;
+				final int  type = mFile.readUnsignedByte() & 0x1F;
+				if (len < 1 || pos + 4 + len > end) {
+					return false;
+				}
+				idr   |= (type == NAL_TYPE_SYNC);
+				slice |= (type == NAL_TYPE_SLICE);
+				pos += 4 + len;
+			}
+			return (pos == end && (sync ? idr : slice && !idr));
+		}
+	}
+}
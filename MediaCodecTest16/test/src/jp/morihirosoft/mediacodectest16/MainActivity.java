@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodectest16;
+
+/**
+ * Host stand-in for the app's MainActivity: only the native method
+ * MyRecorder calls. The native library is not built for the host, so it
+ * throws; the headless runs use the streaming mux (MyMuxer).
+ */
+public class MainActivity {
+	public static int native_cnvavc(String src_path, String dst_path, String idx_path) {
+		throw new UnsupportedOperationException("native_cnvavc: not on the host (jni/test: cnvavc_test)");
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2013 MorihiroSoft
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.morihirosoft.mediacodectest18;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import jp.morihirosoft.mediacodeccommon.Mp4Box;
+import jp.morihirosoft.mediacodeccommon.NalScanner;
+
+/**
+ * Fragmented MP4 writer for a single AVC track.
+ * Same call sequence as MediaMuxer (addTrack, start, writeSampleData, stop),
+ * but moov is written in start() and samples go out as moof/mdat pairs,
+ * so the file is playable up to the last fragment and stop() only has to
+ * flush one bounded fragment buffer.
+ *
+ * Fragments are cut
+ * - fragFrames > 0: every fragFrames samples. They need not start at an
+ *   IDR, and a kill loses at most fragFrames samples.
+ * - fragFrames = 0: at every IDR, one GOP per fragment (fragBytes must
+ *   hold a GOP).
+ * and also when the fragment buffer (fragBytes) is full.
+ */
+class FragmentMuxer {
+	//---------------------------------------------------------------------
+	// CONSTANTS
+	//---------------------------------------------------------------------
+	private static final int FLAGS_SYNC     = 0x02000000; // depends on no other
+	private static final int FLAGS_NON_SYNC = 0x01010000; // depends on others, non-sync
+
+	//---------------------------------------------------------------------
+	// MEMBERS
+	//---------------------------------------------------------------------
+	private final int mFragFrames; // samples per fragment, 0: cut at every IDR
+
+	private RandomAccessFile mFile    = null;
+	private FileChannel      mChannel = null;
+	private int              mWidth   = 0;
+	private int              mHeight  = 0;
+	private byte[]           mSps     = null;
+	private byte[]           mPps     = null;
+
+	// Fragment buffer (bounded)
+	private final ByteBuffer mFragBuf;
+	private final ByteBuffer mHeadBuf;
+	private final int[]      mSizes;
+	private final int[]      mFlags;
+	private final long[]     mTimes;
+	private int              mCount    = 0;
+	private int              mSeqNo    = 0;
+	private long             mBaseTime = -1; // first pts (us)
+	private long             mLastDur  = 0;
+
+	// NAL units of the current sample (found once, by scanNals)
+	private final NalScanner mScanner  = new NalScanner();
+	private int[]            mNalStart = new int[16];
+	private int[]            mNalEnd   = new int[16];
+	private int              mNalNum   = 0;
+
+	//---------------------------------------------------------------------
+	// PUBLIC METHODS
+	//---------------------------------------------------------------------
+	public FragmentMuxer(String path, int fps, int fragFrames, int fragBytes) throws IOException {
+		mFragFrames = fragFrames;
+		mLastDur    = Mp4Box.TIMESCALE / fps;
+
+		// Samples in a fragment: fragFrames, or up to 600 waiting for an IDR.
+		final int maxFrames = (fragFrames > 0 ? fragFrames : 600);
+		mFragBuf = ByteBuffer.allocateDirect(fragBytes);
+		mHeadBuf = ByteBuffer.allocateDirect(128 + 16 * maxFrames);
+		mSizes   = new int[maxFrames];
+		mFlags   = new int[maxFrames];
+		mTimes   = new long[maxFrames];
+
+		mFile = new RandomAccessFile(path, "rw");
+		mFile.setLength(0);
+		mChannel = mFile.getChannel();
+	}
+
+	public int addTrack(MediaFormat format) {
+		if (mSps != null) {
+			throw new IllegalStateException("only one track is supported");
+		}
+		mWidth  = format.getInteger(MediaFormat.KEY_WIDTH);
+		mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+		mSps    = stripStartCode(format.getByteBuffer("csd-0"));
+		mPps    = stripStartCode(format.getByteBuffer("csd-1"));
+		return 0;
+	}
+
+	public void start() throws IOException {
+		if (mSps == null || mPps == null) {
+			throw new IllegalStateException("no SPS/PPS");
+		}
+		ByteBuffer b = ByteBuffer.allocate(1024 + mSps.length + mPps.length);
+		Mp4Box.putFtyp(b, "isom", "iso5", "avc1", "mp41");
+		putMoov(b);
+		b.flip();
+		writeFully(b);
+	}
+
+	public void writeSampleData(ByteBuffer buf, MediaCodec.BufferInfo info) throws IOException {
+		final boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+		final int     size = scanNals(buf, info);
+
+		// Cut fragment: every mFragFrames samples or at an IDR, or if full.
+		if (mCount > 0) {
+			final boolean cut = (mFragFrames > 0 ? mCount >= mFragFrames : sync);
+			if (cut || mCount >= mSizes.length || mFragBuf.remaining() < size) {
+				flushFragment(info.presentationTimeUs);
+			}
+		}
+
+		// Sample -> fragment buffer (Annex-B -> AVCC)
+		if (mBaseTime < 0) {
+			mBaseTime = info.presentationTimeUs;
+		}
+		if (mFragBuf.remaining() < size) {
+			throw new IOException("sample too large: "+size);
+		}
+		final int start = mFragBuf.position();
+		for (int i=0; i<mNalNum; i++) {
+			putNal(buf, mNalStart[i], mNalEnd[i]);
+		}
+		mSizes[mCount] = mFragBuf.position() - start;
+		mFlags[mCount] = (sync ? FLAGS_SYNC : FLAGS_NON_SYNC);
+		mTimes[mCount] = info.presentationTimeUs;
+		mCount++;
+	}
+
+	public void stop() throws IOException {
+		if (mChannel == null) {
+			return;
+		}
+		try {
+			flushFragment(-1);
+		} finally {
+			release();
+		}
+	}
+
+	public void release() {
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		mFile    = null;
+		mChannel = null;
+	}
+
+	//---------------------------------------------------------------------
+	// PRIVATE...
+	//---------------------------------------------------------------------
+	/**
+	 * nextUs: pts of the sample after the fragment, for the duration of its
+	 * last one. -1: none (end of stream), the duration before is repeated.
+	 */
+	private void flushFragment(long nextUs) throws IOException {
+		if (mCount == 0) {
+			return;
+		}
+		final int  n       = mCount;
+		final long baseDts = Mp4Box.toTimescale(mTimes[0] - mBaseTime);
+
+		ByteBuffer b = mHeadBuf;
+		b.clear();
+		int dataOffsetPos;
+		final int moof = Mp4Box.begin(b, "moof");
+		{
+			final int mfhd = Mp4Box.begin(b, "mfhd");
+			b.putInt(0x00000000);
+			b.putInt(++mSeqNo);
+			Mp4Box.end(b, mfhd);
+		}
+		final int traf = Mp4Box.begin(b, "traf");
+		{
+			final int tfhd = Mp4Box.begin(b, "tfhd");
+			b.putInt(0x00020000); // default-base-is-moof
+			b.putInt(1); // track_id
+			Mp4Box.end(b, tfhd);
+
+			final int tfdt = Mp4Box.begin(b, "tfdt");
+			b.putInt(0x01000000); // version 1
+			b.putLong(baseDts);
+			Mp4Box.end(b, tfdt);
+
+			final int trun = Mp4Box.begin(b, "trun");
+			b.putInt(0x00000701); // data-offset, duration, size, flags
+			b.putInt(n);
+			dataOffsetPos = b.position();
+			b.putInt(0);
+			for (int i=0; i<n; i++) {
+				final long next = (i+1 < n ? mTimes[i+1] : nextUs);
+				long dur;
+				if (next >= 0) {
+					dur = Mp4Box.toTimescale(next - mBaseTime) - Mp4Box.toTimescale(mTimes[i] - mBaseTime);
+					mLastDur = dur;
+				} else {
+					dur = mLastDur;
+				}
+				b.putInt((int)(dur > 0 ? dur : 1));
+				b.putInt(mSizes[i]);
+				b.putInt(mFlags[i]);
+			}
+			Mp4Box.end(b, trun);
+		}
+		Mp4Box.end(b, traf);
+		Mp4Box.end(b, moof);
+		b.putInt(dataOffsetPos, b.position() - moof + 8);
+
+		// mdat
+		b.putInt(8 + mFragBuf.position());
+		Mp4Box.putType(b, "mdat");
+		b.flip();
+		writeFully(b);
+
+		mFragBuf.flip();
+		writeFully(mFragBuf);
+		mFragBuf.clear();
+		mCount = 0;
+	}
+
+	/**
+	 * Finds the NAL units of the sample (mNalStart/mNalEnd/mNalNum, without
+	 * start codes) and returns its AVCC size (4-byte length + NAL each).
+	 */
+	private int scanNals(ByteBuffer buf, MediaCodec.BufferInfo info) {
+		final int end = info.offset + info.size;
+		mNalNum = 0;
+		if (!mScanner.reset(buf, info.offset, end)) {
+			// No start code, treat as one NAL unit.
+			addNal(info.offset, end);
+		}
+		while (mScanner.next()) {
+			addNal(mScanner.offset(), mScanner.offset() + mScanner.length());
+		}
+		int size = 0;
+		for (int n=0; n<mNalNum; n++) {
+			size += 4 + mNalEnd[n] - mNalStart[n];
+		}
+		return size;
+	}
+
+	private void addNal(int start, int end) {
+		if (mNalNum == mNalStart.length) {
+			mNalStart = Arrays.copyOf(mNalStart, mNalNum * 2);
+			mNalEnd   = Arrays.copyOf(mNalEnd,   mNalNum * 2);
+		}
+		mNalStart[mNalNum] = start;
+		mNalEnd[mNalNum]   = end;
+		mNalNum++;
+	}
+
+	private void putNal(ByteBuffer buf, int start, int end) {
+		mFragBuf.putInt(end - start);
+		ByteBuffer src = buf.duplicate();
+		src.limit(end);
+		src.position(start);
+		mFragBuf.put(src);
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			mChannel.write(b);
+		}
+	}
+
+	private void putMoov(ByteBuffer b) {
+		final int moov = Mp4Box.begin(b, "moov");
+		Mp4Box.putMvhd(b, 0, 0); // duration: in fragments
+		final int trak = Mp4Box.begin(b, "trak");
+		Mp4Box.putTkhd(b, 0, 0, mWidth, mHeight);
+		final int mdia = Mp4Box.begin(b, "mdia");
+		Mp4Box.putMdhd(b, 0, 0);
+		Mp4Box.putHdlr(b);
+		final int minf = Mp4Box.begin(b, "minf");
+		Mp4Box.putVmhdDinf(b);
+		final int stbl = Mp4Box.begin(b, "stbl");
+		{
+			Mp4Box.putStsd(b, mWidth, mHeight, mSps, mPps);
+
+			// Empty sample table, samples are in the fragments.
+			final String[] empty = {"stts", "stsc", "stco"};
+			for (String type : empty) {
+				final int box = Mp4Box.begin(b, type);
+				b.putInt(0x00000000);
+				b.putInt(0);
+				Mp4Box.end(b, box);
+			}
+			final int stsz = Mp4Box.begin(b, "stsz");
+			b.putInt(0x00000000);
+			b.putInt(0);
+			b.putInt(0);
+			Mp4Box.end(b, stsz);
+		}
+		Mp4Box.end(b, stbl);
+		Mp4Box.end(b, minf);
+		Mp4Box.end(b, mdia);
+		Mp4Box.end(b, trak);
+
+		final int mvex = Mp4Box.begin(b, "mvex");
+		{
+			final int trex = Mp4Box.begin(b, "trex");
+			b.putInt(0x00000000);
+			b.putInt(1); // track_id
+			b.putInt(1); // default_sample_description_index
+			b.putInt(0); // default_sample_duration
+			b.putInt(0); // default_sample_size
+			b.putInt(0); // default_sample_flags
+			Mp4Box.end(b, trex);
+		}
+		Mp4Box.end(b, mvex);
+		Mp4Box.end(b, moov);
+	}
+
+	/**
+	 * The first NAL unit of csd, without its start code (csd as is if it
+	 * has none).
+	 */
+	private byte[] stripStartCode(ByteBuffer csd) {
+		if (csd == null) {
+			return null;
+		}
+		int start = csd.position();
+		int end   = csd.limit();
+		if (mScanner.reset(csd, start, end) && mScanner.next()) {
+			start = mScanner.offset();
+			end   = start + mScanner.length();
+		}
+		byte[] dst = new byte[end - start];
+		ByteBuffer b = csd.duplicate();
+		b.limit(end);
+		b.position(start);
+		b.get(dst);
+		return dst;
+	}
+}
@@ -16,6 +16,7 @@
  */
 package jp.morihirosoft.mediacodectest18;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import android.media.MediaCodec;
@@ -23,20 +24,33 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.util.Log;
+import android.view.Surface;
+
+import jp.morihirosoft.mediacodeccommon.BitrateController;
+import jp.morihirosoft.mediacodeccommon.MediaCodecEncoder;
+import jp.morihirosoft.mediacodeccommon.SoftwareEncoder;
+import jp.morihirosoft.mediacodeccommon.VideoEncoder;
 
 public class MyRecorder {
+	private static final String TAG = "MyRecorder";
+
 	//---------------------------------------------------------------------
 	// MEMBERS
 	//---------------------------------------------------------------------
 	private final VideoParam mVideoParam = VideoParam.getInstance();
 
-	private MediaCodec            mMediaCodec   = null;
-	private InputSurface          mInputSurface = null;
+	private VideoEncoder          mEncoder      = null;
+	private boolean               mStarted      = false;
+	private InputSurface          mInputSurface = null; // null: SoftwareEncoder
 	private MediaCodec.BufferInfo mBufferInfo   = null;
 	private MediaMuxer            mMediaMuxer   = null;
+	private FragmentMuxer         mFragMuxer    = null;
 	private int                   mTrackIndex   = -1;
 	private boolean               mMuxerStarted = false;
-	private int                   mTotalSize    = 0; //TODO: DEBUG
+	private BitrateController     mBitrate      = null; // null: fixed bitrate
+	private long                  mOutBytes     = 0; // written
+	private int                   mSlowWrites   = 0; // over a frame interval
+	private long                  mMaxWriteUs   = 0;
 
 	//---------------------------------------------------------------------
 	// PUBLIC METHODS
@@ -45,28 +59,38 @@ public class MyRecorder {
 	}
 
 	public void prepareEncoder() {
-		if (mMediaCodec != null || mInputSurface != null) {
+		if (mEncoder != null || mInputSurface != null) {
 			throw new RuntimeException("prepareEncoder called twice?");
 		}
 
-		mBufferInfo = new MediaCodec.BufferInfo();
+		mBufferInfo  = new MediaCodec.BufferInfo();
+		mOutBytes    = 0;
+		mSlowWrites  = 0;
+		mMaxWriteUs  = 0;
 		try {
-			MediaFormat format = MediaFormat.createVideoFormat(
-					mVideoParam.mMime,
+			mEncoder = (mVideoParam.mSoftEncoder ?
+					new SoftwareEncoder() : new MediaCodecEncoder(mVideoParam.mMime));
+			mEncoder.configure(
 					mVideoParam.mSize.width,
-					mVideoParam.mSize.height);
-			format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+					mVideoParam.mSize.height,
+					mVideoParam.getMaxFps(),
+					mVideoParam.mBps,
+					mVideoParam.mIfi,
 					MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-			format.setInteger(MediaFormat.KEY_BIT_RATE, mVideoParam.mBps);
-			format.setInteger(MediaFormat.KEY_FRAME_RATE, mVideoParam.getMaxFps());
-			format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mVideoParam.mIfi);
 
-			mMediaCodec = MediaCodec.createEncoderByType(mVideoParam.mMime);
-			mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-
-			mMediaMuxer = new MediaMuxer(mVideoParam.mOutput,
-					MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			if (mVideoParam.mFmp4) {
+				mFragMuxer = new FragmentMuxer(mVideoParam.mOutput,
+						mVideoParam.getMaxFps(),
+						mVideoParam.mFragFrames,
+						mVideoParam.mFragBytes);
+			} else {
+				mMediaMuxer = new MediaMuxer(mVideoParam.mOutput,
+						MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			}
 			mMuxerStarted = false;
+		} catch (IOException e) {
+			releaseEncoder();
+			throw new RuntimeException(e);
 		} catch (Exception e) {
 			releaseEncoder();
 			throw (RuntimeException)e;
@@ -74,21 +98,41 @@ public class MyRecorder {
 	}
 
 	public boolean firstTimeSetup() {
-		if (!isRecording() || mInputSurface != null) {
+		if (!isRecording() || mStarted) {
 			return false;
 		}
 		try {
-			mInputSurface = new InputSurface(mMediaCodec.createInputSurface());
-			mMediaCodec.start();
+			final Surface surface = mEncoder.createInputSurface();
+			if (surface != null) {
+				mInputSurface = new InputSurface(surface);
+			}
+			mEncoder.start();
+			mStarted = true;
 		} catch (Exception e) {
 			releaseEncoder();
 			throw (RuntimeException)e;
 		}
+
+		// Bitrate (MediaCodec can retune it from API 19)
+		if (mVideoParam.mAbr) {
+			final BitrateController.Target target = mEncoder.getBitrateTarget();
+			if (target != null) {
+				mBitrate = new BitrateController(target, mVideoParam.mBps,
+						mVideoParam.mBpsMin, mVideoParam.mBpsOutMax, mVideoParam.getMaxFps());
+			} else {
+				Log.i(TAG, "Fixed bitrate (setParameters: API 19-)");
+			}
+		}
 		return true;
 	}
 
 	public boolean isRecording() {
-		return mMediaCodec != null;
+		return mEncoder != null;
+	}
+
+	/** False: nothing to draw to (SoftwareEncoder), swapBuffers() only. */
+	public boolean hasInputSurface() {
+		return mInputSurface != null;
 	}
 
 	public void makeCurrent() {
@@ -100,8 +144,12 @@ public class MyRecorder {
 			return;
 		}
 		drainEncoder(false);
-		mInputSurface.swapBuffers();
-		mInputSurface.setPresentationTime(System.nanoTime());
+		if (mInputSurface != null) {
+			mInputSurface.swapBuffers();
+			mInputSurface.setPresentationTime(System.nanoTime());
+		} else {
+			mEncoder.queueSurfaceFrame(System.nanoTime() / 1000);
+		}
 	}
 
 	synchronized public void stop() {
@@ -113,11 +161,21 @@ public class MyRecorder {
 	// PRIVATE...
 	//---------------------------------------------------------------------
 	private void releaseEncoder() {
-		if (mMediaCodec != null) {
-			mMediaCodec.stop();
-			mMediaCodec.release();
-			mMediaCodec = null;
+		if (mStarted) {
+			Log.i(TAG, "output: bytes="+mOutBytes+", writes over a frame interval="+mSlowWrites+
+					", max write="+mMaxWriteUs+"us");
+		}
+		if (mBitrate != null) {
+			Log.i(TAG, "bitrate: last="+mBitrate.getBitrate()+", lowered="+mBitrate.getLoweredCount()+
+					", raised="+mBitrate.getRaisedCount()+", failed="+mBitrate.getFailedCount());
+			mBitrate = null;
+		}
+		if (mEncoder != null) {
+			mEncoder.stop();
+			mEncoder.release();
+			mEncoder = null;
 		}
+		mStarted = false;
 		if (mInputSurface != null) {
 			mInputSurface.release();
 			mInputSurface = null;
@@ -127,28 +185,45 @@ public class MyRecorder {
 			mMediaMuxer.release();
 			mMediaMuxer = null;
 		}
+		if (mFragMuxer != null) {
+			try {
+				mFragMuxer.stop();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			mFragMuxer = null;
+		}
 	}
 
 	private void drainEncoder(boolean endOfStream) {
 		if (endOfStream) {
-			mMediaCodec.signalEndOfInputStream();
+			mEncoder.signalEndOfInputStream();
 		}
-		ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+		ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
 		while (true) {
-			int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
+			int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, 0);
 			if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
 				if (!endOfStream) {
 					break;
 				}
 			} else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-				encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+				encoderOutputBuffers = mEncoder.getOutputBuffers();
 			} else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
 				if (mMuxerStarted) {
 					throw new RuntimeException("format changed twice");
 				}
-				MediaFormat newFormat = mMediaCodec.getOutputFormat();
-				mTrackIndex = mMediaMuxer.addTrack(newFormat);
-				mMediaMuxer.start();
+				MediaFormat newFormat = mEncoder.getOutputFormat();
+				if (mFragMuxer != null) {
+					mTrackIndex = mFragMuxer.addTrack(newFormat);
+					try {
+						mFragMuxer.start();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				} else {
+					mTrackIndex = mMediaMuxer.addTrack(newFormat);
+					mMediaMuxer.start();
+				}
 				mMuxerStarted = true;
 			} else {
 				ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
@@ -165,22 +240,36 @@ public class MyRecorder {
 					encodedData.position(mBufferInfo.offset);
 					encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-					boolean calc_time = true; //TODO: DEBUG
-					if (calc_time) {
-						long t0 = System.currentTimeMillis();
-						mMediaMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-						mTotalSize += mBufferInfo.size;
-						long dt = System.currentTimeMillis() - t0;
-						if (dt>50) Log.e("DEBUG", String.format("XXX: dt=%d, size=%.2f",dt,(float)mTotalSize/1024/1024));
-					} else {
-						mMediaMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+					// The write time drives the bitrate
+					final long t0 = System.nanoTime();
+					writeSampleData(encodedData);
+					final long dt = (System.nanoTime() - t0) / 1000; // us
+					if (mBitrate != null) {
+						mBitrate.onSample(mBufferInfo.size, dt);
+					}
+					mOutBytes += mBufferInfo.size;
+					if (dt > 1000000L / mVideoParam.getMaxFps()) {
+						mSlowWrites++;
 					}
+					mMaxWriteUs = Math.max(mMaxWriteUs, dt);
 				}
-				mMediaCodec.releaseOutputBuffer(encoderStatus, false);
+				mEncoder.releaseOutputBuffer(encoderStatus);
 				if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
 					break;
 				}
 			}
 		}
 	}
+
+	private void writeSampleData(ByteBuffer encodedData) {
+		if (mFragMuxer != null) {
+			try {
+				mFragMuxer.writeSampleData(encodedData, mBufferInfo);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		} else {
+			mMediaMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+		}
+	}
 }
@@ -56,15 +56,20 @@ class RenderSrfTex {
 	}
 
 	public void draw() {
+		final boolean first = mRecorder.firstTimeSetup();
+		if (!mRecorder.hasInputSurface()) {
+			// SoftwareEncoder: nothing to draw to, only the frame goes
+			mRecorder.swapBuffers();
+			return;
+		}
+
 		saveRenderState();
 		{
 			GlUtil.checkGlError("draw_S");
 
-			if (mRecorder.firstTimeSetup()) {
-				mRecorder.makeCurrent();
+			mRecorder.makeCurrent();
+			if (first) {
 				initGL();
-			} else {
-				mRecorder.makeCurrent();
 			}
 
 			GLES20.glViewport(0, 0, mFboTexW, mFboTexH);
@@ -36,7 +36,14 @@ public class VideoParam {
 	private static final int    FPS     = 30;
 	private static final String MIME    = "video/avc";
 	private static final int    BPS     = 4*1024*1024;
+	private static final boolean ABR     = true;        // cut BPS while the storage falls behind, back up to it (API 19-)
+	private static final int     BPS_MIN = 1*1024*1024;
+	private static final int     BPS_OUT_MAX = 8*1024*1024; // ABR cuts an output over this
 	private static final int    IFI     = 5;
+	private static final boolean FMP4        = true;        // fragmented MP4 output
+	private static final boolean SOFT_ENCODER = false;      // true: SoftwareEncoder (synthetic stream, no MediaCodec)
+	private static final int     FRAG_FRAMES = 30;          // per fragment (a kill loses at most these), 0: a fragment per GOP, cut at IDRs
+	private static final int     FRAG_BYTES  = 2*1024*1024; // fragment buffer for FRAG_FRAMES > 0
 	private static final String SDCARD  = Environment.getExternalStorageDirectory().getPath();
 	private static final String OUTPUT  = SDCARD + "/video.mp4";
 
@@ -49,8 +56,15 @@ public class VideoParam {
 	public final int[]   mFpsRange;
 	public final String  mMime;
 	public final int     mBps    = BPS;
+	public final boolean mAbr    = ABR;
+	public final int     mBpsMin = BPS_MIN;
+	public final int     mBpsOutMax = BPS_OUT_MAX;
 	public final int     mIfi    = IFI;
 	public final String  mOutput = OUTPUT;
+	public final boolean mFmp4       = FMP4;
+	public final boolean mSoftEncoder = SOFT_ENCODER;
+	public final int     mFragFrames = FRAG_FRAMES;
+	public final int     mFragBytes  = (FRAG_FRAMES > 0 ? FRAG_BYTES : BPS / 8 * IFI * 3 / 2); // a GOP + 50%
 
 	//---------------------------------------------------------------------
 	// SINGLETON